@@ -26,12 +26,19 @@ import com.android.volley.VolleyError;
 
 import org.json.JSONObject;
 
+import java.io.IOException;
+
 import ie.macinnes.tvheadend.client.TVHClient;
 import ie.macinnes.tvheadend.migrate.MigrateUtils;
+import ie.macinnes.tvheadend.mock.HtspSmokeTest;
+import ie.macinnes.tvheadend.mock.MockHtspServer;
+import ie.macinnes.tvheadend.mock.MockTvheadendServer;
+import ie.macinnes.tvheadend.mock.SyncLoadTest;
+import ie.macinnes.tvheadend.mock.TsHandoverTest;
 import ie.macinnes.tvheadend.model.Channel;
 import ie.macinnes.tvheadend.model.ChannelList;
-import ie.macinnes.tvheadend.model.Program;
-import ie.macinnes.tvheadend.model.ProgramList;
+import ie.macinnes.tvheadend.model.ProgramRow;
+import ie.macinnes.tvheadend.tvinput.TuneStats;
 
 public class DevTestActivity extends Activity {
     private static final String TAG = DevTestActivity.class.getName();
@@ -49,7 +56,7 @@ public class DevTestActivity extends Activity {
         setContentView(R.layout.activity_dev_test);
 
         mAccountManager = AccountManager.get(getBaseContext());
-        mClient = TVHClient.getInstance(getBaseContext());
+        mClient = new TVHClient(getBaseContext());
     }
 
     private void setRunning() {
@@ -154,20 +161,166 @@ public class DevTestActivity extends Activity {
             appendDebugOutput(channel.toString());
             appendDebugOutput("---");
 
-            ProgramList programs = TvContractUtils.getPrograms(getBaseContext(), channel);
+            // The next 5 programs, from now onwards
+            TvContractUtils.queryPrograms(
+                    getBaseContext(), channel.getId(), TvContractUtils.PROGRAM_SUMMARY_PROJECTION,
+                    System.currentTimeMillis(), 0, new TvContractUtils.ProgramRowVisitor() {
+                        private int mCount = 0;
+
+                        @Override
+                        public boolean visit(ProgramRow row) {
+                            appendDebugOutput(row.toProgram().toString());
+                            mCount++;
+
+                            return mCount < 5;
+                        }
+                    });
+        }
+        appendDebugOutput("---");
+        setOk();
+    }
+
+    public void syncLoadTest(View view) {
+        setRunning();
 
-            int i = 0;
+        final MockTvheadendServer.Config config = new MockTvheadendServer.Config();
+        config.channelCount = 200;
+        config.eventsPerChannel = 336;
+        config.latencyMs = 20;
+        config.errorRate = 0.02f;
 
-            for (Program program : programs) {
-                appendDebugOutput(program.toString());
-                i++;
+        final SyncLoadTest.Listener listener = new SyncLoadTest.Listener() {
+            @Override
+            public void onProgress(final String message) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        appendDebugOutput(message);
+                    }
+                });
+            }
+        };
 
-                if (i == 5) {
-                    break;
+        // Runs off the UI thread, the client blocks waiting for responses
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean ok;
+
+                try {
+                    new SyncLoadTest(getBaseContext(), config, 3, listener).run();
+                    ok = true;
+                } catch (IOException | InterruptedException e) {
+                    listener.onProgress("Load test failed: " + e.getLocalizedMessage());
+                    ok = false;
                 }
+
+                final boolean finalOk = ok;
+
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (finalOk) {
+                            setOk();
+                        } else {
+                            setFail();
+                        }
+                    }
+                });
             }
-        }
-        appendDebugOutput("---");
+        }).start();
+    }
+
+    public void htspSmokeTest(View view) {
+        setRunning();
+
+        final MockHtspServer.Config config = new MockHtspServer.Config();
+        config.latencyMs = 20;
+
+        final HtspSmokeTest.Listener listener = new HtspSmokeTest.Listener() {
+            @Override
+            public void onProgress(final String message) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        appendDebugOutput(message);
+                    }
+                });
+            }
+        };
+
+        // Runs off the UI thread, the connection blocks waiting for replies
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean ok;
+
+                try {
+                    ok = new HtspSmokeTest(config, 3000, listener).run();
+                } catch (IOException | InterruptedException e) {
+                    listener.onProgress("Smoke test failed: " + e.getLocalizedMessage());
+                    ok = false;
+                }
+
+                final boolean finalOk = ok;
+
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (finalOk) {
+                            setOk();
+                        } else {
+                            setFail();
+                        }
+                    }
+                });
+            }
+        }).start();
+    }
+
+    public void tsHandoverTest(View view) {
+        setRunning();
+
+        final TsHandoverTest.Listener listener = new TsHandoverTest.Listener() {
+            @Override
+            public void onProgress(final String message) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        appendDebugOutput(message);
+                    }
+                });
+            }
+        };
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final boolean ok = new TsHandoverTest(20, listener).run();
+
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (ok) {
+                            setOk();
+                        } else {
+                            setFail();
+                        }
+                    }
+                });
+            }
+        }).start();
+    }
+
+    public void tuneStats(View view) {
+        setRunning();
+        setDebugOutput(TuneStats.getInstance().dump());
+        setOk();
+    }
+
+    public void resetTuneStats(View view) {
+        setRunning();
+        TuneStats.getInstance().reset();
         setOk();
     }
 
@@ -0,0 +1,187 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.mock;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import ie.macinnes.tvheadend.htsp.HtspConnection;
+import ie.macinnes.tvheadend.htsp.HtspMessage;
+
+/**
+ * Runs HtspConnection through a subscription against a {@link MockHtspServer}.
+ *
+ * Checks a wrong password is refused, then connects, subscribes, streams for a while and
+ * unsubscribes, reporting how long each step took and what was received.
+ */
+public class HtspSmokeTest {
+    private static final long TIMEOUT_MS = 5000;
+
+    public interface Listener {
+        void onProgress(String message);
+    }
+
+    private final MockHtspServer.Config mConfig;
+    private final long mStreamMs;
+    private final Listener mListener;
+
+    public HtspSmokeTest(MockHtspServer.Config config, long streamMs, Listener listener) {
+        mConfig = config;
+        mStreamMs = streamMs;
+        mListener = listener;
+    }
+
+    /**
+     * @return whether every step succeeded
+     */
+    public boolean run() throws IOException, InterruptedException {
+        MockHtspServer server = new MockHtspServer(mConfig);
+        server.start();
+
+        try {
+            return checkRefused(server) && checkSubscription(server);
+        } finally {
+            server.stop();
+        }
+    }
+
+    private boolean checkRefused(MockHtspServer server) {
+        HtspConnection connection = new HtspConnection(server.getHostname(), server.getPort(),
+                mConfig.username, mConfig.password + "-wrong", "HtspSmokeTest");
+
+        try {
+            connection.connect();
+            mListener.onProgress("Wrong password was accepted");
+            return false;
+        } catch (IOException e) {
+            mListener.onProgress("Wrong password refused: " + e.getLocalizedMessage());
+            return true;
+        } finally {
+            connection.close();
+        }
+    }
+
+    private boolean checkSubscription(MockHtspServer server) throws InterruptedException {
+        HtspConnection connection = new HtspConnection(server.getHostname(), server.getPort(),
+                mConfig.username, mConfig.password, "HtspSmokeTest");
+
+        RecordingListener listener = new RecordingListener();
+
+        try {
+            long connectStart = SystemClock.elapsedRealtime();
+            connection.connect();
+            mListener.onProgress("Connected to " + connection.getServerName() + " in "
+                    + (SystemClock.elapsedRealtime() - connectStart) + "ms");
+
+            long subscribeStart = SystemClock.elapsedRealtime();
+            long subscriptionId = connection.subscribe(1, null, listener);
+
+            if (!listener.mStarted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                mListener.onProgress("Subscription didn't start");
+                return false;
+            }
+
+            long startedMs = SystemClock.elapsedRealtime() - subscribeStart;
+
+            if (!listener.mFirstKeyframe.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                mListener.onProgress("No keyframe received");
+                return false;
+            }
+
+            mListener.onProgress("Subscription started in " + startedMs + "ms, first keyframe after "
+                    + (SystemClock.elapsedRealtime() - subscribeStart) + "ms");
+
+            Thread.sleep(mStreamMs);
+
+            connection.unsubscribe(subscriptionId);
+
+            if (!listener.mStopped.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                mListener.onProgress("Subscription didn't stop");
+                return false;
+            }
+
+            synchronized (listener) {
+                for (Map.Entry<Long, Integer> entry : listener.mPacketCounts.entrySet()) {
+                    mListener.onProgress("  Stream " + entry.getKey() + ": " + entry.getValue()
+                            + " packets, " + listener.mByteCounts.get(entry.getKey()) + " bytes");
+                }
+
+                mListener.onProgress("  " + listener.mKeyframeCount + " keyframes, "
+                        + listener.mQueueStatusCount + " queue status updates");
+            }
+
+            return listener.mError == null;
+        } catch (IOException e) {
+            mListener.onProgress("Subscription failed: " + e.getLocalizedMessage());
+            return false;
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static class RecordingListener implements HtspConnection.SubscriptionListener {
+        private final CountDownLatch mStarted = new CountDownLatch(1);
+        private final CountDownLatch mFirstKeyframe = new CountDownLatch(1);
+        private final CountDownLatch mStopped = new CountDownLatch(1);
+
+        private final Map<Long, Integer> mPacketCounts = new HashMap<>();
+        private final Map<Long, Long> mByteCounts = new HashMap<>();
+        private int mKeyframeCount = 0;
+        private int mQueueStatusCount = 0;
+        private IOException mError;
+
+        @Override
+        public void onSubscriptionStart(HtspMessage message) {
+            mStarted.countDown();
+        }
+
+        @Override
+        public synchronized void onMuxPacket(HtspMessage message) {
+            long stream = message.getLong("stream", -1);
+            byte[] payload = message.getBytes("payload");
+
+            Integer packetCount = mPacketCounts.get(stream);
+            Long byteCount = mByteCounts.get(stream);
+
+            mPacketCounts.put(stream, packetCount == null ? 1 : packetCount + 1);
+            mByteCounts.put(stream, (byteCount == null ? 0 : byteCount) + (payload == null ? 0 : payload.length));
+
+            if (message.getInt("frametype", 0) == 'I') {
+                mKeyframeCount++;
+                mFirstKeyframe.countDown();
+            }
+        }
+
+        @Override
+        public synchronized void onQueueStatus(HtspMessage message) {
+            mQueueStatusCount++;
+        }
+
+        @Override
+        public void onSubscriptionStop(HtspMessage message) {
+            mStopped.countDown();
+        }
+
+        @Override
+        public synchronized void onConnectionError(IOException e) {
+            mError = e;
+        }
+    }
+}
@@ -0,0 +1,383 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.mock;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ie.macinnes.tvheadend.htsp.HtspMessage;
+
+/**
+ * An in-process stand-in for a tvheadend HTSP server.
+ *
+ * Implements just enough of the protocol HtspConnection uses: hello, authenticate, subscribe and
+ * unsubscribe. Every subscription carries an H264 video and an AAC audio stream of generated
+ * packets, which aren't decodable, along with periodic queue status. Any channel ID can be
+ * subscribed to.
+ */
+public class MockHtspServer {
+    private static final String TAG = MockHtspServer.class.getName();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int VIDEO_STREAM_INDEX = 1;
+    private static final int AUDIO_STREAM_INDEX = 2;
+
+    private static final long QUEUE_STATUS_INTERVAL_MS = 1000;
+
+    public static class Config {
+        public String username = "mock";
+        public String password = "mock";
+        public int videoFrameRate = 25;
+        // Frames per keyframe
+        public int gopLength = 25;
+        public int videoPacketSize = 8 * 1024;
+        public int audioPacketSize = 512;
+        // Added before the reply to each request, and before subscriptions start
+        public int latencyMs = 0;
+        public long seed = 1;
+    }
+
+    private final Config mConfig;
+    private final Random mRandom;
+
+    private ServerSocket mServerSocket;
+    private ExecutorService mExecutor;
+
+    private final AtomicInteger mSubscriptionCount = new AtomicInteger();
+
+    public MockHtspServer(Config config) {
+        mConfig = config;
+        mRandom = new Random(config.seed);
+    }
+
+    public void start() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mExecutor = Executors.newCachedThreadPool();
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        });
+
+        Log.d(TAG, "Listening on port " + getPort());
+    }
+
+    public void stop() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close server socket", e);
+        }
+
+        mExecutor.shutdownNow();
+    }
+
+    public String getHostname() {
+        return "127.0.0.1";
+    }
+
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    public int getSubscriptionCount() {
+        return mSubscriptionCount.get();
+    }
+
+    private void acceptConnections() {
+        while (!mServerSocket.isClosed()) {
+            final Socket socket;
+
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                // Closed by stop()
+                return;
+            }
+
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    new Connection(socket).run();
+                }
+            });
+        }
+    }
+
+    private synchronized byte[] randomBytes(int count) {
+        byte[] bytes = new byte[count];
+        mRandom.nextBytes(bytes);
+        return bytes;
+    }
+
+    private void sleep(long ms) throws InterruptedException {
+        if (ms > 0) {
+            Thread.sleep(ms);
+        }
+    }
+
+    private class Connection {
+        private final Socket mSocket;
+        private final Map<Long, Future<?>> mSubscriptions = new HashMap<>();
+
+        private byte[] mChallenge;
+        private boolean mAuthenticated = false;
+
+        public Connection(Socket socket) {
+            mSocket = socket;
+        }
+
+        public void run() {
+            try {
+                DataInputStream inputStream = new DataInputStream(
+                        new BufferedInputStream(mSocket.getInputStream()));
+
+                while (true) {
+                    int length = inputStream.readInt();
+                    byte[] body = new byte[length];
+                    inputStream.readFully(body);
+
+                    handleRequest(HtspMessage.fromBytes(body));
+                }
+            } catch (IOException e) {
+                // The client went away
+            } catch (InterruptedException e) {
+                // Stopped
+            } finally {
+                synchronized (mSubscriptions) {
+                    for (Future<?> subscription : mSubscriptions.values()) {
+                        subscription.cancel(true);
+                        mSubscriptionCount.decrementAndGet();
+                    }
+                    mSubscriptions.clear();
+                }
+
+                try {
+                    mSocket.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+
+        private void handleRequest(HtspMessage request) throws IOException, InterruptedException {
+            sleep(mConfig.latencyMs);
+
+            String method = request.getMethod();
+            HtspMessage reply = new HtspMessage();
+
+            if ("hello".equals(method)) {
+                mChallenge = randomBytes(32);
+
+                reply.put("htspversion", 25)
+                        .put("servername", "MockHtspServer")
+                        .put("serverversion", "0.0")
+                        .put("challenge", mChallenge);
+            } else if ("authenticate".equals(method)) {
+                mAuthenticated = mConfig.username.equals(request.getString("username"))
+                        && Arrays.equals(digest(mConfig.password, mChallenge), request.getBytes("digest"));
+
+                if (!mAuthenticated) {
+                    reply.put("noaccess", 1);
+                }
+            } else if (!mAuthenticated) {
+                reply.put("noaccess", 1);
+            } else if ("subscribe".equals(method)) {
+                subscribe(request.getLong("subscriptionId", 0));
+            } else if ("unsubscribe".equals(method)) {
+                unsubscribe(request.getLong("subscriptionId", 0));
+            } else {
+                reply.put("error", "Unsupported method: " + method);
+            }
+
+            if (request.containsKey("seq")) {
+                reply.put("seq", request.getLong("seq", 0));
+            }
+
+            send(reply);
+        }
+
+        private void subscribe(final long subscriptionId) {
+            mSubscriptionCount.incrementAndGet();
+
+            Future<?> subscription = mExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        streamSubscription(subscriptionId);
+                    } catch (IOException | InterruptedException e) {
+                        // Unsubscribed, or the client went away
+                    }
+                }
+            });
+
+            synchronized (mSubscriptions) {
+                mSubscriptions.put(subscriptionId, subscription);
+            }
+        }
+
+        private void unsubscribe(long subscriptionId) throws IOException {
+            Future<?> subscription;
+
+            synchronized (mSubscriptions) {
+                subscription = mSubscriptions.remove(subscriptionId);
+            }
+
+            if (subscription == null) {
+                return;
+            }
+
+            subscription.cancel(true);
+            mSubscriptionCount.decrementAndGet();
+
+            send(new HtspMessage("subscriptionStop")
+                    .put("subscriptionId", subscriptionId)
+                    .put("status", "Unsubscribed"));
+        }
+
+        private void streamSubscription(long subscriptionId) throws IOException, InterruptedException {
+            sleep(mConfig.latencyMs);
+
+            List<Object> streams = new ArrayList<>();
+
+            streams.add(new HtspMessage()
+                    .put("index", VIDEO_STREAM_INDEX)
+                    .put("type", "H264")
+                    .put("width", 1280)
+                    .put("height", 720));
+
+            streams.add(new HtspMessage()
+                    .put("index", AUDIO_STREAM_INDEX)
+                    .put("type", "AAC")
+                    .put("language", "eng")
+                    .put("rate", 48000)
+                    .put("channels", 2));
+
+            send(new HtspMessage("subscriptionStart")
+                    .put("subscriptionId", subscriptionId)
+                    .put("streams", streams));
+
+            long videoFrameUs = 1000000L / mConfig.videoFrameRate;
+            // An AAC frame is 1024 samples
+            long audioFrameUs = 1024 * 1000000L / 48000;
+
+            long startMs = System.currentTimeMillis();
+            long ptsBaseUs = startMs * 1000;
+
+            long videoUs = 0;
+            long audioUs = 0;
+            int frame = 0;
+            long lastQueueStatusMs = startMs;
+
+            while (!Thread.currentThread().isInterrupted()) {
+                // Send whichever stream is due next, in real time
+                boolean video = videoUs <= audioUs;
+                long dueUs = video ? videoUs : audioUs;
+
+                sleep(startMs + dueUs / 1000 - System.currentTimeMillis());
+
+                if (video) {
+                    boolean keyframe = frame % mConfig.gopLength == 0;
+
+                    send(new HtspMessage("muxpkt")
+                            .put("subscriptionId", subscriptionId)
+                            .put("stream", VIDEO_STREAM_INDEX)
+                            .put("frametype", keyframe ? (int) 'I' : (int) 'P')
+                            .put("pts", ptsBaseUs + videoUs)
+                            .put("dts", ptsBaseUs + videoUs)
+                            .put("duration", videoFrameUs)
+                            .put("payload", randomBytes(keyframe ? mConfig.videoPacketSize * 4 : mConfig.videoPacketSize)));
+
+                    videoUs += videoFrameUs;
+                    frame++;
+                } else {
+                    send(new HtspMessage("muxpkt")
+                            .put("subscriptionId", subscriptionId)
+                            .put("stream", AUDIO_STREAM_INDEX)
+                            .put("frametype", 0)
+                            .put("pts", ptsBaseUs + audioUs)
+                            .put("dts", ptsBaseUs + audioUs)
+                            .put("duration", audioFrameUs)
+                            .put("payload", randomBytes(mConfig.audioPacketSize)));
+
+                    audioUs += audioFrameUs;
+                }
+
+                long nowMs = System.currentTimeMillis();
+
+                if (nowMs - lastQueueStatusMs >= QUEUE_STATUS_INTERVAL_MS) {
+                    lastQueueStatusMs = nowMs;
+
+                    send(new HtspMessage("queueStatus")
+                            .put("subscriptionId", subscriptionId)
+                            .put("packets", 0)
+                            .put("bytes", 0)
+                            .put("delay", 0)
+                            .put("Bdrops", 0)
+                            .put("Pdrops", 0)
+                            .put("Idrops", 0));
+                }
+            }
+        }
+
+        private void send(HtspMessage message) throws IOException {
+            byte[] bytes = message.toBytes();
+
+            synchronized (this) {
+                OutputStream outputStream = mSocket.getOutputStream();
+                outputStream.write(bytes);
+                outputStream.flush();
+            }
+        }
+    }
+
+    private static byte[] digest(String password, byte[] challenge) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-1");
+            messageDigest.update(password.getBytes(UTF_8));
+
+            if (challenge != null) {
+                messageDigest.update(challenge);
+            }
+
+            return messageDigest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
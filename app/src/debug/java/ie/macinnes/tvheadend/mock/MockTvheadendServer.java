@@ -0,0 +1,495 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.mock;
+
+import android.net.Uri;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-process stand-in for a tvheadend server, serving a generated channel list and EPG.
+ *
+ * Implements just enough of the endpoints TVHClient uses: /api/serverinfo, /api/profile/list,
+ * /api/channel/grid, /api/epg/events/grid (including the start, limit, channel, start or
+ * channelNumber sort and numeric filter parameters) and channel icons under /imagecache/.
+ * Latency, errors and slow response bodies can be injected through the {@link Config}.
+ *
+ * Authentication isn't checked, any username and password are accepted.
+ */
+public class MockTvheadendServer {
+    private static final String TAG = MockTvheadendServer.class.getName();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // A 1x1 transparent PNG
+    private static final byte[] ICON = {
+            -119, 80, 78, 71, 13, 10, 26, 10, 0, 0, 0, 13,
+            73, 72, 68, 82, 0, 0, 0, 1, 0, 0, 0, 1,
+            8, 6, 0, 0, 0, 31, 21, -60, -119, 0, 0, 0,
+            11, 73, 68, 65, 84, 120, -100, 99, 96, 0, 2, 0,
+            0, 5, 0, 1, 122, 94, -85, 63, 0, 0, 0, 0,
+            73, 69, 78, 68, -82, 66, 96, -126
+    };
+
+    private static final int[] DURATIONS_MINUTES = {15, 30, 30, 60, 60, 60, 90, 120};
+
+    public static class Config {
+        public int channelCount = 100;
+        public int eventsPerChannel = 336;
+        // Added to every response
+        public int latencyMs = 0;
+        // Fraction of API requests which fail with a 500 error
+        public float errorRate = 0;
+        // Limits how quickly response bodies are written, 0 for no limit
+        public int bytesPerSecond = 0;
+        public long seed = 1;
+    }
+
+    private final Config mConfig;
+    private final Random mRandom;
+
+    private final long[][] mStartTimes;
+    private final long[][] mStopTimes;
+    // Every event, as {channel, event} pairs, ordered by start time
+    private final int[][] mEventsByStart;
+
+    private ServerSocket mServerSocket;
+    private ExecutorService mExecutor;
+
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mErrorCount = new AtomicInteger();
+
+    public MockTvheadendServer(Config config) {
+        mConfig = config;
+        mRandom = new Random(config.seed);
+
+        // The EPG starts an hour ago, so some events are always airing now
+        long now = System.currentTimeMillis() / 1000;
+        long epgStart = now - (now % 3600) - 3600;
+
+        mStartTimes = new long[config.channelCount][config.eventsPerChannel];
+        mStopTimes = new long[config.channelCount][config.eventsPerChannel];
+        mEventsByStart = new int[config.channelCount * config.eventsPerChannel][];
+
+        int i = 0;
+
+        for (int channel = 0; channel < config.channelCount; channel++) {
+            long start = epgStart;
+
+            for (int event = 0; event < config.eventsPerChannel; event++) {
+                long duration = DURATIONS_MINUTES[mRandom.nextInt(DURATIONS_MINUTES.length)] * 60;
+
+                mStartTimes[channel][event] = start;
+                mStopTimes[channel][event] = start + duration;
+                mEventsByStart[i++] = new int[] {channel, event};
+
+                start += duration;
+            }
+        }
+
+        Arrays.sort(mEventsByStart, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] lhs, int[] rhs) {
+                return Long.compare(mStartTimes[lhs[0]][lhs[1]], mStartTimes[rhs[0]][rhs[1]]);
+            }
+        });
+    }
+
+    public void start() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mExecutor = Executors.newCachedThreadPool();
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        });
+
+        Log.d(TAG, "Listening on port " + getPort());
+    }
+
+    public void stop() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close server socket", e);
+        }
+
+        mExecutor.shutdownNow();
+    }
+
+    public String getHostname() {
+        return "127.0.0.1";
+    }
+
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    public int getEventCount() {
+        return mEventsByStart.length;
+    }
+
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    public int getErrorCount() {
+        return mErrorCount.get();
+    }
+
+    private void acceptConnections() {
+        while (!mServerSocket.isClosed()) {
+            final Socket socket;
+
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                // Closed by stop()
+                return;
+            }
+
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handleConnection(socket);
+                }
+            });
+        }
+    }
+
+    private void handleConnection(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF_8));
+            String requestLine = reader.readLine();
+
+            if (requestLine == null) {
+                return;
+            }
+
+            // Skip the headers, nothing we serve depends on them
+            String header;
+            do {
+                header = reader.readLine();
+            } while (header != null && !header.isEmpty());
+
+            String[] parts = requestLine.split(" ");
+            Uri uri = Uri.parse(parts.length > 1 ? parts[1] : "/");
+
+            handleRequest(uri, socket.getOutputStream());
+        } catch (SocketException e) {
+            // The client went away
+        } catch (IOException | InterruptedException e) {
+            Log.w(TAG, "Failed to handle request", e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing more we can do
+            }
+        }
+    }
+
+    private void handleRequest(Uri uri, OutputStream outputStream) throws IOException, InterruptedException {
+        mRequestCount.incrementAndGet();
+
+        if (mConfig.latencyMs > 0) {
+            Thread.sleep(mConfig.latencyMs);
+        }
+
+        String path = uri.getPath();
+
+        if (path == null) {
+            writeResponse(outputStream, 404, "text/plain", "Not Found".getBytes(UTF_8));
+            return;
+        }
+
+        if (path.startsWith("/imagecache/")) {
+            writeResponse(outputStream, 200, "image/png", ICON);
+            return;
+        }
+
+        if (mConfig.errorRate > 0 && nextErrorRoll() < mConfig.errorRate) {
+            mErrorCount.incrementAndGet();
+            writeResponse(outputStream, 500, "text/plain", "Internal Server Error".getBytes(UTF_8));
+            return;
+        }
+
+        String body;
+
+        try {
+            switch (path) {
+                case "/api/serverinfo":
+                    body = serverInfo();
+                    break;
+                case "/api/profile/list":
+                    body = profileList();
+                    break;
+                case "/api/channel/grid":
+                    body = channelGrid(uri);
+                    break;
+                case "/api/epg/events/grid":
+                    body = eventGrid(uri);
+                    break;
+                default:
+                    writeResponse(outputStream, 404, "text/plain", "Not Found".getBytes(UTF_8));
+                    return;
+            }
+        } catch (JSONException | NumberFormatException e) {
+            writeResponse(outputStream, 400, "text/plain", e.toString().getBytes(UTF_8));
+            return;
+        }
+
+        writeResponse(outputStream, 200, "application/json; charset=UTF-8", body.getBytes(UTF_8));
+    }
+
+    private synchronized float nextErrorRoll() {
+        return mRandom.nextFloat();
+    }
+
+    private void writeResponse(OutputStream outputStream, int status, String contentType, byte[] body) throws IOException, InterruptedException {
+        String headers = "HTTP/1.1 " + status + " " + (status == 200 ? "OK" : "Error") + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Connection: close\r\n"
+                + "\r\n";
+
+        outputStream.write(headers.getBytes(UTF_8));
+
+        if (mConfig.bytesPerSecond <= 0) {
+            outputStream.write(body);
+        } else {
+            // Write the body in 10 chunks a second
+            int chunkSize = Math.max(mConfig.bytesPerSecond / 10, 1);
+
+            for (int offset = 0; offset < body.length; offset += chunkSize) {
+                outputStream.write(body, offset, Math.min(chunkSize, body.length - offset));
+                outputStream.flush();
+                Thread.sleep(100);
+            }
+        }
+
+        outputStream.flush();
+    }
+
+    private String serverInfo() throws JSONException {
+        JSONObject serverInfo = new JSONObject();
+        serverInfo.put("sw_version", "4.1-mock");
+        serverInfo.put("api_version", 15);
+        serverInfo.put("name", "Mock Tvheadend");
+        serverInfo.put("capabilities", new JSONArray());
+
+        return serverInfo.toString();
+    }
+
+    private String profileList() throws JSONException {
+        JSONArray entries = new JSONArray();
+
+        for (String profile : new String[] {"pass", "matroska", "htsp"}) {
+            JSONObject entry = new JSONObject();
+            entry.put("key", uuid(profile.hashCode()));
+            entry.put("val", profile);
+            entries.put(entry);
+        }
+
+        return new JSONObject().put("entries", entries).toString();
+    }
+
+    private String channelGrid(Uri uri) {
+        int start = intParameter(uri, "start", 0);
+        int limit = intParameter(uri, "limit", 50);
+
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\"entries\":[");
+
+        for (int channel = start; channel < mConfig.channelCount && channel < start + limit; channel++) {
+            if (channel > start) {
+                builder.append(',');
+            }
+
+            builder.append("{\"uuid\":\"").append(channelUuid(channel)).append('"')
+                    .append(",\"enabled\":true")
+                    .append(",\"name\":\"Mock Channel ").append(channel + 1).append('"')
+                    .append(",\"number\":").append(channel + 1)
+                    .append(",\"icon_public_url\":\"imagecache/").append(channel + 1).append('"')
+                    .append('}');
+        }
+
+        builder.append("],\"total\":").append(mConfig.channelCount).append('}');
+
+        return builder.toString();
+    }
+
+    private String eventGrid(Uri uri) throws JSONException {
+        int start = intParameter(uri, "start", 0);
+        int limit = intParameter(uri, "limit", 50);
+        String channelUuid = uri.getQueryParameter("channel");
+        EventFilter filter = EventFilter.fromJson(uri.getQueryParameter("filter"));
+
+        // Gather the matching events, in start time order, or by channel should that be asked for
+        List<int[]> events = new ArrayList<>();
+
+        if (channelUuid == null && "channelNumber".equals(uri.getQueryParameter("sort"))) {
+            for (int channel = 0; channel < mConfig.channelCount; channel++) {
+                for (int event = 0; event < mConfig.eventsPerChannel; event++) {
+                    if (filter.matches(mStartTimes[channel][event], mStopTimes[channel][event])) {
+                        events.add(new int[] {channel, event});
+                    }
+                }
+            }
+        } else if (channelUuid != null) {
+            int channel = channelIndex(channelUuid);
+
+            for (int event = 0; channel >= 0 && event < mConfig.eventsPerChannel; event++) {
+                if (filter.matches(mStartTimes[channel][event], mStopTimes[channel][event])) {
+                    events.add(new int[] {channel, event});
+                }
+            }
+        } else {
+            for (int[] event : mEventsByStart) {
+                if (filter.matches(mStartTimes[event[0]][event[1]], mStopTimes[event[0]][event[1]])) {
+                    events.add(event);
+                }
+            }
+        }
+
+        StringBuilder builder = new StringBuilder(Math.min(limit, events.size()) * 512);
+        builder.append("{\"entries\":[");
+
+        for (int i = start; i < events.size() && i < start + limit; i++) {
+            if (i > start) {
+                builder.append(',');
+            }
+            appendEvent(builder, events.get(i)[0], events.get(i)[1]);
+        }
+
+        builder.append("],\"totalCount\":").append(events.size()).append('}');
+
+        return builder.toString();
+    }
+
+    private void appendEvent(StringBuilder builder, int channel, int event) {
+        int eventId = channel * mConfig.eventsPerChannel + event + 1;
+
+        builder.append("{\"eventId\":").append(eventId)
+                .append(",\"channelName\":\"Mock Channel ").append(channel + 1).append('"')
+                .append(",\"channelUuid\":\"").append(channelUuid(channel)).append('"')
+                .append(",\"channelNumber\":\"").append(channel + 1).append('"')
+                .append(",\"start\":").append(mStartTimes[channel][event])
+                .append(",\"stop\":").append(mStopTimes[channel][event])
+                .append(",\"title\":\"Program ").append(eventId).append('"')
+                .append(",\"subtitle\":\"Episode ").append(event + 1).append('"')
+                .append(",\"summary\":\"A short summary of program ").append(eventId).append(".\"")
+                .append(",\"description\":\"A longer description of program ").append(eventId)
+                .append(", on mock channel ").append(channel + 1)
+                .append(". It goes on for a while, as real descriptions tend to, so the responses")
+                .append(" are about the size of a real server's.\"")
+                .append(",\"seasonNumber\":").append(1 + event / 10)
+                .append(",\"episodeNumber\":").append(1 + event % 10);
+
+        if (event + 1 < mConfig.eventsPerChannel) {
+            builder.append(",\"nextEventId\":").append(eventId + 1);
+        }
+
+        builder.append('}');
+    }
+
+    public static String channelUuid(int channel) {
+        return uuid(channel + 1);
+    }
+
+    private int channelIndex(String channelUuid) {
+        try {
+            int channel = Integer.parseInt(channelUuid, 16) - 1;
+            return channel < mConfig.channelCount ? channel : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String uuid(int value) {
+        return String.format("%032x", value);
+    }
+
+    private static int intParameter(Uri uri, String name, int defaultValue) {
+        String value = uri.getQueryParameter(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    /**
+     * The subset of tvheadend's grid filters we need, numeric comparisons on start and stop.
+     */
+    private static class EventFilter {
+        private long mMinStart = Long.MIN_VALUE;
+        private long mMaxStart = Long.MAX_VALUE;
+        private long mMinStop = Long.MIN_VALUE;
+        private long mMaxStop = Long.MAX_VALUE;
+
+        public static EventFilter fromJson(String json) throws JSONException {
+            EventFilter filter = new EventFilter();
+
+            if (json == null) {
+                return filter;
+            }
+
+            JSONArray filters = new JSONArray(json);
+
+            for (int i = 0; i < filters.length(); i++) {
+                JSONObject entry = filters.getJSONObject(i);
+                String field = entry.getString("field");
+                String comparison = entry.getString("comparison");
+                long value = entry.getLong("value");
+
+                if ("start".equals(field) && "gt".equals(comparison)) {
+                    filter.mMinStart = value;
+                } else if ("start".equals(field) && "lt".equals(comparison)) {
+                    filter.mMaxStart = value;
+                } else if ("stop".equals(field) && "gt".equals(comparison)) {
+                    filter.mMinStop = value;
+                } else if ("stop".equals(field) && "lt".equals(comparison)) {
+                    filter.mMaxStop = value;
+                }
+            }
+
+            return filter;
+        }
+
+        public boolean matches(long start, long stop) {
+            return start > mMinStart && start < mMaxStart && stop > mMinStop && stop < mMaxStop;
+        }
+    }
+}
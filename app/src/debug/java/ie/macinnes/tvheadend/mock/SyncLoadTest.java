@@ -0,0 +1,249 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.mock;
+
+import android.accounts.Account;
+import android.content.ContentProviderOperation;
+import android.content.Context;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import ie.macinnes.tvheadend.Constants;
+import ie.macinnes.tvheadend.client.GridStreamParser;
+import ie.macinnes.tvheadend.client.TVHClient;
+import ie.macinnes.tvheadend.model.Program;
+import ie.macinnes.tvheadend.model.ProgramList;
+import ie.macinnes.tvheadend.sync.ProgramsDiffer;
+import ie.macinnes.tvheadend.sync.SyncUtils;
+
+/**
+ * Runs the program sync's fetch and diff stages against a {@link MockTvheadendServer}.
+ *
+ * Each iteration fetches the sync window's events with the same TVHClient call SyncAdapter's full
+ * bulk fetch makes, splits them up by channel, then diffs each channel against the previous
+ * iteration's programs, as if they were stored in TvProvider. Nothing is written to TvProvider.
+ */
+public class SyncLoadTest {
+    private static final int MAX_ATTEMPTS = 3;
+
+    public interface Listener {
+        void onProgress(String message);
+    }
+
+    private final Context mContext;
+    private final MockTvheadendServer.Config mConfig;
+    private final int mIterations;
+    private final Listener mListener;
+
+    private final Account mAccount = new Account("mock", Constants.ACCOUNT_TYPE);
+
+    // Stands in for the channel row IDs, these need to be stable between iterations
+    private final Map<String, Long> mChannelIds = new HashMap<>();
+
+    public SyncLoadTest(Context context, MockTvheadendServer.Config config, int iterations, Listener listener) {
+        mContext = context;
+        mConfig = config;
+        mIterations = iterations;
+        mListener = listener;
+    }
+
+    public void run() throws IOException, InterruptedException {
+        MockTvheadendServer server = new MockTvheadendServer(mConfig);
+        server.start();
+
+        try {
+            run(server);
+        } finally {
+            server.stop();
+        }
+    }
+
+    private void run(MockTvheadendServer server) throws InterruptedException {
+        // A client of our own, so the app's shared client is left as is
+        TVHClient client = new TVHClient(mContext);
+        client.setConnectionInfo(server.getHostname(), Integer.toString(server.getPort()), null, "mock", "mock");
+
+        mListener.onProgress("Mock server: " + mConfig.channelCount + " channels, "
+                + server.getEventCount() + " events, " + mConfig.latencyMs + "ms latency, "
+                + mConfig.errorRate + " error rate, " + mConfig.bytesPerSecond + " bytes/s");
+
+        Map<String, ProgramList> oldProgramLists = new HashMap<>();
+
+        for (int iteration = 1; iteration <= mIterations; iteration++) {
+            ArrayList<Long> latencies = new ArrayList<>();
+            int[] failures = new int[1];
+
+            // Fetch
+            long fetchStart = SystemClock.elapsedRealtime();
+            Map<String, ProgramList> programLists = fetch(client, latencies, failures);
+            long fetchTimeMs = SystemClock.elapsedRealtime() - fetchStart;
+
+            if (programLists == null) {
+                mListener.onProgress("Iteration " + iteration + ": fetch failed after " + failures[0] + " errors");
+                return;
+            }
+
+            int eventCount = 0;
+            for (ProgramList programList : programLists.values()) {
+                eventCount += programList.size();
+            }
+
+            // Diff
+            long diffStart = SystemClock.elapsedRealtime();
+            final int[] operations = new int[1];
+
+            ProgramsDiffer.BatchListener batchListener = new ProgramsDiffer.BatchListener() {
+                @Override
+                public void onBatch(ArrayList<ContentProviderOperation> ops) {
+                    operations[0] += ops.size();
+                }
+            };
+
+            for (Map.Entry<String, ProgramList> entry : programLists.entrySet()) {
+                ProgramList oldProgramList = oldProgramLists.get(entry.getKey());
+                new ProgramsDiffer().diff(
+                        oldProgramList != null ? oldProgramList : new ProgramList(),
+                        entry.getValue(), batchListener);
+            }
+
+            long diffTimeMs = SystemClock.elapsedRealtime() - diffStart;
+
+            // Treat this iteration's programs as stored, ready for the next
+            long programId = 1;
+            for (ProgramList programList : programLists.values()) {
+                for (Program program : programList) {
+                    program.setProgramId(programId++);
+                }
+            }
+            oldProgramLists = programLists;
+
+            mListener.onProgress("Iteration " + iteration + ": "
+                    + eventCount + " events, "
+                    + latencies.size() + " requests, "
+                    + failures[0] + " failed");
+            mListener.onProgress("  Fetch: " + fetchTimeMs + "ms, "
+                    + perSecond(eventCount, fetchTimeMs) + " events/s");
+            mListener.onProgress("  Diff: " + diffTimeMs + "ms, "
+                    + perSecond(eventCount, diffTimeMs) + " events/s, "
+                    + operations[0] + " operations");
+            mListener.onProgress("  Request latency: " + formatPercentiles(latencies));
+        }
+    }
+
+    /**
+     * Fetches the sync window's events as SyncAdapter's full bulk fetch does. Should the fetch
+     * fail it's retried from the start, as a failed page may have streamed some of its events
+     * before failing.
+     */
+    private Map<String, ProgramList> fetch(TVHClient client, final ArrayList<Long> latencies, int[] failures) throws InterruptedException {
+        final Map<String, ProgramList> programLists = new HashMap<>();
+
+        GridStreamParser.EntryListener<TVHClient.Event> entryListener = new GridStreamParser.EntryListener<TVHClient.Event>() {
+            @Override
+            public void onEntry(TVHClient.Event event) {
+                ProgramList programList = programLists.get(event.channelUuid);
+
+                if (programList == null) {
+                    programList = new ProgramList();
+                    programLists.put(event.channelUuid, programList);
+                }
+
+                Long channelId = mChannelIds.get(event.channelUuid);
+
+                if (channelId == null) {
+                    channelId = (long) mChannelIds.size() + 1;
+                    mChannelIds.put(event.channelUuid, channelId);
+                }
+
+                programList.add(Program.fromClientEvent(event, channelId, mAccount));
+            }
+        };
+
+        final long[] pageStart = new long[1];
+
+        TVHClient.PageListener pageListener = new TVHClient.PageListener() {
+            @Override
+            public void onPage() {
+                long now = SystemClock.elapsedRealtime();
+                latencies.add(now - pageStart[0]);
+                pageStart[0] = now;
+            }
+        };
+
+        long now = System.currentTimeMillis();
+        long minStopTime = (now - SyncUtils.getProgramRetentionMillis(mContext)) / 1000;
+        long maxStartTime = (now + SyncUtils.getSyncWindowMillis(mContext, false)) / 1000;
+
+        for (int attempt = 1; ; attempt++) {
+            pageStart[0] = SystemClock.elapsedRealtime();
+
+            try {
+                client.streamEventsByChannel(minStopTime, maxStartTime, entryListener, pageListener);
+                break;
+            } catch (ExecutionException | TimeoutException e) {
+                latencies.add(SystemClock.elapsedRealtime() - pageStart[0]);
+                failures[0]++;
+
+                // Whatever the failed page streamed would otherwise be duplicated by the retry
+                programLists.clear();
+
+                if (attempt >= MAX_ATTEMPTS) {
+                    return null;
+                }
+            }
+        }
+
+        for (ProgramList programList : programLists.values()) {
+            Collections.sort(programList);
+        }
+
+        return programLists;
+    }
+
+    private static long perSecond(int count, long timeMs) {
+        return timeMs > 0 ? count * 1000L / timeMs : count;
+    }
+
+    private static String formatPercentiles(ArrayList<Long> samples) {
+        if (samples.isEmpty()) {
+            return "no samples";
+        }
+
+        long[] sorted = new long[samples.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = samples.get(i);
+        }
+        Arrays.sort(sorted);
+
+        return "p50 " + percentile(sorted, 50) + "ms"
+                + ", p90 " + percentile(sorted, 90) + "ms"
+                + ", p99 " + percentile(sorted, 99) + "ms"
+                + ", max " + sorted[sorted.length - 1] + "ms";
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        // Nearest rank
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(rank - 1, 0)];
+    }
+}
@@ -0,0 +1,216 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.mock;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import ie.macinnes.tvheadend.tvinput.TsKeyframeBuffer;
+
+/**
+ * Hands a {@link TsKeyframeBuffer} over part way through a synthetic MPEG-TS stream.
+ *
+ * The stream is written in chunks which seldom end on a packet boundary, as reads from the
+ * network do. At each hand over, the buffer followed by the rest of the stream must be whole
+ * packets, starting with the PAT, PMT and a keyframe, or the player's extractor loses sync.
+ */
+public class TsHandoverTest {
+    private static final int PACKET_SIZE = TsKeyframeBuffer.PACKET_SIZE;
+    private static final int SYNC_BYTE = 0x47;
+
+    private static final int PMT_PID = 0x100;
+    private static final int VIDEO_PID = 0x101;
+    private static final int AUDIO_PID = 0x102;
+
+    private static final int STREAM_TYPE_H264 = 0x1b;
+    private static final int STREAM_TYPE_MPEG_AUDIO = 0x04;
+
+    private static final int PACKET_COUNT = 2000;
+    private static final int KEYFRAME_INTERVAL = 150;
+    private static final int MAX_CHUNK_SIZE = 4 * PACKET_SIZE;
+
+    public interface Listener {
+        void onProgress(String message);
+    }
+
+    private final int mHandovers;
+    private final Listener mListener;
+    private final Random mRandom = new Random();
+
+    public TsHandoverTest(int handovers, Listener listener) {
+        mHandovers = handovers;
+        mListener = listener;
+    }
+
+    /**
+     * @return whether every hand over produced a stream the player can follow
+     */
+    public boolean run() {
+        byte[] stream = buildStream();
+        boolean ok = true;
+
+        for (int i = 0; i < mHandovers; i++) {
+            // Leave room for a keyframe to arrive before handing over
+            int handover = (2 * KEYFRAME_INTERVAL * PACKET_SIZE)
+                    + mRandom.nextInt(stream.length - (2 * KEYFRAME_INTERVAL * PACKET_SIZE));
+
+            ok &= checkHandover(stream, handover);
+        }
+
+        return ok;
+    }
+
+    private boolean checkHandover(byte[] stream, int handover) {
+        TsKeyframeBuffer buffer = new TsKeyframeBuffer(stream.length);
+
+        int offset = 0;
+        while (offset < handover) {
+            int count = Math.min(1 + mRandom.nextInt(MAX_CHUNK_SIZE), handover - offset);
+            buffer.write(stream, offset, count);
+            offset += count;
+        }
+
+        if (!buffer.hasKeyframe()) {
+            mListener.onProgress("No keyframe by byte " + handover);
+            return false;
+        }
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffered = buffer.toByteArray();
+        outputStream.write(buffered, 0, buffered.length);
+        outputStream.write(stream, handover, stream.length - handover);
+        byte[] played = outputStream.toByteArray();
+
+        if (played.length % PACKET_SIZE != 0) {
+            mListener.onProgress("Hand over at byte " + handover + " left "
+                    + (played.length % PACKET_SIZE) + " stray bytes");
+            return false;
+        }
+
+        for (int i = 0; i < played.length; i += PACKET_SIZE) {
+            if ((played[i] & 0xff) != SYNC_BYTE) {
+                mListener.onProgress("Hand over at byte " + handover + " lost sync at packet "
+                        + (i / PACKET_SIZE));
+                return false;
+            }
+        }
+
+        if (getPid(played, 0) != 0 || getPid(played, PACKET_SIZE) != PMT_PID
+                || getPid(played, 2 * PACKET_SIZE) != VIDEO_PID
+                || !isRandomAccess(played, 2 * PACKET_SIZE)) {
+            mListener.onProgress("Hand over at byte " + handover
+                    + " didn't start with the PAT, PMT and a keyframe");
+            return false;
+        }
+
+        mListener.onProgress("Hand over at byte " + handover + ": " + buffered.length
+                + " bytes buffered, " + (played.length / PACKET_SIZE) + " packets played");
+        return true;
+    }
+
+    private byte[] buildStream() {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(
+                PACKET_COUNT * PACKET_SIZE);
+
+        for (int i = 0; i < PACKET_COUNT; i++) {
+            byte[] packet;
+
+            if (i % KEYFRAME_INTERVAL == 0) {
+                outputStream.write(buildPat(), 0, PACKET_SIZE);
+                outputStream.write(buildPmt(), 0, PACKET_SIZE);
+                packet = buildPayloadPacket(VIDEO_PID, true);
+            } else if (i % 4 == 0) {
+                packet = buildPayloadPacket(AUDIO_PID, false);
+            } else {
+                packet = buildPayloadPacket(VIDEO_PID, false);
+            }
+
+            outputStream.write(packet, 0, PACKET_SIZE);
+        }
+
+        return outputStream.toByteArray();
+    }
+
+    private static byte[] buildPat() {
+        byte[] packet = newPacket(0, true);
+
+        // Pointer field, then a single program section. The CRC is left zeroed.
+        byte[] section = {
+                0x00, // Pointer field
+                0x00, (byte) 0xb0, 13, // Table ID, section length
+                0x00, 0x01, (byte) 0xc1, 0x00, 0x00, // TS ID, version, section numbers
+                0x00, 0x01, (byte) (0xe0 | (PMT_PID >> 8)), (byte) PMT_PID, // Program 1
+                0x00, 0x00, 0x00, 0x00, // CRC
+        };
+        System.arraycopy(section, 0, packet, 4, section.length);
+
+        return packet;
+    }
+
+    private static byte[] buildPmt() {
+        byte[] packet = newPacket(PMT_PID, true);
+
+        byte[] section = {
+                0x00, // Pointer field
+                0x02, (byte) 0xb0, 23, // Table ID, section length
+                0x00, 0x01, (byte) 0xc1, 0x00, 0x00, // Program number, version, section numbers
+                (byte) (0xe0 | (VIDEO_PID >> 8)), (byte) VIDEO_PID, // PCR PID
+                (byte) 0xf0, 0x00, // Program info length
+                STREAM_TYPE_H264, (byte) (0xe0 | (VIDEO_PID >> 8)), (byte) VIDEO_PID,
+                (byte) 0xf0, 0x00,
+                STREAM_TYPE_MPEG_AUDIO, (byte) (0xe0 | (AUDIO_PID >> 8)), (byte) AUDIO_PID,
+                (byte) 0xf0, 0x00,
+                0x00, 0x00, 0x00, 0x00, // CRC
+        };
+        System.arraycopy(section, 0, packet, 4, section.length);
+
+        return packet;
+    }
+
+    private static byte[] buildPayloadPacket(int pid, boolean randomAccess) {
+        byte[] packet = newPacket(pid, randomAccess);
+
+        if (randomAccess) {
+            // Adaptation field followed by payload, flagging the random access point
+            packet[3] = 0x30;
+            packet[4] = 1;
+            packet[5] = 0x40;
+        }
+
+        return packet;
+    }
+
+    private static byte[] newPacket(int pid, boolean payloadUnitStart) {
+        byte[] packet = new byte[PACKET_SIZE];
+        Arrays.fill(packet, (byte) 0xff);
+
+        packet[0] = SYNC_BYTE;
+        packet[1] = (byte) ((payloadUnitStart ? 0x40 : 0x00) | ((pid >> 8) & 0x1f));
+        packet[2] = (byte) pid;
+        packet[3] = 0x10; // Payload only
+
+        return packet;
+    }
+
+    private static int getPid(byte[] data, int offset) {
+        return ((data[offset + 1] & 0x1f) << 8) | (data[offset + 2] & 0xff);
+    }
+
+    private static boolean isRandomAccess(byte[] data, int offset) {
+        return (data[offset + 3] & 0x20) != 0 && (data[offset + 4] & 0xff) > 0
+                && (data[offset + 5] & 0x40) != 0;
+    }
+}
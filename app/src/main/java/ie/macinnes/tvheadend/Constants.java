@@ -28,18 +28,22 @@ public class Constants {
 
     // Preferences Files and Keys
     public static final String PREFERENCE_TVHEADEND = "tvheadend";
+    public static final String PREFERENCE_SYNC_STATE = "tvheadend-sync-state";
+    public static final String PREFERENCE_LOGO_MANIFEST = "tvheadend-logo-manifest";
 
     // Session Selection Preference Keys and Values
     public static final String KEY_SESSION = "SESSION";
     public static final String SESSION_MEDIA_PLAYER = "SESSION-MEDIA-PLAYER";
     public static final String SESSION_EXO_PLAYER = "SESSION-EXO-PLAYER";
     public static final String SESSION_VLC = "SESSION-VLC";
+    public static final String SESSION_HTSP = "SESSION-HTSP";
 
     // Bundle and Preference Keys
     public static final String KEY_APP_VERSION = "APP-VERSION";
     public static final String KEY_HOSTNAME = "HOSTNAME";
     public static final String KEY_HTTP_PORT = "HTTP-PORT";
     public static final String KEY_HTTP_PATH = "HTTP-PATH";
+    public static final String KEY_HTSP_PORT = "HTSP-PORT";
     public static final String KEY_USERNAME = "USERNAME";
     public static final String KEY_PASSWORD = "PASSWORD";
     public static final String KEY_ERROR_MESSAGE = "ERROR-MESSAGE";
@@ -77,4 +81,12 @@ public class Constants {
 
     // Network Buffering Preferences Keys and Values
     public static final String KEY_NETWORK_BUFFER = "NETWORK-BUFFER";
+
+    // EPG Sync Window Preferences Keys, all in hours
+    public static final String KEY_SYNC_WINDOW = "SYNC-WINDOW";
+    public static final String KEY_PROGRAM_RETENTION = "PROGRAM-RETENTION";
+
+    // Zap Acceleration Preferences Keys
+    public static final String KEY_ZAP_ACCELERATION_ENABLED = "ZAP-ACCELERATION-ENABLED";
+    public static final String KEY_ZAP_MAX_SUBSCRIPTIONS = "ZAP-MAX-SUBSCRIPTIONS";
 }
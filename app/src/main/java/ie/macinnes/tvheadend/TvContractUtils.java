@@ -14,8 +14,10 @@ under the License.
 */
 package ie.macinnes.tvheadend;
 
+import android.accounts.Account;
 import android.content.ComponentName;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
 import android.media.tv.TvContract;
@@ -30,10 +32,38 @@ import ie.macinnes.tvheadend.model.Channel;
 import ie.macinnes.tvheadend.model.ChannelList;
 import ie.macinnes.tvheadend.model.Program;
 import ie.macinnes.tvheadend.model.ProgramList;
+import ie.macinnes.tvheadend.model.ProgramRow;
 
 public class TvContractUtils {
     private static final String TAG = TvContractUtils.class.getName();
 
+    // Just enough of each program to diff it against a freshly synced one, the content hash
+    // lives in the internal provider data.
+    public static final String[] PROGRAM_SYNC_PROJECTION = {
+            TvContract.Programs._ID,
+            TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS,
+            TvContract.Programs.COLUMN_END_TIME_UTC_MILLIS,
+            TvContract.Programs.COLUMN_INTERNAL_PROVIDER_DATA
+    };
+
+    // Enough of each program to list it, without the descriptions
+    public static final String[] PROGRAM_SUMMARY_PROJECTION = {
+            TvContract.Programs._ID,
+            TvContract.Programs.COLUMN_CHANNEL_ID,
+            TvContract.Programs.COLUMN_TITLE,
+            TvContract.Programs.COLUMN_EPISODE_TITLE,
+            TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS,
+            TvContract.Programs.COLUMN_END_TIME_UTC_MILLIS,
+            TvContract.Programs.COLUMN_INTERNAL_PROVIDER_DATA
+    };
+
+    public interface ProgramRowVisitor {
+        /**
+         * @return false to stop visiting rows
+         */
+        boolean visit(ProgramRow row);
+    }
+
     public static String getInputId() {
         ComponentName componentName = new ComponentName(
                 "ie.macinnes.tvheadend",
@@ -61,6 +91,25 @@ public class TvContractUtils {
         }
     }
 
+    /**
+     * @return the channels synced from account, the projection must include the internal provider
+     *         data. Channels from before the account was recorded belong to every account.
+     */
+    public static ChannelList getChannels(Context context, String[] projection, Account account) {
+        ChannelList channelList = new ChannelList();
+
+        for (Channel channel : getChannels(context, projection)) {
+            Channel.InternalProviderData providerData = channel.getInternalProviderData();
+            String accountName = providerData != null ? providerData.getAccountName() : null;
+
+            if (accountName == null || accountName.equals(account.name)) {
+                channelList.add(channel);
+            }
+        }
+
+        return channelList;
+    }
+
     public static void removeChannels(Context context) {
         Uri channelsUri = TvContract.buildChannelsUriForInput(getInputId());
 
@@ -77,17 +126,115 @@ public class TvContractUtils {
         }
     }
 
-    public static ProgramList getPrograms(Context context, Channel channel) {
-        Uri channelUri = TvContract.buildChannelUri(channel.getId());
-        Uri programsUri = TvContract.buildProgramsUriForChannel(channelUri);
+    /**
+     * Deletes all of our programs which ended before endTimeUtcMillis.
+     *
+     * @return the number of programs deleted
+     */
+    public static int removeProgramsEndedBefore(Context context, long endTimeUtcMillis) {
+        ContentResolver resolver = context.getContentResolver();
+
+        // TvProvider limits this to our own programs
+        return resolver.delete(TvContract.Programs.CONTENT_URI,
+                TvContract.Programs.COLUMN_END_TIME_UTC_MILLIS + " < ?",
+                new String[] {Long.toString(endTimeUtcMillis)});
+    }
+
+    /**
+     * Visits a channel's programs which overlap the window [startTimeUtcMillis, endTimeUtcMillis),
+     * in start time order. Pass 0 for either bound to leave that side of the window open.
+     *
+     * @param projection The program columns to fetch, or null for all of them
+     */
+    public static void queryPrograms(Context context, long channelId, String[] projection, long startTimeUtcMillis, long endTimeUtcMillis, ProgramRowVisitor visitor) {
+        Uri programsUri = TvContract.buildProgramsUriForChannel(channelId);
 
         ContentResolver resolver = context.getContentResolver();
 
-        try (Cursor cursor = resolver.query(programsUri, null, null, null, null)) {
-            return ProgramList.fromCursor(cursor);
+        String selection = null;
+        String[] selectionArgs = null;
+
+        if (startTimeUtcMillis > 0 && endTimeUtcMillis > 0) {
+            selection = TvContract.Programs.COLUMN_END_TIME_UTC_MILLIS + " > ? AND "
+                    + TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS + " < ?";
+            selectionArgs = new String[] {Long.toString(startTimeUtcMillis), Long.toString(endTimeUtcMillis)};
+        } else if (startTimeUtcMillis > 0) {
+            selection = TvContract.Programs.COLUMN_END_TIME_UTC_MILLIS + " > ?";
+            selectionArgs = new String[] {Long.toString(startTimeUtcMillis)};
+        } else if (endTimeUtcMillis > 0) {
+            selection = TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS + " < ?";
+            selectionArgs = new String[] {Long.toString(endTimeUtcMillis)};
+        }
+
+        String sortOrder = TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS + " ASC";
+
+        try (Cursor cursor = resolver.query(programsUri, projection, selection, selectionArgs, sortOrder)) {
+            if (cursor == null) {
+                return;
+            }
+
+            ProgramRow row = new ProgramRow(cursor);
+
+            while (cursor.moveToNext()) {
+                if (!visitor.visit(row)) {
+                    return;
+                }
+            }
         }
     }
 
+    /**
+     * Fetches a channel's programs which overlap the window [startTimeUtcMillis, endTimeUtcMillis),
+     * in start time order. Pass 0 for either bound to leave that side of the window open.
+     *
+     * @param projection The program columns to fetch, or null for all of them
+     */
+    public static ProgramList getPrograms(Context context, Channel channel, String[] projection, long startTimeUtcMillis, long endTimeUtcMillis) {
+        final ProgramList programList = new ProgramList();
+
+        queryPrograms(context, channel.getId(), projection, startTimeUtcMillis, endTimeUtcMillis, new ProgramRowVisitor() {
+            @Override
+            public boolean visit(ProgramRow row) {
+                programList.add(row.toProgram());
+                return true;
+            }
+        });
+
+        return programList;
+    }
+
+    public static ProgramList getPrograms(Context context, Channel channel) {
+        return getPrograms(context, channel, null, 0, 0);
+    }
+
+    /**
+     * Fetches the ID, start/end times and internal provider data of a channel's programs,
+     * optionally only those still running at or after startTimeUtcMillis, and starting before
+     * endTimeUtcMillis.
+     */
+    public static ProgramList getProgramsForSync(Context context, Channel channel, long startTimeUtcMillis, long endTimeUtcMillis) {
+        return getPrograms(context, channel, PROGRAM_SYNC_PROJECTION, startTimeUtcMillis, endTimeUtcMillis);
+    }
+
+    public static Program getProgramStartingAt(Context context, Channel channel, final long startTimeUtcMillis) {
+        final Program[] program = new Program[1];
+
+        // Programs overlapping the first millisecond of startTimeUtcMillis
+        queryPrograms(context, channel.getId(), PROGRAM_SYNC_PROJECTION, startTimeUtcMillis, startTimeUtcMillis + 1, new ProgramRowVisitor() {
+            @Override
+            public boolean visit(ProgramRow row) {
+                if (row.getStartTimeUtcMillis() != startTimeUtcMillis) {
+                    return true;
+                }
+
+                program[0] = row.toProgram();
+                return false;
+            }
+        });
+
+        return program[0];
+    }
+
     public static ProgramList getPrograms(Context context, Uri channelUri) {
         return getPrograms(context, getChannelFromChannelUri(context, channelUri));
     }
@@ -112,18 +259,18 @@ public class TvContractUtils {
     }
 
     public static Program getCurrentProgram(Context context, Uri channelUri) {
-        ContentResolver resolver = context.getContentResolver();
-
-        ProgramList programs = getPrograms(context, channelUri);
+        final Program[] program = new Program[1];
 
         long nowMs = System.currentTimeMillis();
 
-        for (Program program : programs) {
-            if (program.getStartTimeUtcMillis() <= nowMs && program.getEndTimeUtcMillis() > nowMs) {
-                return program;
+        queryPrograms(context, ContentUris.parseId(channelUri), null, nowMs, nowMs + 1, new ProgramRowVisitor() {
+            @Override
+            public boolean visit(ProgramRow row) {
+                program[0] = row.toProgram();
+                return false;
             }
-        }
+        });
 
-        return null;
+        return program[0];
     }
 }
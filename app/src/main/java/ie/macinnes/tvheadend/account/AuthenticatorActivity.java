@@ -44,6 +44,7 @@ import java.util.List;
 import ie.macinnes.tvheadend.Constants;
 import ie.macinnes.tvheadend.R;
 import ie.macinnes.tvheadend.client.TVHClient;
+import ie.macinnes.tvheadend.htsp.HtspConnection;
 import ie.macinnes.tvheadend.migrate.MigrateUtils;
 
 public class AuthenticatorActivity extends AccountAuthenticatorActivity {
@@ -96,6 +97,7 @@ public class AuthenticatorActivity extends AccountAuthenticatorActivity {
         private static final int ACTION_ID_HTTP_PORT = 2;
         private static final int ACTION_ID_HTTP_PATH = 3;
         private static final int ACTION_ID_NEXT = 4;
+        private static final int ACTION_ID_HTSP_PORT = 5;
 
         @NonNull
         @Override
@@ -138,6 +140,17 @@ public class AuthenticatorActivity extends AccountAuthenticatorActivity {
                     .build();
 
             actions.add(action);
+
+            action = new GuidedAction.Builder(getActivity())
+                    .id(ACTION_ID_HTSP_PORT)
+                    .title("HTSP Port Number")
+                    .descriptionEditInputType(InputType.TYPE_CLASS_NUMBER)
+                    .descriptionInputType(InputType.TYPE_CLASS_NUMBER)
+                    .descriptionEditable(true)
+                    .editDescription(Integer.toString(HtspConnection.DEFAULT_PORT))
+                    .build();
+
+            actions.add(action);
         }
 
         @Override
@@ -188,12 +201,34 @@ public class AuthenticatorActivity extends AccountAuthenticatorActivity {
                     args.putString(Constants.KEY_HTTP_PATH, "");
                 }
 
+                // HTSP Port Field, left empty for the default
+                GuidedAction htspPortAction = findActionById(ACTION_ID_HTSP_PORT);
+                CharSequence htspPortValue = htspPortAction.getDescription();
+
+                if (htspPortValue != null && !TextUtils.isEmpty(htspPortValue)) {
+                    if (!isValidPort(htspPortValue.toString())) {
+                        Toast.makeText(getActivity(), "Invalid HTSP Port", Toast.LENGTH_SHORT).show();
+                        return;
+                    }
+
+                    args.putString(Constants.KEY_HTSP_PORT, htspPortValue.toString());
+                }
+
                 // Move to the next setup
                 GuidedStepFragment fragment = new AccountFragment();
                 fragment.setArguments(args);
                 add(getFragmentManager(), fragment);
             }
         }
+
+        private static boolean isValidPort(String port) {
+            try {
+                int portNumber = Integer.parseInt(port);
+                return portNumber > 0 && portNumber <= 65535;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
     }
 
     public static class AccountFragment extends BaseGuidedStepFragment {
@@ -332,6 +367,7 @@ public class AuthenticatorActivity extends AccountAuthenticatorActivity {
             final String accountHostname = args.getString(Constants.KEY_HOSTNAME);
             final String accountHttpPort = args.getString(Constants.KEY_HTTP_PORT);
             final String accountHttpPath = args.getString(Constants.KEY_HTTP_PATH);
+            final String accountHtspPort = args.getString(Constants.KEY_HTSP_PORT);
 
             // Validate the User and Pass by connecting to TVHeadend
             Response.Listener<JSONObject> listener = new Response.Listener<JSONObject>() {
@@ -348,6 +384,10 @@ public class AuthenticatorActivity extends AccountAuthenticatorActivity {
                     userdata.putString(Constants.KEY_HOSTNAME, accountHostname);
                     userdata.putString(Constants.KEY_HTTP_PORT, accountHttpPort);
 
+                    if (accountHtspPort != null) {
+                        userdata.putString(Constants.KEY_HTSP_PORT, accountHtspPort);
+                    }
+
                     mAccountManager.addAccountExplicitly(account, accountPassword, userdata);
 
                     // Store the result, with the username too
@@ -393,7 +433,7 @@ public class AuthenticatorActivity extends AccountAuthenticatorActivity {
                 }
             };
 
-            TVHClient client = TVHClient.getInstance(getActivity());
+            TVHClient client = new TVHClient(getActivity());
 
             client.setConnectionInfo(accountHostname, accountHttpPort, accountHttpPath, accountName, accountPassword);
 
@@ -27,6 +27,8 @@ import android.util.Log;
 
 import ie.macinnes.tvheadend.Constants;
 import ie.macinnes.tvheadend.TvContractUtils;
+import ie.macinnes.tvheadend.sync.LogoManifest;
+import ie.macinnes.tvheadend.sync.SyncState;
 import ie.macinnes.tvheadend.sync.SyncUtils;
 
 public class AuthenticatorService extends Service {
@@ -60,6 +62,12 @@ public class AuthenticatorService extends Service {
 
                     // Remove all the channels we added
                     TvContractUtils.removeChannels(getApplicationContext());
+
+                    // Forget the high-water marks of the removed channels' programs
+                    new SyncState(getApplicationContext(), currentAccount).clear();
+
+                    // And the details of the logos we wrote for them
+                    new LogoManifest(getApplicationContext(), currentAccount).clear();
                 }
             }
         }
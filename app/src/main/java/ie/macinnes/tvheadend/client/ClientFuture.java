@@ -0,0 +1,252 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.client;
+
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+
+/**
+ * The pending result of a TVHClient request. Unlike Volley's RequestFuture, cancelling it
+ * cancels the request itself and releases anyone blocked in get(), and callbacks can be added
+ * rather than blocking at all.
+ */
+public class ClientFuture<T> implements Future<T>, Response.Listener<T>, Response.ErrorListener {
+    public interface Callback<T> {
+        /**
+         * Called on the main thread once the request succeeds.
+         */
+        void onResponse(T response);
+
+        /**
+         * Called on the main thread once the request fails. Not called for cancelled requests.
+         */
+        void onError(VolleyError error);
+    }
+
+    private Request<?> mRequest;
+
+    private boolean mDone = false;
+    private boolean mCancelled = false;
+    private T mResult;
+    private VolleyError mError;
+
+    private final List<Callback<T>> mCallbacks = new ArrayList<>();
+    private Runnable mOnDoneListener;
+
+    synchronized void setRequest(Request<?> request) {
+        mRequest = request;
+
+        if (mCancelled) {
+            request.cancel();
+        }
+    }
+
+    /**
+     * Sets a listener run once the future is done, for whatever reason, or straight away should
+     * it already be done.
+     */
+    void setOnDoneListener(Runnable onDoneListener) {
+        synchronized (this) {
+            if (!mDone) {
+                mOnDoneListener = onDoneListener;
+                return;
+            }
+        }
+
+        onDoneListener.run();
+    }
+
+    /**
+     * Adds a callback for the result. Should the request already be complete, the callback is
+     * called straight away on the calling thread.
+     */
+    public ClientFuture<T> addCallback(Callback<T> callback) {
+        boolean cancelled;
+        T result;
+        VolleyError error;
+
+        // Read the outcome under the lock, callbacks are run outside of it
+        synchronized (this) {
+            if (!mDone) {
+                mCallbacks.add(callback);
+                return this;
+            }
+
+            cancelled = mCancelled;
+            result = mResult;
+            error = mError;
+        }
+
+        if (cancelled) {
+            return this;
+        }
+
+        if (error != null) {
+            callback.onError(error);
+        } else {
+            callback.onResponse(result);
+        }
+
+        return this;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        Runnable onDoneListener;
+
+        synchronized (this) {
+            if (mDone) {
+                return false;
+            }
+
+            mDone = true;
+            mCancelled = true;
+            mCallbacks.clear();
+
+            if (mRequest != null) {
+                mRequest.cancel();
+            }
+
+            onDoneListener = mOnDoneListener;
+            notifyAll();
+        }
+
+        if (onDoneListener != null) {
+            onDoneListener.run();
+        }
+
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        try {
+            return doGet(null);
+        } catch (TimeoutException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        return doGet(TimeUnit.MILLISECONDS.convert(timeout, unit));
+    }
+
+    private synchronized T doGet(Long timeoutMs) throws InterruptedException, ExecutionException, TimeoutException {
+        if (timeoutMs == null) {
+            while (!mDone) {
+                wait();
+            }
+        } else {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+
+            while (!mDone) {
+                long remaining = deadline - System.currentTimeMillis();
+
+                if (remaining <= 0) {
+                    throw new TimeoutException();
+                }
+
+                wait(remaining);
+            }
+        }
+
+        if (mCancelled) {
+            throw new CancellationException();
+        }
+
+        if (mError != null) {
+            throw new ExecutionException(mError);
+        }
+
+        return mResult;
+    }
+
+    @Override
+    public void onResponse(T response) {
+        List<Callback<T>> callbacks;
+        Runnable onDoneListener;
+
+        synchronized (this) {
+            if (mDone) {
+                return;
+            }
+
+            mDone = true;
+            mResult = response;
+
+            callbacks = new ArrayList<>(mCallbacks);
+            mCallbacks.clear();
+            onDoneListener = mOnDoneListener;
+            notifyAll();
+        }
+
+        if (onDoneListener != null) {
+            onDoneListener.run();
+        }
+
+        for (Callback<T> callback : callbacks) {
+            callback.onResponse(response);
+        }
+    }
+
+    @Override
+    public void onErrorResponse(VolleyError error) {
+        List<Callback<T>> callbacks;
+        Runnable onDoneListener;
+
+        synchronized (this) {
+            if (mDone) {
+                return;
+            }
+
+            mDone = true;
+            mError = error;
+
+            callbacks = new ArrayList<>(mCallbacks);
+            mCallbacks.clear();
+            onDoneListener = mOnDoneListener;
+            notifyAll();
+        }
+
+        if (onDoneListener != null) {
+            onDoneListener.run();
+        }
+
+        for (Callback<T> callback : callbacks) {
+            callback.onError(error);
+        }
+    }
+}
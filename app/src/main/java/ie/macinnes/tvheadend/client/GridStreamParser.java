@@ -0,0 +1,92 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.client;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+/**
+ * Incrementally parses a TVHeadend grid response ({"entries": [...], "totalCount": N}, or "total"
+ * for idnode grids such as channels), handing each entry to an {@link EntryListener} as soon as
+ * it has been read rather than building the full list in memory.
+ */
+public class GridStreamParser<T> {
+    private static final String FIELD_ENTRIES = "entries";
+    private static final String FIELD_TOTAL_COUNT = "totalCount";
+    private static final String FIELD_TOTAL = "total";
+
+    private final Gson mGson;
+    private final Class<T> mClazz;
+
+    public interface EntryListener<T> {
+        void onEntry(T entry);
+    }
+
+    public static class GridResult {
+        public int entryCount;
+        public int totalCount = -1;
+    }
+
+    public GridStreamParser(Gson gson, Class<T> clazz) {
+        mGson = gson;
+        mClazz = clazz;
+    }
+
+    public GridResult parse(InputStream inputStream, String charset, EntryListener<T> listener) throws IOException {
+        return parse(new InputStreamReader(inputStream, charset), listener);
+    }
+
+    public GridResult parse(Reader reader, EntryListener<T> listener) throws IOException {
+        GridResult result = new GridResult();
+
+        try (JsonReader jsonReader = new JsonReader(reader)) {
+            jsonReader.beginObject();
+
+            while (jsonReader.hasNext()) {
+                String name = jsonReader.nextName();
+
+                if (FIELD_ENTRIES.equals(name)) {
+                    jsonReader.beginArray();
+
+                    while (jsonReader.hasNext()) {
+                        T entry = mGson.fromJson(jsonReader, mClazz);
+                        result.entryCount++;
+                        listener.onEntry(entry);
+                    }
+
+                    jsonReader.endArray();
+                } else if (FIELD_TOTAL_COUNT.equals(name) || FIELD_TOTAL.equals(name)) {
+                    result.totalCount = jsonReader.nextInt();
+                } else {
+                    jsonReader.skipValue();
+                }
+            }
+
+            jsonReader.endObject();
+        } catch (IllegalStateException e) {
+            // JsonReader reports structural problems (e.g. an array where an object was expected)
+            // as IllegalStateException, surface them as parse errors instead.
+            throw new JsonParseException(e);
+        }
+
+        return result;
+    }
+}
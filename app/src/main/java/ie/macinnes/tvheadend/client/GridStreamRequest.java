@@ -0,0 +1,88 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.client;
+
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.toolbox.HttpHeaderParser;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Map;
+
+
+public class GridStreamRequest<T> extends Request<GridStreamParser.GridResult> {
+    private static final Gson sGson = new Gson();
+
+    private final GridStreamParser<T> mParser;
+    private final GridStreamParser.EntryListener<T> mEntryListener;
+    private final Response.Listener<GridStreamParser.GridResult> mListener;
+
+    private String mUsername;
+    private String mPassword;
+
+    /**
+     * Make a GET request for a grid endpoint, streaming each entry to the entry listener.
+     *
+     * NOTE: The entry listener is invoked on the Volley network thread while the response is
+     * being parsed, the listener is invoked on the main thread once parsing has completed.
+     *
+     * @param url URL of the request to make
+     * @param clazz Relevant class object, for Gson's reflection
+     */
+    public GridStreamRequest(int method, String url, Class<T> clazz, GridStreamParser.EntryListener<T> entryListener, Response.Listener<GridStreamParser.GridResult> listener, Response.ErrorListener errorListener, String username, String password) {
+        super(method, url, errorListener);
+        mParser = new GridStreamParser<>(sGson, clazz);
+        mEntryListener = entryListener;
+        mListener = listener;
+        mUsername = username;
+        mPassword = password;
+
+        // A cache hit would be parsed, and every entry streamed, once for the cached response and
+        // again for the refreshed one
+        setShouldCache(false);
+    }
+
+    @Override
+    public Map<String, String> getHeaders() throws AuthFailureError {
+        return ClientUtils.createBasicAuthHeader(mUsername, mPassword);
+    }
+
+    @Override
+    protected void deliverResponse(GridStreamParser.GridResult response) {
+        mListener.onResponse(response);
+    }
+
+    @Override
+    protected Response<GridStreamParser.GridResult> parseNetworkResponse(NetworkResponse response) {
+        try {
+            GridStreamParser.GridResult result = mParser.parse(
+                    new ByteArrayInputStream(response.data),
+                    HttpHeaderParser.parseCharset(response.headers),
+                    mEntryListener);
+            return Response.success(result, null);
+        } catch (IOException e) {
+            return Response.error(new ParseError(e));
+        } catch (JsonParseException e) {
+            return Response.error(new ParseError(e));
+        }
+    }
+}
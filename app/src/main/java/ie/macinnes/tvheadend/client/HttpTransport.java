@@ -0,0 +1,368 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.client;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.android.volley.Cache;
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.DiskBasedCache;
+import com.android.volley.toolbox.HurlStack;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+
+
+/**
+ * The HTTP transport shared by everything talking to tvheadend: request queues over a single
+ * keep-alive connection pool, with gzip compressed responses and a limit on the requests in
+ * flight to any one host.
+ *
+ * Requests over the per-host limit are held back until one of the host's requests finishes,
+ * rather than occupying a dispatcher thread, so a busy host never holds up requests to others.
+ */
+public class HttpTransport {
+    private static final String TAG = HttpTransport.class.getName();
+
+    private static final String CACHE_DIR = "volley";
+
+    public static class Config {
+        // Idle connections kept alive for reuse, across all hosts. HttpURLConnection reads this
+        // once for the whole process, so only the first transport created sets it.
+        public int maxIdleConnections = 8;
+        // Volley network dispatcher threads of the shared request queue
+        public int threadPoolSize = 6;
+        // Requests in flight to any one host, tvheadend is often running on a small NAS or Pi
+        public int maxRequestsPerHost = 4;
+    }
+
+    private static HttpTransport sInstance;
+
+    private final Cache mCache;
+    private final Network mNetwork;
+    private final HostLimiter mHostLimiter;
+    private final RequestQueue mRequestQueue;
+
+    public static synchronized HttpTransport getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new HttpTransport(context.getApplicationContext(), new Config());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Creates a transport of its own, with its own limits. Most should use getInstance()
+     * instead, so the connection pool and per-host limits are shared.
+     */
+    public HttpTransport(Context context, Config config) {
+        // HttpURLConnection reads these once, when its connection pool is first used
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", Integer.toString(config.maxIdleConnections));
+
+        mNetwork = new GzipNetwork(new BasicNetwork(new GzipHurlStack()));
+
+        mCache = new DiskBasedCache(new File(context.getCacheDir(), CACHE_DIR));
+
+        mHostLimiter = new HostLimiter(config.maxRequestsPerHost);
+
+        mRequestQueue = newRequestQueue(config.threadPoolSize);
+    }
+
+    /**
+     * @return the request queue shared by clients without a queue of their own
+     */
+    public RequestQueue getRequestQueue() {
+        return mRequestQueue;
+    }
+
+    /**
+     * Starts a new request queue, with its own dispatcher threads, over the shared connection
+     * pool and cache. Per-host limits still apply across every queue.
+     */
+    public RequestQueue newRequestQueue(int threadPoolSize) {
+        RequestQueue requestQueue = new LimitedRequestQueue(mCache, mNetwork, threadPoolSize, mHostLimiter);
+        requestQueue.start();
+        return requestQueue;
+    }
+
+    private static String getHost(Request<?> request) {
+        String url = request.getUrl();
+
+        try {
+            URL parsedUrl = new URL(url);
+            return parsedUrl.getHost() + ":" + parsedUrl.getPort();
+        } catch (MalformedURLException e) {
+            return url;
+        }
+    }
+
+    /**
+     * Counts the requests in flight to each host, across every queue, and holds back those over
+     * the limit until an earlier request to the same host finishes.
+     */
+    private static class HostLimiter {
+        private final int mMaxRequestsPerHost;
+
+        private final Map<String, Integer> mInFlight = new HashMap<>();
+        private final Map<String, Deque<PendingRequest>> mPending = new HashMap<>();
+
+        public HostLimiter(int maxRequestsPerHost) {
+            mMaxRequestsPerHost = maxRequestsPerHost;
+        }
+
+        /**
+         * @return true if the request may be dispatched now, otherwise it's dispatched to queue
+         *         once there's room
+         */
+        public synchronized boolean acquire(String host, LimitedRequestQueue queue, Request<?> request) {
+            Integer inFlight = mInFlight.get(host);
+
+            if (inFlight == null) {
+                inFlight = 0;
+            }
+
+            if (inFlight < mMaxRequestsPerHost) {
+                mInFlight.put(host, inFlight + 1);
+                return true;
+            }
+
+            Deque<PendingRequest> pending = mPending.get(host);
+
+            if (pending == null) {
+                pending = new ArrayDeque<>();
+                mPending.put(host, pending);
+            }
+
+            pending.add(new PendingRequest(queue, request));
+
+            return false;
+        }
+
+        /**
+         * Frees a host's slot, handing it straight on to the next request held back, if any.
+         */
+        public void release(String host) {
+            PendingRequest next;
+
+            synchronized (this) {
+                Deque<PendingRequest> pending = mPending.get(host);
+                next = pending != null ? pending.poll() : null;
+
+                if (next == null) {
+                    Integer inFlight = mInFlight.get(host);
+
+                    if (inFlight == null || inFlight <= 1) {
+                        mInFlight.remove(host);
+                    } else {
+                        mInFlight.put(host, inFlight - 1);
+                    }
+                }
+            }
+
+            if (next != null) {
+                next.mQueue.dispatch(next.mRequest);
+            }
+        }
+
+        /**
+         * Forgets the requests held back for a stopped queue.
+         */
+        public synchronized void removePending(LimitedRequestQueue queue) {
+            for (Deque<PendingRequest> pending : mPending.values()) {
+                Iterator<PendingRequest> iterator = pending.iterator();
+
+                while (iterator.hasNext()) {
+                    if (iterator.next().mQueue == queue) {
+                        iterator.remove();
+                    }
+                }
+            }
+        }
+
+        private static class PendingRequest {
+            final LimitedRequestQueue mQueue;
+            final Request<?> mRequest;
+
+            PendingRequest(LimitedRequestQueue queue, Request<?> request) {
+                mQueue = queue;
+                mRequest = request;
+            }
+        }
+    }
+
+    /**
+     * A RequestQueue which only dispatches requests once the HostLimiter has room for them.
+     */
+    private static class LimitedRequestQueue extends RequestQueue {
+        private final HostLimiter mHostLimiter;
+
+        // Requests holding one of their host's slots
+        private final Set<Request<?>> mDispatched = new HashSet<>();
+
+        public LimitedRequestQueue(Cache cache, Network network, int threadPoolSize, HostLimiter hostLimiter) {
+            super(cache, network, threadPoolSize);
+            mHostLimiter = hostLimiter;
+
+            addRequestFinishedListener(new RequestFinishedListener<Object>() {
+                @Override
+                public void onRequestFinished(Request<Object> request) {
+                    boolean dispatched;
+
+                    synchronized (mDispatched) {
+                        dispatched = mDispatched.remove(request);
+                    }
+
+                    if (dispatched) {
+                        mHostLimiter.release(getHost(request));
+                    }
+                }
+            });
+        }
+
+        @Override
+        public <T> Request<T> add(Request<T> request) {
+            if (mHostLimiter.acquire(getHost(request), this, request)) {
+                dispatch(request);
+            }
+
+            return request;
+        }
+
+        @Override
+        public void stop() {
+            super.stop();
+
+            // Requests still queued will never finish, free their slots for other queues
+            List<Request<?>> dispatched;
+
+            synchronized (mDispatched) {
+                dispatched = new ArrayList<>(mDispatched);
+                mDispatched.clear();
+            }
+
+            mHostLimiter.removePending(this);
+
+            for (Request<?> request : dispatched) {
+                mHostLimiter.release(getHost(request));
+            }
+        }
+
+        void dispatch(Request<?> request) {
+            synchronized (mDispatched) {
+                mDispatched.add(request);
+            }
+
+            super.add(request);
+        }
+    }
+
+    /**
+     * Asks for gzip compressed responses. Android's HttpURLConnection only decompresses
+     * transparently when it added the header itself, GzipNetwork handles it instead.
+     */
+    private static class GzipHurlStack extends HurlStack {
+        @Override
+        protected HttpURLConnection createConnection(URL url) throws IOException {
+            HttpURLConnection connection = super.createConnection(url);
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            return connection;
+        }
+    }
+
+    /**
+     * Decompresses gzip encoded responses.
+     */
+    private static class GzipNetwork implements Network {
+        private final Network mNetwork;
+
+        public GzipNetwork(Network network) {
+            mNetwork = network;
+        }
+
+        @Override
+        public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+            return decode(mNetwork.performRequest(request));
+        }
+
+        private static NetworkResponse decode(NetworkResponse response) throws VolleyError {
+            String contentEncoding = response.headers != null
+                    ? response.headers.get("Content-Encoding") : null;
+
+            if (response.data == null || !"gzip".equalsIgnoreCase(contentEncoding)) {
+                return response;
+            }
+
+            byte[] data;
+
+            try {
+                data = gunzip(response.data);
+            } catch (IOException e) {
+                throw new ParseError(e);
+            }
+
+            Log.v(TAG, "Decompressed " + response.data.length + " bytes to " + data.length);
+
+            Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            headers.putAll(response.headers);
+            headers.remove("Content-Encoding");
+            headers.put("Content-Length", Integer.toString(data.length));
+
+            return new NetworkResponse(response.statusCode, data, headers,
+                    response.notModified, response.networkTimeMs);
+        }
+
+        private static byte[] gunzip(byte[] compressed) throws IOException {
+            InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(compressed));
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(compressed.length * 4);
+
+            try {
+                byte[] buffer = new byte[8192];
+                int count;
+
+                while ((count = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, count);
+                }
+            } finally {
+                inputStream.close();
+            }
+
+            return outputStream.toByteArray();
+        }
+    }
+}
@@ -16,9 +16,13 @@
 package ie.macinnes.tvheadend.client;
 
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 
 import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
 import com.android.volley.Response;
+import com.android.volley.toolbox.HttpHeaderParser;
 
 import java.util.Map;
 
@@ -26,12 +30,29 @@ import java.util.Map;
 public class ImageRequest extends com.android.volley.toolbox.ImageRequest {
     private static final String TAG = ImageRequest.class.getName();
 
+    // Only one image is decoded at a time, as with Volley's own ImageRequest, so peak memory is
+    // bounded by a single decode however many requests are in flight
+    private static final Object sDecodeLock = new Object();
+
+    private final int mMaxWidth;
+    private final int mMaxHeight;
+
     private String mUsername;
     private String mPassword;
 
     public ImageRequest(String url, Response.Listener<Bitmap> listener, Response.ErrorListener errorListener, String username, String password) {
-        super(url, listener, 0, 0, null, null, errorListener);
+        this(url, listener, 0, 0, errorListener, username, password);
+    }
+
+    /**
+     * @param maxWidth Largest width of the decoded Bitmap, or 0 for no limit
+     * @param maxHeight Largest height of the decoded Bitmap, or 0 for no limit
+     */
+    public ImageRequest(String url, Response.Listener<Bitmap> listener, int maxWidth, int maxHeight, Response.ErrorListener errorListener, String username, String password) {
+        super(url, listener, maxWidth, maxHeight, null, null, errorListener);
 
+        mMaxWidth = maxWidth;
+        mMaxHeight = maxHeight;
         mUsername = username;
         mPassword = password;
     }
@@ -40,4 +61,104 @@ public class ImageRequest extends com.android.volley.toolbox.ImageRequest {
     public Map<String, String> getHeaders() throws AuthFailureError {
         return ClientUtils.createBasicAuthHeader(mUsername, mPassword);
     }
+
+    @Override
+    protected Response<Bitmap> parseNetworkResponse(NetworkResponse response) {
+        Bitmap bitmap;
+
+        try {
+            bitmap = decodeSampled(response.data, mMaxWidth, mMaxHeight);
+        } catch (OutOfMemoryError e) {
+            return Response.error(new ParseError(e));
+        }
+
+        if (bitmap == null) {
+            return Response.error(new ParseError(response));
+        }
+
+        return Response.success(bitmap, HttpHeaderParser.parseCacheHeaders(response));
+    }
+
+    /**
+     * Decodes data to fit within maxWidth x maxHeight, keeping its aspect ratio.
+     *
+     * The bounds are read first, and the image is then decoded with the largest inSampleSize
+     * that keeps it at or above the target size, so a large image is never decoded in full.
+     *
+     * @param maxWidth Largest width of the decoded Bitmap, or 0 for no limit
+     * @param maxHeight Largest height of the decoded Bitmap, or 0 for no limit
+     * @return the decoded Bitmap, or null should data not be a decodable image
+     */
+    public static Bitmap decodeSampled(byte[] data, int maxWidth, int maxHeight) {
+        synchronized (sDecodeLock) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, 0, data.length, options);
+
+            int width = options.outWidth;
+            int height = options.outHeight;
+
+            if (width <= 0 || height <= 0) {
+                return null;
+            }
+
+            float scale = getScale(width, height, maxWidth, maxHeight);
+
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = getSampleSize(scale);
+
+            Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+
+            if (bitmap == null || scale >= 1) {
+                return bitmap;
+            }
+
+            // Sampling only gets within a power of two of the target, scale the rest of the way
+            int targetWidth = Math.max(Math.round(width * scale), 1);
+            int targetHeight = Math.max(Math.round(height * scale), 1);
+
+            if (bitmap.getWidth() <= targetWidth && bitmap.getHeight() <= targetHeight) {
+                return bitmap;
+            }
+
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap, targetWidth, targetHeight, true);
+
+            if (scaled != bitmap) {
+                bitmap.recycle();
+            }
+
+            return scaled;
+        }
+    }
+
+    /**
+     * @return the factor a width x height image must be scaled by to fit maxWidth x maxHeight,
+     *         never more than 1.
+     */
+    static float getScale(int width, int height, int maxWidth, int maxHeight) {
+        float scale = 1;
+
+        if (maxWidth > 0) {
+            scale = Math.min(scale, (float) maxWidth / width);
+        }
+
+        if (maxHeight > 0) {
+            scale = Math.min(scale, (float) maxHeight / height);
+        }
+
+        return scale;
+    }
+
+    /**
+     * @return the largest power of two sample size which doesn't take an image below scale
+     */
+    static int getSampleSize(float scale) {
+        int sampleSize = 1;
+
+        while (sampleSize * 2 * scale <= 1) {
+            sampleSize *= 2;
+        }
+
+        return sampleSize;
+    }
 }
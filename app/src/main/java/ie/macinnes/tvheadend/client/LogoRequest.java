@@ -0,0 +1,138 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.client;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+
+/**
+ * A conditional GET for a channel logo, delivering the raw image bytes along with the response's
+ * validators and a digest of its content.
+ *
+ * Responses bypass Volley's disk cache, the validators are instead kept by the caller and passed
+ * back in to the next request for the same logo.
+ */
+public class LogoRequest extends Request<LogoRequest.Logo> {
+    private static final String TAG = LogoRequest.class.getName();
+
+    private final Response.Listener<Logo> mListener;
+
+    private final String mETag;
+    private final String mLastModified;
+
+    private String mUsername;
+    private String mPassword;
+
+    /**
+     * @param etag ETag of the logo we hold, or null
+     * @param lastModified Last-Modified of the logo we hold, or null
+     */
+    public LogoRequest(String url, String etag, String lastModified, Response.Listener<Logo> listener, Response.ErrorListener errorListener, String username, String password) {
+        super(Method.GET, url, errorListener);
+
+        mListener = listener;
+        mETag = etag;
+        mLastModified = lastModified;
+        mUsername = username;
+        mPassword = password;
+
+        setShouldCache(false);
+    }
+
+    @Override
+    public Map<String, String> getHeaders() throws AuthFailureError {
+        Map<String, String> headers = ClientUtils.createBasicAuthHeader(mUsername, mPassword);
+
+        if (mETag != null) {
+            headers.put("If-None-Match", mETag);
+        }
+
+        if (mLastModified != null) {
+            headers.put("If-Modified-Since", mLastModified);
+        }
+
+        return headers;
+    }
+
+    @Override
+    protected void deliverResponse(Logo response) {
+        mListener.onResponse(response);
+    }
+
+    @Override
+    protected Response<Logo> parseNetworkResponse(NetworkResponse response) {
+        // With no cache entry of its own, Volley hands a 304 straight through with no data
+        if (response.notModified) {
+            return Response.success(new Logo(true, null, mETag, mLastModified, null), null);
+        }
+
+        if (response.data == null || response.data.length == 0) {
+            return Response.error(new ParseError(response));
+        }
+
+        String etag = response.headers.get("ETag");
+        String lastModified = response.headers.get("Last-Modified");
+
+        return Response.success(
+                new Logo(false, response.data, etag, lastModified, digest(response.data)), null);
+    }
+
+    /**
+     * @return a hex encoded SHA-1 digest of data
+     */
+    public static String digest(byte[] data) {
+        MessageDigest messageDigest;
+
+        try {
+            messageDigest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        byte[] digest = messageDigest.digest(data);
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+
+        return hex.toString();
+    }
+
+    public static class Logo {
+        public final boolean notModified;
+        public final byte[] data;
+        public final String etag;
+        public final String lastModified;
+        public final String digest;
+
+        public Logo(boolean notModified, byte[] data, String etag, String lastModified, String digest) {
+            this.notModified = notModified;
+            this.data = data;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+    }
+}
@@ -16,20 +16,28 @@ package ie.macinnes.tvheadend.client;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
+import android.accounts.OnAccountsUpdateListener;
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.net.Uri;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.volley.Request;
 import com.android.volley.RequestQueue;
 import com.android.volley.Response;
-import com.android.volley.toolbox.RequestFuture;
-import com.android.volley.toolbox.Volley;
 import com.google.gson.annotations.SerializedName;
 
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -42,30 +50,111 @@ public class TVHClient {
     private static final int DEFAULT_CHANNEL_LIMIT = 10000;
     public static final int DEFAULT_EVENT_LIMIT = 1000;
     public static final int QUICK_EVENT_LIMIT = 10;
+    public static final int BULK_EVENT_PAGE_SIZE = 5000;
+    public static final int CHANNEL_PAGE_SIZE = 500;
 
-    private static TVHClient sInstance;
+    // Event grid sort orders
+    public static final String SORT_START = "start";
+    public static final String SORT_CHANNEL = "channelNumber";
+
+    // Requests each account's client may have in flight, on top of the transport's per-host limit
+    private static final int ACCOUNT_THREAD_POOL_SIZE = 4;
+
+    private static final Map<String, TVHClient> sInstances = new HashMap<>();
+    private static OnAccountsUpdateListener sAccountsUpdateListener;
     private final Context mContext;
     private RequestQueue mRequestQueue;
 
-    private String mAccountHostname;
-    private String mAccountPort;
-    private String mAccountPath;
-    private String mAccountName;
-    private String mAccountPassword;
+    private volatile String mAccountHostname;
+    private volatile String mAccountPort;
+    private volatile String mAccountPath;
+    private volatile String mAccountName;
+    private volatile String mAccountPassword;
 
     private int mTimeout = 30;
 
-    public static synchronized TVHClient getInstance(Context context) {
-        if (sInstance == null) {
-            sInstance = new TVHClient(context);
+    private final Set<ClientFuture<?>> mInFlight = new HashSet<>();
+
+    /**
+     * @return the client for account, with its own request queue. Clients are created once for
+     *         each account, so syncs of different accounts can safely run in parallel. The
+     *         account's connection info is re-read on every call, so changes to it are picked up.
+     */
+    public static synchronized TVHClient getInstance(Context context, Account account) {
+        Context applicationContext = context.getApplicationContext();
+
+        if (sAccountsUpdateListener == null) {
+            sAccountsUpdateListener = new OnAccountsUpdateListener() {
+                @Override
+                public void onAccountsUpdated(Account[] accounts) {
+                    releaseRemovedAccounts(accounts);
+                }
+            };
+
+            AccountManager.get(applicationContext).addOnAccountsUpdatedListener(
+                    sAccountsUpdateListener, null, false);
+        }
+
+        TVHClient client = sInstances.get(account.name);
+
+        if (client == null) {
+            client = new TVHClient(applicationContext,
+                    HttpTransport.getInstance(applicationContext).newRequestQueue(ACCOUNT_THREAD_POOL_SIZE));
+            sInstances.put(account.name, client);
         }
-        return sInstance;
+
+        client.setConnectionInfo(account);
+
+        return client;
     }
 
+    /**
+     * Cancels and stops the clients of accounts which no longer exist.
+     */
+    private static void releaseRemovedAccounts(Account[] accounts) {
+        Set<String> accountNames = new HashSet<>();
+
+        for (Account account : accounts) {
+            if (account.type.equals(Constants.ACCOUNT_TYPE)) {
+                accountNames.add(account.name);
+            }
+        }
+
+        List<TVHClient> removedClients = new ArrayList<>();
+
+        synchronized (TVHClient.class) {
+            Iterator<Map.Entry<String, TVHClient>> iterator = sInstances.entrySet().iterator();
+
+            while (iterator.hasNext()) {
+                Map.Entry<String, TVHClient> entry = iterator.next();
+
+                if (!accountNames.contains(entry.getKey())) {
+                    Log.d(TAG, "Releasing client of removed account: " + entry.getKey());
+                    removedClients.add(entry.getValue());
+                    iterator.remove();
+                }
+            }
+        }
+
+        for (TVHClient client : removedClients) {
+            client.cancelAll();
+            client.mRequestQueue.stop();
+        }
+    }
+
+    /**
+     * Creates a standalone client, on the transport's shared request queue. Callers must set the
+     * connection info before making requests.
+     */
     public TVHClient(Context context) {
         mContext = context;
     }
 
+    private TVHClient(Context context, RequestQueue requestQueue) {
+        mContext = context;
+        mRequestQueue = requestQueue;
+    }
+
     public void setConnectionInfo(Account account) {
         AccountManager accountManager = AccountManager.get(mContext);
 
@@ -87,7 +176,7 @@ public class TVHClient {
 
     private RequestQueue getRequestQueue() {
         if (mRequestQueue == null) {
-            mRequestQueue = Volley.newRequestQueue(mContext.getApplicationContext());
+            mRequestQueue = HttpTransport.getInstance(mContext).getRequestQueue();
         }
         return mRequestQueue;
     }
@@ -100,7 +189,7 @@ public class TVHClient {
         }
     }
 
-    public void getServerInfo(Response.Listener<JSONObject> listener, Response.ErrorListener errorListener) {
+    public Request<JSONObject> getServerInfo(Response.Listener<JSONObject> listener, Response.ErrorListener errorListener) {
         Log.d(TAG, "Calling getServerInfo");
 
         String url = getBaseHttpUri() + "/api/serverinfo";
@@ -108,18 +197,22 @@ public class TVHClient {
         JsonObjectRequest jsObjRequest = new JsonObjectRequest(
                 Request.Method.GET, url, null, listener, errorListener, mAccountName, mAccountPassword);
 
-        getRequestQueue().add(jsObjRequest);
+        return getRequestQueue().add(jsObjRequest);
     }
 
-    public JSONObject getServerInfo() throws InterruptedException, ExecutionException, TimeoutException {
-        RequestFuture<JSONObject> future = RequestFuture.newFuture();
+    public ClientFuture<JSONObject> getServerInfoAsync() {
+        ClientFuture<JSONObject> future = new ClientFuture<>();
 
-        getServerInfo(future, future);
+        track(future, getServerInfo(future, future));
+
+        return future;
+    }
 
-        return future.get(mTimeout, TimeUnit.SECONDS);
+    public JSONObject getServerInfo() throws InterruptedException, ExecutionException, TimeoutException {
+        return get(getServerInfoAsync());
     }
 
-    public void getProfileList(Response.Listener<KeyValList> listener, Response.ErrorListener errorListener) {
+    public Request<KeyValList> getProfileList(Response.Listener<KeyValList> listener, Response.ErrorListener errorListener) {
         Log.d(TAG, "Calling getProfileList");
 
         String url = getBaseHttpUri() + "/api/profile/list";
@@ -127,18 +220,22 @@ public class TVHClient {
         GsonRequest<KeyValList> request = new GsonRequest<KeyValList>(
                 Request.Method.GET, url, KeyValList.class, listener, errorListener, mAccountName, mAccountPassword);
 
-        getRequestQueue().add(request);
+        return getRequestQueue().add(request);
     }
 
-    public KeyValList getProfileList() throws InterruptedException, ExecutionException, TimeoutException {
-        RequestFuture<KeyValList> future = RequestFuture.newFuture();
+    public ClientFuture<KeyValList> getProfileListAsync() {
+        ClientFuture<KeyValList> future = new ClientFuture<>();
 
-        getProfileList(future, future);
+        track(future, getProfileList(future, future));
 
-        return future.get(mTimeout, TimeUnit.SECONDS);
+        return future;
+    }
+
+    public KeyValList getProfileList() throws InterruptedException, ExecutionException, TimeoutException {
+        return get(getProfileListAsync());
     }
 
-    public void getChannelGrid(Response.Listener<ChannelList> listener, Response.ErrorListener errorListener, int channelLimit) {
+    public Request<ChannelList> getChannelGrid(Response.Listener<ChannelList> listener, Response.ErrorListener errorListener, int channelLimit) {
         Log.d(TAG, "Calling getChannelGrid");
 
         String url = getBaseHttpUri() + "/api/channel/grid?limit=" + Integer.toString(channelLimit);
@@ -146,45 +243,135 @@ public class TVHClient {
         GsonRequest<ChannelList> request = new GsonRequest<ChannelList>(
                 Request.Method.GET, url, ChannelList.class, listener, errorListener, mAccountName, mAccountPassword);
 
-        getRequestQueue().add(request);
+        return getRequestQueue().add(request);
     }
 
-    public void getChannelGrid(Response.Listener<ChannelList> listener, Response.ErrorListener errorListener) {
-        getChannelGrid(listener, errorListener, DEFAULT_CHANNEL_LIMIT);
+    public Request<ChannelList> getChannelGrid(Response.Listener<ChannelList> listener, Response.ErrorListener errorListener) {
+        return getChannelGrid(listener, errorListener, DEFAULT_CHANNEL_LIMIT);
     }
 
-    public ChannelList getChannelGrid(int channelLimit) throws InterruptedException, ExecutionException, TimeoutException {
-        RequestFuture<ChannelList> future = RequestFuture.newFuture();
+    public ClientFuture<ChannelList> getChannelGridAsync(int channelLimit) {
+        ClientFuture<ChannelList> future = new ClientFuture<>();
 
-        getChannelGrid(future, future, channelLimit);
+        track(future, getChannelGrid(future, future, channelLimit));
 
-        return future.get(mTimeout, TimeUnit.SECONDS);
+        return future;
     }
 
+    public ChannelList getChannelGrid(int channelLimit) throws InterruptedException, ExecutionException, TimeoutException {
+        return get(getChannelGridAsync(channelLimit));
+    }
+
+    /**
+     * Pages through the whole channel grid, however many channels there are.
+     */
     public ChannelList getChannelGrid() throws InterruptedException, ExecutionException, TimeoutException {
-        return getChannelGrid(DEFAULT_CHANNEL_LIMIT);
+        final ChannelList channelList = new ChannelList();
+        channelList.entries = new ArrayList<>();
+
+        streamChannelGrid(new GridStreamParser.EntryListener<Channel>() {
+            @Override
+            public void onEntry(Channel channel) {
+                channelList.entries.add(channel);
+            }
+        });
+
+        return channelList;
     }
 
-    public void getChannelIcon(Response.Listener<Bitmap> listener, Response.ErrorListener errorListener, String channelIconPath) {
+    public Request<GridStreamParser.GridResult> streamChannelGridPage(Response.Listener<GridStreamParser.GridResult> listener, Response.ErrorListener errorListener, GridStreamParser.EntryListener<Channel> entryListener, int start, int limit) {
+        Log.d(TAG, "Calling streamChannelGridPage, start: " + start + ", limit: " + limit);
+
+        String url = getBaseHttpUri() + "/api/channel/grid?start=" + Integer.toString(start) + "&limit=" + Integer.toString(limit);
+
+        GridStreamRequest<Channel> request = new GridStreamRequest<Channel>(
+                Request.Method.GET, url, Channel.class, entryListener, listener, errorListener, mAccountName, mAccountPassword);
+
+        return getRequestQueue().add(request);
+    }
+
+    public ClientFuture<GridStreamParser.GridResult> streamChannelGridPageAsync(int start, int limit, GridStreamParser.EntryListener<Channel> entryListener) {
+        ClientFuture<GridStreamParser.GridResult> future = new ClientFuture<>();
+
+        track(future, streamChannelGridPage(future, future, entryListener, start, limit));
+
+        return future;
+    }
+
+    public GridStreamParser.GridResult streamChannelGridPage(int start, int limit, GridStreamParser.EntryListener<Channel> entryListener) throws InterruptedException, ExecutionException, TimeoutException {
+        return get(streamChannelGridPageAsync(start, limit, entryListener));
+    }
+
+    /**
+     * Pages through the whole channel grid, streaming each channel to entryListener as its page
+     * is parsed.
+     *
+     * @return the number of channels
+     */
+    public int streamChannelGrid(final GridStreamParser.EntryListener<Channel> entryListener) throws InterruptedException, ExecutionException, TimeoutException {
+        return streamPages(new PageRequest() {
+            @Override
+            public ClientFuture<GridStreamParser.GridResult> request(int start, int limit) {
+                return streamChannelGridPageAsync(start, limit, entryListener);
+            }
+        }, CHANNEL_PAGE_SIZE, 0, null, null);
+    }
+
+    public Request<Bitmap> getChannelIcon(Response.Listener<Bitmap> listener, Response.ErrorListener errorListener, String channelIconPath, int maxWidth, int maxHeight) {
         Log.d(TAG, "Calling getChannelIcon");
 
         String url = getBaseHttpUri() + "/" + channelIconPath;
 
         ImageRequest request = new ImageRequest(
-                url, listener, errorListener, mAccountName, mAccountPassword);
+                url, listener, maxWidth, maxHeight, errorListener, mAccountName, mAccountPassword);
 
-        getRequestQueue().add(request);
+        return getRequestQueue().add(request);
+    }
+
+    public Request<Bitmap> getChannelIcon(Response.Listener<Bitmap> listener, Response.ErrorListener errorListener, String channelIconPath) {
+        return getChannelIcon(listener, errorListener, channelIconPath, 0, 0);
+    }
+
+    public ClientFuture<Bitmap> getChannelIconAsync(String channelIconPath, int maxWidth, int maxHeight) {
+        ClientFuture<Bitmap> future = new ClientFuture<>();
+
+        track(future, getChannelIcon(future, future, channelIconPath, maxWidth, maxHeight));
+
+        return future;
+    }
+
+    public Bitmap getChannelIcon(String channelIconPath, int maxWidth, int maxHeight) throws InterruptedException, ExecutionException, TimeoutException {
+        return get(getChannelIconAsync(channelIconPath, maxWidth, maxHeight));
     }
 
     public Bitmap getChannelIcon(String channelIconPath) throws InterruptedException, ExecutionException, TimeoutException {
-        RequestFuture<Bitmap> future = RequestFuture.newFuture();
+        return getChannelIcon(channelIconPath, 0, 0);
+    }
 
-        getChannelIcon(future, future, channelIconPath);
+    public Request<LogoRequest.Logo> getChannelLogo(Response.Listener<LogoRequest.Logo> listener, Response.ErrorListener errorListener, String channelIconPath, String etag, String lastModified) {
+        Log.d(TAG, "Calling getChannelLogo");
 
-        return future.get(mTimeout, TimeUnit.SECONDS);
+        String url = getBaseHttpUri() + "/" + channelIconPath;
+
+        LogoRequest request = new LogoRequest(
+                url, etag, lastModified, listener, errorListener, mAccountName, mAccountPassword);
+
+        return getRequestQueue().add(request);
+    }
+
+    public ClientFuture<LogoRequest.Logo> getChannelLogoAsync(String channelIconPath, String etag, String lastModified) {
+        ClientFuture<LogoRequest.Logo> future = new ClientFuture<>();
+
+        track(future, getChannelLogo(future, future, channelIconPath, etag, lastModified));
+
+        return future;
+    }
+
+    public LogoRequest.Logo getChannelLogo(String channelIconPath, String etag, String lastModified) throws InterruptedException, ExecutionException, TimeoutException {
+        return get(getChannelLogoAsync(channelIconPath, etag, lastModified));
     }
 
-    public void getEventGrid(Response.Listener<EventList> listener, Response.ErrorListener errorListener, String channelUuid, int eventLimit) {
+    public Request<EventList> getEventGrid(Response.Listener<EventList> listener, Response.ErrorListener errorListener, String channelUuid, int eventLimit) {
         Log.d(TAG, "Calling getEventGrid for channel: " + channelUuid);
 
         String url = getBaseHttpUri() + "/api/epg/events/grid?limit=" + Integer.toString(eventLimit) + "&channel=" + channelUuid;
@@ -192,25 +379,301 @@ public class TVHClient {
         GsonRequest<EventList> request = new GsonRequest<EventList>(
                 Request.Method.GET, url, EventList.class, listener, errorListener, mAccountName, mAccountPassword);
 
-        getRequestQueue().add(request);
+        return getRequestQueue().add(request);
     }
 
-    public void getEventGrid(Response.Listener<EventList> listener, Response.ErrorListener errorListener, String channelUuid) {
-        getEventGrid(listener, errorListener, channelUuid, DEFAULT_EVENT_LIMIT);
+    public Request<EventList> getEventGrid(Response.Listener<EventList> listener, Response.ErrorListener errorListener, String channelUuid) {
+        return getEventGrid(listener, errorListener, channelUuid, DEFAULT_EVENT_LIMIT);
     }
 
-    public EventList getEventGrid(String channelUuid, int eventLimit) throws InterruptedException, ExecutionException, TimeoutException {
-        RequestFuture<EventList> future = RequestFuture.newFuture();
+    public ClientFuture<EventList> getEventGridAsync(String channelUuid, int eventLimit) {
+        ClientFuture<EventList> future = new ClientFuture<>();
 
-        getEventGrid(future, future, channelUuid, eventLimit);
+        track(future, getEventGrid(future, future, channelUuid, eventLimit));
 
-        return future.get(mTimeout, TimeUnit.SECONDS);
+        return future;
+    }
+
+    public EventList getEventGrid(String channelUuid, int eventLimit) throws InterruptedException, ExecutionException, TimeoutException {
+        return get(getEventGridAsync(channelUuid, eventLimit));
     }
 
     public EventList getEventGrid(String channelUuid) throws InterruptedException, ExecutionException, TimeoutException {
         return getEventGrid(channelUuid, DEFAULT_EVENT_LIMIT);
     }
 
+    public Request<GridStreamParser.GridResult> streamEventGrid(Response.Listener<GridStreamParser.GridResult> listener, Response.ErrorListener errorListener, GridStreamParser.EntryListener<Event> entryListener, String channelUuid, int eventLimit) {
+        Log.d(TAG, "Calling streamEventGrid for channel: " + channelUuid);
+
+        String url = getBaseHttpUri() + "/api/epg/events/grid?limit=" + Integer.toString(eventLimit) + "&channel=" + channelUuid;
+
+        GridStreamRequest<Event> request = new GridStreamRequest<Event>(
+                Request.Method.GET, url, Event.class, entryListener, listener, errorListener, mAccountName, mAccountPassword);
+
+        return getRequestQueue().add(request);
+    }
+
+    public ClientFuture<GridStreamParser.GridResult> streamEventGridAsync(String channelUuid, int eventLimit, GridStreamParser.EntryListener<Event> entryListener) {
+        ClientFuture<GridStreamParser.GridResult> future = new ClientFuture<>();
+
+        track(future, streamEventGrid(future, future, entryListener, channelUuid, eventLimit));
+
+        return future;
+    }
+
+    public GridStreamParser.GridResult streamEventGrid(String channelUuid, int eventLimit, GridStreamParser.EntryListener<Event> entryListener) throws InterruptedException, ExecutionException, TimeoutException {
+        return get(streamEventGridAsync(channelUuid, eventLimit, entryListener));
+    }
+
+    public GridStreamParser.GridResult streamEventGrid(String channelUuid, GridStreamParser.EntryListener<Event> entryListener) throws InterruptedException, ExecutionException, TimeoutException {
+        return streamEventGrid(channelUuid, DEFAULT_EVENT_LIMIT, entryListener);
+    }
+
+    public Request<GridStreamParser.GridResult> streamEventGridPage(Response.Listener<GridStreamParser.GridResult> listener, Response.ErrorListener errorListener, GridStreamParser.EntryListener<Event> entryListener, String channelUuid, int start, int limit, long minStopTime, long maxStartTime, String sort) {
+        Log.d(TAG, "Calling streamEventGridPage, channel: " + channelUuid + ", start: " + start + ", limit: " + limit
+                + ", minStopTime: " + minStopTime + ", maxStartTime: " + maxStartTime + ", sort: " + sort);
+
+        // In a stable order so consecutive pages don't overlap
+        String url = getBaseHttpUri() + "/api/epg/events/grid?start=" + Integer.toString(start) + "&limit=" + Integer.toString(limit) + "&sort=" + sort + "&dir=ASC";
+
+        if (channelUuid != null) {
+            url += "&channel=" + channelUuid;
+        }
+
+        List<String> filters = new ArrayList<>();
+
+        if (minStopTime > 0) {
+            // Only events which end at or after minStopTime
+            filters.add(numericFilter("stop", "gt", minStopTime - 1));
+        }
+
+        if (maxStartTime > 0) {
+            // Only events which start before maxStartTime
+            filters.add(numericFilter("start", "lt", maxStartTime));
+        }
+
+        if (!filters.isEmpty()) {
+            url += "&filter=" + encodeFilters(filters.toArray(new String[filters.size()]));
+        }
+
+        GridStreamRequest<Event> request = new GridStreamRequest<Event>(
+                Request.Method.GET, url, Event.class, entryListener, listener, errorListener, mAccountName, mAccountPassword);
+
+        return getRequestQueue().add(request);
+    }
+
+    public Request<GridStreamParser.GridResult> streamEventGridPage(Response.Listener<GridStreamParser.GridResult> listener, Response.ErrorListener errorListener, GridStreamParser.EntryListener<Event> entryListener, int start, int limit, long minStopTime) {
+        return streamEventGridPage(listener, errorListener, entryListener, null, start, limit, minStopTime, 0, SORT_START);
+    }
+
+    public ClientFuture<GridStreamParser.GridResult> streamEventGridPageAsync(String channelUuid, int start, int limit, long minStopTime, long maxStartTime, String sort, GridStreamParser.EntryListener<Event> entryListener) {
+        ClientFuture<GridStreamParser.GridResult> future = new ClientFuture<>();
+
+        track(future, streamEventGridPage(future, future, entryListener, channelUuid, start, limit, minStopTime, maxStartTime, sort));
+
+        return future;
+    }
+
+    public ClientFuture<GridStreamParser.GridResult> streamEventGridPageAsync(int start, int limit, long minStopTime, GridStreamParser.EntryListener<Event> entryListener) {
+        return streamEventGridPageAsync(null, start, limit, minStopTime, 0, SORT_START, entryListener);
+    }
+
+    public GridStreamParser.GridResult streamEventGridPage(int start, int limit, long minStopTime, GridStreamParser.EntryListener<Event> entryListener) throws InterruptedException, ExecutionException, TimeoutException {
+        return get(streamEventGridPageAsync(start, limit, minStopTime, entryListener));
+    }
+
+    public GridStreamParser.GridResult streamEventGridPage(int start, int limit, GridStreamParser.EntryListener<Event> entryListener) throws InterruptedException, ExecutionException, TimeoutException {
+        return streamEventGridPage(start, limit, 0, entryListener);
+    }
+
+    /**
+     * Pages through the events of one channel, or all channels, in start time order, streaming
+     * each event to entryListener as its page is parsed.
+     *
+     * @param channelUuid The channel to fetch events for, or null for all channels
+     * @param minStopTime Only events ending at or after this, in seconds, or 0 for no limit
+     * @param maxStartTime Only events starting before this, in seconds, or 0 for no limit. Paging
+     *                     stops as soon as an event at or after it is seen, whether or not the
+     *                     server applied the filter.
+     * @param maxEvents The most events to fetch, or 0 for no limit
+     * @return the number of events passed to entryListener
+     */
+    public int streamEvents(final String channelUuid, final long minStopTime, final long maxStartTime, int maxEvents, GridStreamParser.EntryListener<Event> entryListener) throws InterruptedException, ExecutionException, TimeoutException {
+        final HorizonListener horizonListener = new HorizonListener(entryListener, maxStartTime);
+
+        int pageSize = channelUuid != null ? DEFAULT_EVENT_LIMIT : BULK_EVENT_PAGE_SIZE;
+
+        streamPages(new PageRequest() {
+            @Override
+            public ClientFuture<GridStreamParser.GridResult> request(int start, int limit) {
+                return streamEventGridPageAsync(channelUuid, start, limit, minStopTime, maxStartTime, SORT_START, horizonListener);
+            }
+        }, pageSize, maxEvents, horizonListener, null);
+
+        return horizonListener.getEventCount();
+    }
+
+    /**
+     * Pages through the events of all channels, grouped by channel, streaming each event to
+     * entryListener as its page is parsed. Each channel's events aren't in any particular order.
+     *
+     * Channels sharing a number may be interleaved, it's up to the caller to notice.
+     *
+     * @param minStopTime Only events ending at or after this, in seconds, or 0 for no limit
+     * @param maxStartTime Only events starting before this, in seconds, or 0 for no limit
+     * @param pageListener Called on the calling thread once each page has been streamed
+     * @return the number of events passed to entryListener
+     */
+    public int streamEventsByChannel(final long minStopTime, final long maxStartTime, GridStreamParser.EntryListener<Event> entryListener, PageListener pageListener) throws InterruptedException, ExecutionException, TimeoutException {
+        // Filters out events past the horizon, should the server not. The events aren't in start
+        // time order, so reaching the horizon doesn't end paging.
+        final HorizonListener horizonListener = new HorizonListener(entryListener, maxStartTime);
+
+        streamPages(new PageRequest() {
+            @Override
+            public ClientFuture<GridStreamParser.GridResult> request(int start, int limit) {
+                return streamEventGridPageAsync(null, start, limit, minStopTime, maxStartTime, SORT_CHANNEL, horizonListener);
+            }
+        }, BULK_EVENT_PAGE_SIZE, 0, null, pageListener);
+
+        return horizonListener.getEventCount();
+    }
+
+    public interface PageListener {
+        /**
+         * Called once each page has been streamed, before the next is requested.
+         */
+        void onPage() throws InterruptedException;
+    }
+
+    private interface PageRequest {
+        ClientFuture<GridStreamParser.GridResult> request(int start, int limit);
+    }
+
+    /**
+     * Requests pages one at a time until a short page, the server's total, maxEntries or the
+     * horizon is reached. Only a single page is ever held in memory here, callers wanting the
+     * same bound should hand entries on from pageListener rather than collect them all.
+     *
+     * @return the number of entries received
+     */
+    private int streamPages(PageRequest pageRequest, int pageSize, int maxEntries, HorizonListener horizonListener, PageListener pageListener) throws InterruptedException, ExecutionException, TimeoutException {
+        int start = 0;
+        GridStreamParser.GridResult result;
+
+        do {
+            int limit = maxEntries > 0 ? Math.min(pageSize, maxEntries - start) : pageSize;
+
+            result = get(pageRequest.request(start, limit));
+            start += result.entryCount;
+
+            if (pageListener != null) {
+                pageListener.onPage();
+            }
+
+            if (result.entryCount < limit) {
+                break;
+            }
+        } while ((result.totalCount < 0 || start < result.totalCount)
+                && (maxEntries <= 0 || start < maxEntries)
+                && (horizonListener == null || !horizonListener.isHorizonReached()));
+
+        return start;
+    }
+
+    /**
+     * Passes on events which start before the horizon, and notes when one doesn't.
+     */
+    private static class HorizonListener implements GridStreamParser.EntryListener<Event> {
+        private final GridStreamParser.EntryListener<Event> mListener;
+        private final long mMaxStartTime;
+
+        private volatile boolean mHorizonReached = false;
+        private int mEventCount = 0;
+
+        public HorizonListener(GridStreamParser.EntryListener<Event> listener, long maxStartTime) {
+            mListener = listener;
+            mMaxStartTime = maxStartTime;
+        }
+
+        @Override
+        public void onEntry(Event event) {
+            if (mMaxStartTime > 0 && event.start >= mMaxStartTime) {
+                mHorizonReached = true;
+                return;
+            }
+
+            mEventCount++;
+            mListener.onEntry(event);
+        }
+
+        public boolean isHorizonReached() {
+            return mHorizonReached;
+        }
+
+        public int getEventCount() {
+            return mEventCount;
+        }
+    }
+
+    /**
+     * Cancels every request this client has in flight. Anyone blocked on one of them sees an
+     * InterruptedException, or a CancellationException from the future itself.
+     */
+    public void cancelAll() {
+        List<ClientFuture<?>> futures;
+
+        synchronized (mInFlight) {
+            futures = new ArrayList<>(mInFlight);
+            mInFlight.clear();
+        }
+
+        Log.d(TAG, "Cancelling " + futures.size() + " in flight requests");
+
+        for (ClientFuture<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    private void track(final ClientFuture<?> future, Request<?> request) {
+        synchronized (mInFlight) {
+            mInFlight.add(future);
+        }
+
+        future.setRequest(request);
+        future.setOnDoneListener(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mInFlight) {
+                    mInFlight.remove(future);
+                }
+            }
+        });
+    }
+
+    /**
+     * Blocks for the result of future, up to the client's timeout. Cancelled requests are
+     * reported as an InterruptedException, and requests which time out are cancelled.
+     */
+    private <T> T get(ClientFuture<T> future) throws InterruptedException, ExecutionException, TimeoutException {
+        try {
+            return future.get(mTimeout, TimeUnit.SECONDS);
+        } catch (CancellationException e) {
+            throw new InterruptedException("Request cancelled");
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw e;
+        }
+    }
+
+    private static String numericFilter(String field, String comparison, long value) {
+        return "{\"field\":\"" + field + "\",\"type\":\"numeric\",\"comparison\":\"" + comparison + "\",\"value\":" + Long.toString(value) + "}";
+    }
+
+    private static String encodeFilters(String... filters) {
+        return Uri.encode("[" + TextUtils.join(",", filters) + "]");
+    }
+
     public static class KeyVal {
         public String key;
         public String value;
@@ -99,6 +99,8 @@ public class DemoPlayer implements ExoPlayer.Listener, ChunkSampleSource.EventLi
 
         void onVideoSizeChanged(int width, int height, int unappliedRotationDegrees,
                 float pixelWidthHeightRatio);
+
+        void onDrawnToSurface(Surface surface);
     }
 
     /**
@@ -579,7 +581,9 @@ public class DemoPlayer implements ExoPlayer.Listener, ChunkSampleSource.EventLi
 
     @Override
     public void onDrawnToSurface(Surface surface) {
-        // Do nothing.
+        for (Listener listener : listeners) {
+            listener.onDrawnToSurface(surface);
+        }
     }
 
     @Override
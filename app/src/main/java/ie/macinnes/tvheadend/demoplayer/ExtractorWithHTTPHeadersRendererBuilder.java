@@ -35,7 +35,9 @@ import com.google.android.exoplayer.upstream.DefaultAllocator;
 import com.google.android.exoplayer.upstream.DefaultBandwidthMeter;
 import com.google.android.exoplayer.upstream.DefaultHttpDataSource;
 import com.google.android.exoplayer.upstream.DefaultUriDataSource;
+import com.google.android.exoplayer.upstream.TransferListener;
 
+import java.io.InputStream;
 import java.util.Iterator;
 import java.util.Map;
 
@@ -52,12 +54,31 @@ public class ExtractorWithHTTPHeadersRendererBuilder implements DemoPlayer.Rende
     private final String userAgent;
     private final Uri uri;
     private final Map<String, String> headers;
+    private final TransferListener transferListener;
+    private final InputStream prebufferedInputStream;
 
     public ExtractorWithHTTPHeadersRendererBuilder(Context context, String userAgent, Uri uri, Map<String, String> headers) {
+        this(context, userAgent, uri, headers, null);
+    }
+
+    /**
+     * @param transferListener Notified, on the loading thread, as the stream is read. May be null.
+     */
+    public ExtractorWithHTTPHeadersRendererBuilder(Context context, String userAgent, Uri uri, Map<String, String> headers, TransferListener transferListener) {
+        this(context, userAgent, uri, headers, transferListener, null);
+    }
+
+    /**
+     * @param prebufferedInputStream An already open stream of uri, read before connecting to uri
+     *                               again. May be null.
+     */
+    public ExtractorWithHTTPHeadersRendererBuilder(Context context, String userAgent, Uri uri, Map<String, String> headers, TransferListener transferListener, InputStream prebufferedInputStream) {
         this.context = context;
         this.userAgent = userAgent;
         this.uri = uri;
         this.headers = headers;
+        this.transferListener = transferListener;
+        this.prebufferedInputStream = prebufferedInputStream;
     }
 
     @Override
@@ -68,7 +89,8 @@ public class ExtractorWithHTTPHeadersRendererBuilder implements DemoPlayer.Rende
         DefaultBandwidthMeter bandwidthMeter = new DefaultBandwidthMeter(player.getMainHandler(),
                 null);
 
-        DefaultHttpDataSource httpDataSource = new DefaultHttpDataSource(userAgent, null);
+        DefaultHttpDataSource httpDataSource = new DefaultHttpDataSource(userAgent, null,
+                transferListener);
 
         Iterator it = headers.entrySet().iterator();
 
@@ -79,6 +101,12 @@ public class ExtractorWithHTTPHeadersRendererBuilder implements DemoPlayer.Rende
         }
 
         DataSource dataSource = new DefaultUriDataSource(context, bandwidthMeter, httpDataSource);
+
+        if (prebufferedInputStream != null) {
+            dataSource = new PrebufferedDataSource(prebufferedInputStream, dataSource,
+                    transferListener);
+        }
+
         ExtractorSampleSource sampleSource = new ExtractorSampleSource(uri, dataSource, allocator,
                 BUFFER_SEGMENT_COUNT * BUFFER_SEGMENT_SIZE);
         MediaCodecVideoTrackRenderer videoRenderer = new MediaCodecVideoTrackRenderer(context,
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2016 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package ie.macinnes.tvheadend.demoplayer;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.MediaCodec;
+
+import com.google.android.exoplayer.MediaCodecAudioTrackRenderer;
+import com.google.android.exoplayer.MediaCodecSelector;
+import com.google.android.exoplayer.MediaCodecVideoTrackRenderer;
+import com.google.android.exoplayer.TrackRenderer;
+import com.google.android.exoplayer.audio.AudioCapabilities;
+
+/**
+ * A {@link DemoPlayer.RendererBuilder} for channels streamed over HTSP.
+ */
+public class HtspRendererBuilder implements DemoPlayer.RendererBuilder {
+    private final Context context;
+    private final HtspSampleSource sampleSource;
+
+    public HtspRendererBuilder(Context context, HtspSampleSource sampleSource) {
+        this.context = context;
+        this.sampleSource = sampleSource;
+    }
+
+    @Override
+    public void buildRenderers(DemoPlayer player) {
+        MediaCodecVideoTrackRenderer videoRenderer = new MediaCodecVideoTrackRenderer(context,
+                sampleSource, MediaCodecSelector.DEFAULT,
+                MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT, 5000,
+                player.getMainHandler(), player, 50);
+        MediaCodecAudioTrackRenderer audioRenderer = new MediaCodecAudioTrackRenderer(sampleSource,
+                MediaCodecSelector.DEFAULT, null, true, player.getMainHandler(), player,
+                AudioCapabilities.getCapabilities(context), AudioManager.STREAM_MUSIC);
+
+        // Invoke the callback. Subtitles aren't yet passed through from HTSP.
+        TrackRenderer[] renderers = new TrackRenderer[DemoPlayer.RENDERER_COUNT];
+        renderers[DemoPlayer.TYPE_VIDEO] = videoRenderer;
+        renderers[DemoPlayer.TYPE_AUDIO] = audioRenderer;
+        player.onRenderers(renderers, null);
+    }
+
+    @Override
+    public void cancel() {
+        // Do nothing.
+    }
+}
@@ -0,0 +1,578 @@
+/*
+ * Copyright (c) 2016 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package ie.macinnes.tvheadend.demoplayer;
+
+import android.util.Log;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.MediaFormat;
+import com.google.android.exoplayer.MediaFormatHolder;
+import com.google.android.exoplayer.SampleHolder;
+import com.google.android.exoplayer.SampleSource;
+import com.google.android.exoplayer.TrackRenderer;
+import com.google.android.exoplayer.upstream.TransferListener;
+import com.google.android.exoplayer.util.Assertions;
+import com.google.android.exoplayer.util.MimeTypes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import ie.macinnes.tvheadend.htsp.HtspConnection;
+import ie.macinnes.tvheadend.htsp.HtspMessage;
+
+/**
+ * A {@link SampleSource} for a channel subscribed to over HTSP.
+ * <p>
+ * tvheadend has already demuxed the channel, so its packets are handed to the renderers as they
+ * are, without an extractor. The connection is made, and the channel subscribed to, once the
+ * source is first prepared.
+ */
+public class HtspSampleSource implements SampleSource, SampleSource.SampleSourceReader,
+        HtspConnection.SubscriptionListener {
+    private static final String TAG = HtspSampleSource.class.getName();
+
+    // Packets queued per track, around 4 seconds of 50fps video
+    private static final int MAX_QUEUED_PACKETS = 200;
+
+    private static final long QUEUE_OFFER_TIMEOUT_MS = 100;
+
+    private final String hostname;
+    private final int port;
+    private final String username;
+    private final String password;
+    private final String clientName;
+    private final long channelId;
+    private final TransferListener transferListener;
+
+    // Fixed once prepared, as the player reads them by index
+    private final List<Track> tracks = new ArrayList<>();
+    // Replaced, never modified, should the server restart the subscription
+    private volatile Map<Long, Track> tracksByStreamIndex = Collections.emptyMap();
+
+    private int remainingReleaseCount;
+    private boolean connectionStarted;
+
+    private HtspConnection connection;
+    private volatile long subscriptionId;
+
+    private volatile boolean prepared;
+    private volatile boolean ended;
+    private volatile boolean released;
+    private volatile IOException error;
+
+    private long basePtsUs = C.UNKNOWN_TIME_US;
+
+    /**
+     * @param transferListener Notified, on the connection's thread, as the subscription starts and
+     *                         packets arrive. May be null.
+     */
+    public HtspSampleSource(String hostname, int port, String username, String password,
+            String clientName, long channelId, TransferListener transferListener) {
+        this.hostname = hostname;
+        this.port = port;
+        this.username = username;
+        this.password = password;
+        this.clientName = clientName;
+        this.channelId = channelId;
+        this.transferListener = transferListener;
+    }
+
+    // SampleSource implementation.
+
+    @Override
+    public SampleSourceReader register() {
+        remainingReleaseCount++;
+        return this;
+    }
+
+    // SampleSourceReader implementation.
+
+    @Override
+    public void maybeThrowError() throws IOException {
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    @Override
+    public boolean prepare(long positionUs) {
+        if (!connectionStarted) {
+            connectionStarted = true;
+
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    connect();
+                }
+            }, getClass().getSimpleName()).start();
+        }
+
+        return prepared;
+    }
+
+    @Override
+    public int getTrackCount() {
+        Assertions.checkState(prepared);
+        return tracks.size();
+    }
+
+    @Override
+    public MediaFormat getFormat(int track) {
+        Assertions.checkState(prepared);
+        return tracks.get(track).format;
+    }
+
+    @Override
+    public void enable(int track, long positionUs) {
+        Assertions.checkState(prepared);
+        Track enabledTrack = tracks.get(track);
+        enabledTrack.enabled = true;
+        enabledTrack.formatSent = false;
+    }
+
+    @Override
+    public boolean continueBuffering(int track, long positionUs) {
+        return !tracks.get(track).packets.isEmpty() || ended;
+    }
+
+    @Override
+    public long readDiscontinuity(int track) {
+        return NO_DISCONTINUITY;
+    }
+
+    @Override
+    public int readData(int track, long positionUs, MediaFormatHolder formatHolder,
+            SampleHolder sampleHolder) {
+        Track readTrack = tracks.get(track);
+
+        if (!readTrack.formatSent) {
+            formatHolder.format = readTrack.format;
+            formatHolder.drmInitData = null;
+            readTrack.formatSent = true;
+            return FORMAT_READ;
+        }
+
+        Packet packet = readTrack.packets.poll();
+
+        if (packet == null) {
+            return ended ? END_OF_STREAM : NOTHING_READ;
+        }
+
+        sampleHolder.ensureSpaceForWrite(packet.data.length);
+        sampleHolder.data.put(packet.data);
+        sampleHolder.size = packet.data.length;
+        sampleHolder.timeUs = packet.timeUs;
+        sampleHolder.flags = packet.sync ? C.SAMPLE_FLAG_SYNC : 0;
+
+        return SAMPLE_READ;
+    }
+
+    @Override
+    public void seekToUs(long positionUs) {
+        // Live streams can't be seeked.
+    }
+
+    @Override
+    public long getBufferedPositionUs() {
+        long bufferedPositionUs = Long.MAX_VALUE;
+
+        for (Track track : tracks) {
+            if (track.enabled) {
+                bufferedPositionUs = Math.min(bufferedPositionUs, track.lastTimeUs);
+            }
+        }
+
+        if (bufferedPositionUs == Long.MAX_VALUE || bufferedPositionUs == C.UNKNOWN_TIME_US) {
+            return TrackRenderer.UNKNOWN_TIME_US;
+        }
+
+        return bufferedPositionUs;
+    }
+
+    @Override
+    public void disable(int track) {
+        Track disabledTrack = tracks.get(track);
+        disabledTrack.enabled = false;
+        disabledTrack.packets.clear();
+    }
+
+    @Override
+    public void release() {
+        Assertions.checkState(remainingReleaseCount > 0);
+
+        if (--remainingReleaseCount == 0) {
+            released = true;
+
+            final HtspConnection releasedConnection;
+
+            synchronized (this) {
+                releasedConnection = connection;
+                connection = null;
+            }
+
+            if (releasedConnection != null) {
+                // Unsubscribing waits on the server, don't hold up the player's thread
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            releasedConnection.unsubscribe(subscriptionId);
+                        } catch (IOException e) {
+                            // Ignore
+                        }
+                        releasedConnection.close();
+                    }
+                }, getClass().getSimpleName()).start();
+            }
+        }
+    }
+
+    // SubscriptionListener implementation.
+
+    @Override
+    public void onSubscriptionStart(HtspMessage message) {
+        List<Object> streams = message.getList("streams");
+
+        if (streams == null) {
+            streams = Collections.emptyList();
+        }
+
+        if (prepared) {
+            // The server restarted the subscription, e.g. as the service's PIDs changed
+            remapTracks(streams);
+            return;
+        }
+
+        Map<Long, Track> newTracksByStreamIndex = new HashMap<>();
+
+        for (Object stream : streams) {
+            if (!(stream instanceof HtspMessage)) {
+                continue;
+            }
+
+            MediaFormat format = buildFormat((HtspMessage) stream);
+
+            if (format == null) {
+                continue;
+            }
+
+            Track track = new Track(format);
+            tracks.add(track);
+            newTracksByStreamIndex.put(((HtspMessage) stream).getLong("index", -1), track);
+        }
+
+        tracksByStreamIndex = newTracksByStreamIndex;
+
+        Log.d(TAG, "Subscription started with " + tracks.size() + " playable streams");
+
+        if (transferListener != null) {
+            transferListener.onTransferStart();
+        }
+
+        prepared = true;
+    }
+
+    /**
+     * Points the new streams at the existing tracks, matching each to the first unclaimed track of
+     * the same type. The player already has the tracks, so streams without one are dropped.
+     */
+    private void remapTracks(List<Object> streams) {
+        Map<Long, Track> newTracksByStreamIndex = new HashMap<>();
+        List<Track> unclaimedTracks = new ArrayList<>(tracks);
+
+        for (Object stream : streams) {
+            if (!(stream instanceof HtspMessage)) {
+                continue;
+            }
+
+            MediaFormat format = buildFormat((HtspMessage) stream);
+
+            if (format == null) {
+                continue;
+            }
+
+            for (int i = 0; i < unclaimedTracks.size(); i++) {
+                Track track = unclaimedTracks.get(i);
+
+                if (track.format.mimeType.equals(format.mimeType)) {
+                    newTracksByStreamIndex.put(((HtspMessage) stream).getLong("index", -1), track);
+                    unclaimedTracks.remove(i);
+                    break;
+                }
+            }
+        }
+
+        tracksByStreamIndex = newTracksByStreamIndex;
+
+        Log.d(TAG, "Subscription restarted, " + newTracksByStreamIndex.size() + " of "
+                + tracks.size() + " tracks still streamed");
+    }
+
+    @Override
+    public void onMuxPacket(HtspMessage message) {
+        Track track = tracksByStreamIndex.get(message.getLong("stream", -1));
+        byte[] payload = message.getBytes("payload");
+
+        if (track == null || payload == null) {
+            return;
+        }
+
+        long ptsUs = message.getLong("pts", message.getLong("dts", C.UNKNOWN_TIME_US));
+
+        if (ptsUs == C.UNKNOWN_TIME_US) {
+            ptsUs = track.lastTimeUs == C.UNKNOWN_TIME_US ? 0 : track.lastTimeUs;
+        } else {
+            // Timestamps are from the broadcast, start playback from zero
+            if (basePtsUs == C.UNKNOWN_TIME_US) {
+                basePtsUs = ptsUs;
+            }
+
+            ptsUs = Math.max(0, ptsUs - basePtsUs);
+        }
+
+        // Only video has frame types, tvheadend sends 0 or nothing for everything else
+        boolean sync = !MimeTypes.isVideo(track.format.mimeType)
+                || message.getInt("frametype", 'I') == 'I';
+
+        if (transferListener != null) {
+            transferListener.onBytesTransferred(payload.length);
+        }
+
+        Packet packet = new Packet(payload, ptsUs, sync);
+        track.lastTimeUs = ptsUs;
+
+        try {
+            while (!released) {
+                if (track.packets.offer(packet, QUEUE_OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+
+                if (!track.enabled) {
+                    // Nothing is reading this track, don't hold up the others waiting on it
+                    track.packets.poll();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void onQueueStatus(HtspMessage message) {
+        Log.v(TAG, "Server queue: " + message.getLong("packets", 0) + " packets, "
+                + message.getLong("bytes", 0) + " bytes, "
+                + message.getLong("delay", 0) + "us delay, "
+                + message.getLong("Bdrops", 0) + "/"
+                + message.getLong("Pdrops", 0) + "/"
+                + message.getLong("Idrops", 0) + " B/P/I frames dropped");
+    }
+
+    @Override
+    public void onSubscriptionStop(HtspMessage message) {
+        Log.d(TAG, "Subscription stopped: " + message.getString("status"));
+        ended = true;
+
+        if (!prepared) {
+            error = new IOException("Subscription stopped: " + message.getString("status"));
+        }
+
+        if (transferListener != null) {
+            transferListener.onTransferEnd();
+        }
+    }
+
+    @Override
+    public void onConnectionError(IOException e) {
+        error = e;
+    }
+
+    private void connect() {
+        HtspConnection newConnection = new HtspConnection(hostname, port, username, password,
+                clientName);
+
+        synchronized (this) {
+            if (released) {
+                return;
+            }
+            connection = newConnection;
+        }
+
+        try {
+            newConnection.connect();
+            subscriptionId = newConnection.subscribe(channelId, null, this);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to subscribe to channel " + channelId + ": " + e.getLocalizedMessage());
+            error = e;
+            newConnection.close();
+            return;
+        }
+
+        if (released) {
+            // Released while subscribing
+            newConnection.close();
+        }
+    }
+
+    private static MediaFormat buildFormat(HtspMessage stream) {
+        String type = stream.getString("type");
+
+        if (type == null) {
+            return null;
+        }
+
+        String trackId = String.valueOf(stream.getLong("index", -1));
+        String language = stream.getString("language");
+        byte[] meta = stream.getBytes("meta");
+
+        int width = stream.getInt("width", MediaFormat.NO_VALUE);
+        int height = stream.getInt("height", MediaFormat.NO_VALUE);
+        int channels = stream.getInt("channels", MediaFormat.NO_VALUE);
+        int rate = stream.getInt("rate", MediaFormat.NO_VALUE);
+
+        switch (type) {
+            case "H264":
+                return MediaFormat.createVideoFormat(trackId, MimeTypes.VIDEO_H264,
+                        MediaFormat.NO_VALUE, MediaFormat.NO_VALUE, C.UNKNOWN_TIME_US, width,
+                        height, splitAnnexB(meta));
+            case "HEVC":
+                return MediaFormat.createVideoFormat(trackId, MimeTypes.VIDEO_H265,
+                        MediaFormat.NO_VALUE, MediaFormat.NO_VALUE, C.UNKNOWN_TIME_US, width,
+                        height, null);
+            case "MPEG2VIDEO":
+                return MediaFormat.createVideoFormat(trackId, MimeTypes.VIDEO_MPEG2,
+                        MediaFormat.NO_VALUE, MediaFormat.NO_VALUE, C.UNKNOWN_TIME_US, width,
+                        height, null);
+            case "AAC":
+                byte[] audioSpecificConfig = meta != null ? meta : buildAudioSpecificConfig(rate, channels);
+                return MediaFormat.createAudioFormat(trackId, MimeTypes.AUDIO_AAC,
+                        MediaFormat.NO_VALUE, MediaFormat.NO_VALUE, C.UNKNOWN_TIME_US, channels,
+                        rate, audioSpecificConfig != null ? Collections.singletonList(audioSpecificConfig) : null,
+                        language);
+            case "MPEG2AUDIO":
+                return MediaFormat.createAudioFormat(trackId, MimeTypes.AUDIO_MPEG,
+                        MediaFormat.NO_VALUE, MediaFormat.NO_VALUE, C.UNKNOWN_TIME_US, channels,
+                        rate, null, language);
+            case "AC3":
+                return MediaFormat.createAudioFormat(trackId, MimeTypes.AUDIO_AC3,
+                        MediaFormat.NO_VALUE, MediaFormat.NO_VALUE, C.UNKNOWN_TIME_US, channels,
+                        rate, null, language);
+            case "EAC3":
+                return MediaFormat.createAudioFormat(trackId, MimeTypes.AUDIO_E_AC3,
+                        MediaFormat.NO_VALUE, MediaFormat.NO_VALUE, C.UNKNOWN_TIME_US, channels,
+                        rate, null, language);
+            default:
+                Log.d(TAG, "Ignoring unsupported stream type: " + type);
+                return null;
+        }
+    }
+
+    /**
+     * Splits H264 parameter sets, as start code delimited NAL units, into the SPS and PPS the
+     * decoder expects as separate initialization data.
+     *
+     * @return the NAL units, each with its start code, or null should there be none
+     */
+    private static List<byte[]> splitAnnexB(byte[] data) {
+        if (data == null || data.length < 4 || data[0] != 0 || data[1] != 0) {
+            return null;
+        }
+
+        List<Integer> starts = new ArrayList<>();
+
+        for (int i = 0; i + 3 <= data.length; i++) {
+            if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+                // Include the leading zero of a four byte start code
+                starts.add(i > 0 && data[i - 1] == 0 ? i - 1 : i);
+                i += 2;
+            }
+        }
+
+        if (starts.isEmpty()) {
+            return null;
+        }
+
+        List<byte[]> nalUnits = new ArrayList<>();
+
+        for (int i = 0; i < starts.size(); i++) {
+            int start = starts.get(i);
+            int end = i + 1 < starts.size() ? starts.get(i + 1) : data.length;
+
+            byte[] nalUnit = new byte[end - start];
+            System.arraycopy(data, start, nalUnit, 0, nalUnit.length);
+            nalUnits.add(nalUnit);
+        }
+
+        return nalUnits;
+    }
+
+    /**
+     * @return an AAC LC AudioSpecificConfig, or null for an unknown rate or channel count
+     */
+    private static byte[] buildAudioSpecificConfig(int rate, int channels) {
+        int[] rates = {96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000,
+                11025, 8000, 7350};
+
+        int rateIndex = -1;
+
+        for (int i = 0; i < rates.length; i++) {
+            if (rates[i] == rate) {
+                rateIndex = i;
+                break;
+            }
+        }
+
+        if (rateIndex == -1 || channels <= 0 || channels > 7) {
+            return null;
+        }
+
+        // 5 bits object type (2, LC), 4 bits rate index, 4 bits channel configuration
+        return new byte[] {
+                (byte) ((2 << 3) | (rateIndex >> 1)),
+                (byte) (((rateIndex & 1) << 7) | (channels << 3))
+        };
+    }
+
+    private static final class Track {
+        public final MediaFormat format;
+        public final LinkedBlockingQueue<Packet> packets = new LinkedBlockingQueue<>(MAX_QUEUED_PACKETS);
+
+        public volatile boolean enabled;
+        public volatile long lastTimeUs = C.UNKNOWN_TIME_US;
+        public boolean formatSent;
+
+        public Track(MediaFormat format) {
+            this.format = format;
+        }
+    }
+
+    private static final class Packet {
+        public final byte[] data;
+        public final long timeUs;
+        public final boolean sync;
+
+        public Packet(byte[] data, long timeUs, boolean sync) {
+            this.data = data;
+            this.timeUs = timeUs;
+            this.sync = sync;
+        }
+    }
+}
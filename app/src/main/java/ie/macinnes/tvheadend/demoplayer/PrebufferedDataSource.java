@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2016 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package ie.macinnes.tvheadend.demoplayer;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.upstream.DataSource;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.upstream.TransferListener;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A {@link DataSource} which reads an already open, prebuffered, stream the first time it's
+ * opened from the start. Any other open, e.g. to retry after an error, goes to the fallback
+ * source instead.
+ */
+public class PrebufferedDataSource implements DataSource {
+    private final DataSource fallbackDataSource;
+    private final TransferListener transferListener;
+
+    private InputStream prebufferedInputStream;
+    private InputStream openInputStream;
+    private boolean fallbackOpen;
+
+    /**
+     * @param transferListener Notified as the prebuffered stream is read. May be null.
+     */
+    public PrebufferedDataSource(InputStream prebufferedInputStream, DataSource fallbackDataSource,
+            TransferListener transferListener) {
+        this.prebufferedInputStream = prebufferedInputStream;
+        this.fallbackDataSource = fallbackDataSource;
+        this.transferListener = transferListener;
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+        if (prebufferedInputStream != null && dataSpec.position == 0) {
+            openInputStream = prebufferedInputStream;
+            prebufferedInputStream = null;
+
+            if (transferListener != null) {
+                transferListener.onTransferStart();
+            }
+
+            return C.LENGTH_UNBOUNDED;
+        }
+
+        // The prebuffered stream can only be read once, from the start
+        if (prebufferedInputStream != null) {
+            prebufferedInputStream.close();
+            prebufferedInputStream = null;
+        }
+
+        fallbackOpen = true;
+        return fallbackDataSource.open(dataSpec);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+        if (openInputStream == null) {
+            return fallbackDataSource.read(buffer, offset, readLength);
+        }
+
+        int count = openInputStream.read(buffer, offset, readLength);
+
+        if (count == -1) {
+            return C.RESULT_END_OF_INPUT;
+        }
+
+        if (transferListener != null) {
+            transferListener.onBytesTransferred(count);
+        }
+
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (openInputStream != null) {
+            openInputStream.close();
+            openInputStream = null;
+
+            if (transferListener != null) {
+                transferListener.onTransferEnd();
+            }
+        } else if (fallbackOpen) {
+            fallbackOpen = false;
+            fallbackDataSource.close();
+        }
+    }
+}
@@ -0,0 +1,473 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.htsp;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A connection to tvheadend's HTSP server, for streaming channels as already demuxed packets.
+ *
+ * connect() blocks while the connection is made and authenticated. From then on, replies are
+ * matched up to their requests, and subscription messages are handed to the subscription's
+ * listener on the connection's reader thread.
+ */
+public class HtspConnection {
+    private static final String TAG = HtspConnection.class.getName();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static final int DEFAULT_PORT = 9982;
+
+    private static final int HTSP_VERSION = 25;
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int REPLY_TIMEOUT_MS = 10000;
+
+    // Messages larger than this are treated as a corrupt stream
+    private static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+    public interface SubscriptionListener {
+        /**
+         * Called once the subscription starts, with the streams it carries.
+         */
+        void onSubscriptionStart(HtspMessage message);
+
+        /**
+         * Called with each packet, of any of the subscription's streams.
+         */
+        void onMuxPacket(HtspMessage message);
+
+        /**
+         * Called periodically with the state of the server's queue for the subscription.
+         */
+        void onQueueStatus(HtspMessage message);
+
+        /**
+         * Called once the server stops the subscription.
+         */
+        void onSubscriptionStop(HtspMessage message);
+
+        /**
+         * Called should the connection fail while subscribed.
+         */
+        void onConnectionError(IOException e);
+    }
+
+    public static class HtspException extends IOException {
+        public HtspException(String message) {
+            super(message);
+        }
+    }
+
+    private final String mHostname;
+    private final int mPort;
+    private final String mUsername;
+    private final String mPassword;
+    private final String mClientName;
+
+    private Socket mSocket;
+    private OutputStream mOutputStream;
+    private Thread mReaderThread;
+
+    private volatile boolean mClosed = false;
+
+    private final AtomicInteger mNextSequence = new AtomicInteger(1);
+    private final AtomicInteger mNextSubscriptionId = new AtomicInteger(1);
+
+    private final Map<Long, PendingReply> mPendingReplies = new HashMap<>();
+    private final Map<Long, SubscriptionListener> mSubscriptions = new HashMap<>();
+
+    private String mServerName;
+    private int mServerVersion;
+
+    public HtspConnection(String hostname, int port, String username, String password, String clientName) {
+        mHostname = hostname;
+        mPort = port;
+        mUsername = username;
+        mPassword = password;
+        mClientName = clientName;
+    }
+
+    /**
+     * Connects, negotiates the protocol version and authenticates.
+     */
+    public void connect() throws IOException {
+        Log.d(TAG, "Connecting to HTSP server " + mHostname + ":" + mPort);
+
+        Socket socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(mHostname, mPort), CONNECT_TIMEOUT_MS);
+
+        synchronized (this) {
+            if (mClosed) {
+                socket.close();
+                throw new HtspException("Connection closed");
+            }
+
+            mSocket = socket;
+            mOutputStream = socket.getOutputStream();
+        }
+
+        final InputStream inputStream = new BufferedInputStream(socket.getInputStream());
+
+        mReaderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readMessages(inputStream);
+            }
+        }, "HtspConnection");
+        mReaderThread.start();
+
+        HtspMessage hello = new HtspMessage("hello")
+                .put("htspversion", HTSP_VERSION)
+                .put("clientname", mClientName)
+                .put("clientversion", "1");
+
+        HtspMessage helloReply = request(hello);
+
+        mServerName = helloReply.getString("servername");
+        mServerVersion = helloReply.getInt("htspversion", 0);
+
+        byte[] challenge = helloReply.getBytes("challenge");
+
+        HtspMessage authenticate = new HtspMessage("authenticate")
+                .put("username", mUsername)
+                .put("digest", digest(mPassword, challenge));
+
+        HtspMessage authenticateReply = request(authenticate);
+
+        if (authenticateReply.getInt("noaccess", 0) != 0) {
+            close();
+            throw new HtspException("HTSP authentication failed for " + mUsername);
+        }
+
+        Log.d(TAG, "Connected to " + mServerName + ", HTSP version " + mServerVersion);
+    }
+
+    public String getServerName() {
+        return mServerName;
+    }
+
+    public int getServerVersion() {
+        return mServerVersion;
+    }
+
+    /**
+     * Subscribes to a channel, the listener is called with its packets until unsubscribed.
+     *
+     * @return the subscription ID
+     */
+    public long subscribe(long channelId, String profile, SubscriptionListener listener) throws IOException {
+        long subscriptionId = mNextSubscriptionId.getAndIncrement();
+
+        synchronized (mSubscriptions) {
+            mSubscriptions.put(subscriptionId, listener);
+        }
+
+        HtspMessage subscribe = new HtspMessage("subscribe")
+                .put("channelId", channelId)
+                .put("subscriptionId", subscriptionId);
+
+        if (profile != null) {
+            subscribe.put("profile", profile);
+        }
+
+        try {
+            request(subscribe);
+        } catch (IOException e) {
+            synchronized (mSubscriptions) {
+                mSubscriptions.remove(subscriptionId);
+            }
+            throw e;
+        }
+
+        return subscriptionId;
+    }
+
+    /**
+     * Unsubscribes, the listener is still called with the server's subscriptionStop, should it
+     * be sent ahead of the reply.
+     */
+    public void unsubscribe(long subscriptionId) throws IOException {
+        try {
+            request(new HtspMessage("unsubscribe").put("subscriptionId", subscriptionId));
+        } finally {
+            synchronized (mSubscriptions) {
+                mSubscriptions.remove(subscriptionId);
+            }
+        }
+    }
+
+    /**
+     * Sends a request and waits for its reply.
+     *
+     * @throws HtspException should the server reply with an error
+     */
+    public HtspMessage request(HtspMessage message) throws IOException {
+        long sequence = mNextSequence.getAndIncrement();
+        message.put("seq", sequence);
+
+        PendingReply pendingReply = new PendingReply();
+
+        synchronized (mPendingReplies) {
+            mPendingReplies.put(sequence, pendingReply);
+        }
+
+        try {
+            send(message);
+
+            HtspMessage reply = pendingReply.await(REPLY_TIMEOUT_MS);
+
+            String error = reply.getString("error");
+
+            if (error != null) {
+                throw new HtspException(message.getMethod() + " failed: " + error);
+            }
+
+            return reply;
+        } finally {
+            synchronized (mPendingReplies) {
+                mPendingReplies.remove(sequence);
+            }
+        }
+    }
+
+    public void close() {
+        Socket socket;
+
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+
+            mClosed = true;
+            socket = mSocket;
+        }
+
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+
+        failPendingReplies(new HtspException("Connection closed"));
+    }
+
+    /**
+     * tvheadend's HTSP channel IDs are the first four bytes of the channel's UUID, as a positive
+     * little endian integer.
+     */
+    public static long getChannelId(String channelUuid) {
+        long channelId = 0;
+
+        for (int i = 3; i >= 0; i--) {
+            channelId = (channelId << 8) | Integer.parseInt(channelUuid.substring(i * 2, i * 2 + 2), 16);
+        }
+
+        return channelId & 0x7fffffffL;
+    }
+
+    private void send(HtspMessage message) throws IOException {
+        byte[] bytes = message.toBytes();
+
+        synchronized (this) {
+            if (mClosed || mOutputStream == null) {
+                throw new HtspException("Connection closed");
+            }
+
+            mOutputStream.write(bytes);
+            mOutputStream.flush();
+        }
+    }
+
+    private void readMessages(InputStream inputStream) {
+        DataInputStream dataInputStream = new DataInputStream(inputStream);
+
+        try {
+            while (!mClosed) {
+                int length = dataInputStream.readInt();
+
+                if (length < 0 || length > MAX_MESSAGE_SIZE) {
+                    throw new HtspException("Invalid HTSP message length: " + length);
+                }
+
+                byte[] body = new byte[length];
+                dataInputStream.readFully(body);
+
+                dispatch(HtspMessage.fromBytes(body));
+            }
+        } catch (IOException e) {
+            if (!mClosed) {
+                Log.w(TAG, "HTSP connection failed: " + e.getLocalizedMessage());
+                close();
+
+                if (!(e instanceof EOFException)) {
+                    failSubscriptions(e);
+                } else {
+                    failSubscriptions(new HtspException("Connection closed by server"));
+                }
+            }
+        }
+    }
+
+    private void dispatch(HtspMessage message) {
+        if (message.containsKey("seq")) {
+            PendingReply pendingReply;
+
+            synchronized (mPendingReplies) {
+                pendingReply = mPendingReplies.get(message.getLong("seq", 0));
+            }
+
+            if (pendingReply != null) {
+                pendingReply.complete(message);
+                return;
+            }
+        }
+
+        String method = message.getMethod();
+
+        if (method == null || !message.containsKey("subscriptionId")) {
+            // Metadata and other async messages we haven't asked for
+            return;
+        }
+
+        SubscriptionListener listener;
+
+        synchronized (mSubscriptions) {
+            listener = mSubscriptions.get(message.getLong("subscriptionId", 0));
+        }
+
+        if (listener == null) {
+            return;
+        }
+
+        switch (method) {
+            case "muxpkt":
+                listener.onMuxPacket(message);
+                break;
+            case "subscriptionStart":
+                listener.onSubscriptionStart(message);
+                break;
+            case "queueStatus":
+                listener.onQueueStatus(message);
+                break;
+            case "subscriptionStop":
+                listener.onSubscriptionStop(message);
+                break;
+            default:
+                Log.v(TAG, "Ignoring HTSP message: " + method);
+                break;
+        }
+    }
+
+    private void failPendingReplies(IOException e) {
+        synchronized (mPendingReplies) {
+            for (PendingReply pendingReply : mPendingReplies.values()) {
+                pendingReply.fail(e);
+            }
+        }
+    }
+
+    private void failSubscriptions(IOException e) {
+        Map<Long, SubscriptionListener> subscriptions;
+
+        synchronized (mSubscriptions) {
+            subscriptions = new HashMap<>(mSubscriptions);
+            mSubscriptions.clear();
+        }
+
+        for (SubscriptionListener listener : subscriptions.values()) {
+            listener.onConnectionError(e);
+        }
+    }
+
+    /**
+     * @return SHA-1 of the password followed by the server's challenge
+     */
+    private static byte[] digest(String password, byte[] challenge) {
+        MessageDigest messageDigest;
+
+        try {
+            messageDigest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        messageDigest.update(password != null ? password.getBytes(UTF_8) : new byte[0]);
+
+        if (challenge != null) {
+            messageDigest.update(challenge);
+        }
+
+        return messageDigest.digest();
+    }
+
+    private static class PendingReply {
+        private HtspMessage mReply;
+        private IOException mError;
+
+        public synchronized void complete(HtspMessage reply) {
+            mReply = reply;
+            notifyAll();
+        }
+
+        public synchronized void fail(IOException error) {
+            mError = error;
+            notifyAll();
+        }
+
+        public synchronized HtspMessage await(long timeoutMs) throws IOException {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+
+            while (mReply == null && mError == null) {
+                long remaining = deadline - System.currentTimeMillis();
+
+                if (remaining <= 0) {
+                    throw new HtspException("Timed out waiting for HTSP reply");
+                }
+
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new HtspException("Interrupted waiting for HTSP reply");
+                }
+            }
+
+            if (mError != null) {
+                throw mError;
+            }
+
+            return mReply;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.htsp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * An HTSP message, i.e. a map of named fields in tvheadend's binary htsmsg encoding.
+ *
+ * Field values are Long for integers, String, byte[] for binary data, HtspMessage for nested
+ * maps and List for lists, whose items are any of the same.
+ */
+public class HtspMessage {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int TYPE_MAP = 1;
+    private static final int TYPE_S64 = 2;
+    private static final int TYPE_STR = 3;
+    private static final int TYPE_BIN = 4;
+    private static final int TYPE_LIST = 5;
+
+    private final Map<String, Object> mFields = new LinkedHashMap<>();
+
+    public HtspMessage() {
+    }
+
+    public HtspMessage(String method) {
+        put("method", method);
+    }
+
+    public HtspMessage put(String name, Object value) {
+        if (value instanceof Integer) {
+            value = ((Integer) value).longValue();
+        }
+
+        mFields.put(name, value);
+        return this;
+    }
+
+    public boolean containsKey(String name) {
+        return mFields.containsKey(name);
+    }
+
+    public String getMethod() {
+        return getString("method");
+    }
+
+    public String getString(String name) {
+        Object value = mFields.get(name);
+        return value instanceof String ? (String) value : null;
+    }
+
+    public long getLong(String name, long defaultValue) {
+        Object value = mFields.get(name);
+        return value instanceof Long ? (Long) value : defaultValue;
+    }
+
+    public int getInt(String name, int defaultValue) {
+        return (int) getLong(name, defaultValue);
+    }
+
+    public byte[] getBytes(String name) {
+        Object value = mFields.get(name);
+        return value instanceof byte[] ? (byte[]) value : null;
+    }
+
+    public HtspMessage getMap(String name) {
+        Object value = mFields.get(name);
+        return value instanceof HtspMessage ? (HtspMessage) value : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<Object> getList(String name) {
+        Object value = mFields.get(name);
+        return value instanceof List ? (List<Object>) value : null;
+    }
+
+    /**
+     * @return the encoded message, including its length prefix
+     */
+    public byte[] toBytes() {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        for (Map.Entry<String, Object> field : mFields.entrySet()) {
+            writeField(body, field.getKey(), field.getValue());
+        }
+
+        ByteArrayOutputStream message = new ByteArrayOutputStream(4 + body.size());
+        writeInt32(message, body.size());
+        message.write(body.toByteArray(), 0, body.size());
+
+        return message.toByteArray();
+    }
+
+    /**
+     * @param body The encoded message, without its length prefix
+     */
+    public static HtspMessage fromBytes(byte[] body) throws IOException {
+        HtspMessage message = new HtspMessage();
+        int offset = 0;
+
+        while (offset < body.length) {
+            offset = readField(body, offset, message, null);
+        }
+
+        return message;
+    }
+
+    private static void writeField(ByteArrayOutputStream outputStream, String name, Object value) {
+        byte[] nameBytes = name != null ? name.getBytes(UTF_8) : new byte[0];
+        byte[] data;
+        int type;
+
+        if (value instanceof Long) {
+            type = TYPE_S64;
+            data = encodeS64((Long) value);
+        } else if (value instanceof String) {
+            type = TYPE_STR;
+            data = ((String) value).getBytes(UTF_8);
+        } else if (value instanceof byte[]) {
+            type = TYPE_BIN;
+            data = (byte[]) value;
+        } else if (value instanceof HtspMessage) {
+            type = TYPE_MAP;
+            ByteArrayOutputStream mapData = new ByteArrayOutputStream();
+
+            for (Map.Entry<String, Object> field : ((HtspMessage) value).mFields.entrySet()) {
+                writeField(mapData, field.getKey(), field.getValue());
+            }
+
+            data = mapData.toByteArray();
+        } else if (value instanceof List) {
+            type = TYPE_LIST;
+            ByteArrayOutputStream listData = new ByteArrayOutputStream();
+
+            for (Object item : (List<?>) value) {
+                writeField(listData, null, item);
+            }
+
+            data = listData.toByteArray();
+        } else {
+            throw new IllegalArgumentException("Unsupported HTSP field type for " + name + ": " + value);
+        }
+
+        outputStream.write(type);
+        outputStream.write(nameBytes.length);
+        writeInt32(outputStream, data.length);
+        outputStream.write(nameBytes, 0, nameBytes.length);
+        outputStream.write(data, 0, data.length);
+    }
+
+    /**
+     * Reads the field at offset into either map or list.
+     *
+     * @return the offset of the next field
+     */
+    private static int readField(byte[] body, int offset, HtspMessage map, List<Object> list) throws IOException {
+        if (offset + 6 > body.length) {
+            throw new IOException("Truncated HTSP field header");
+        }
+
+        int type = body[offset] & 0xff;
+        int nameLength = body[offset + 1] & 0xff;
+        int dataLength = readInt32(body, offset + 2);
+
+        int nameOffset = offset + 6;
+        int dataOffset = nameOffset + nameLength;
+        int end = dataOffset + dataLength;
+
+        if (dataLength < 0 || end > body.length) {
+            throw new IOException("Truncated HTSP field");
+        }
+
+        String name = new String(body, nameOffset, nameLength, UTF_8);
+        Object value;
+
+        switch (type) {
+            case TYPE_S64:
+                value = decodeS64(body, dataOffset, dataLength);
+                break;
+            case TYPE_STR:
+                value = new String(body, dataOffset, dataLength, UTF_8);
+                break;
+            case TYPE_BIN:
+                byte[] bin = new byte[dataLength];
+                System.arraycopy(body, dataOffset, bin, 0, dataLength);
+                value = bin;
+                break;
+            case TYPE_MAP:
+                HtspMessage childMap = new HtspMessage();
+                for (int i = dataOffset; i < end; ) {
+                    i = readField(body, i, childMap, null);
+                }
+                value = childMap;
+                break;
+            case TYPE_LIST:
+                List<Object> childList = new ArrayList<>();
+                for (int i = dataOffset; i < end; ) {
+                    i = readField(body, i, null, childList);
+                }
+                value = childList;
+                break;
+            default:
+                // Skip types we don't use, e.g. doubles
+                return end;
+        }
+
+        if (list != null) {
+            list.add(value);
+        } else {
+            map.mFields.put(name, value);
+        }
+
+        return end;
+    }
+
+    /**
+     * Integers are little endian, using as few bytes as needed. Zero has no bytes at all.
+     */
+    private static byte[] encodeS64(long value) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(8);
+
+        while (value != 0) {
+            outputStream.write((int) (value & 0xff));
+            value >>>= 8;
+        }
+
+        return outputStream.toByteArray();
+    }
+
+    private static long decodeS64(byte[] data, int offset, int length) {
+        long value = 0;
+
+        for (int i = length - 1; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xff);
+        }
+
+        return value;
+    }
+
+    private static void writeInt32(ByteArrayOutputStream outputStream, int value) {
+        outputStream.write((value >> 24) & 0xff);
+        outputStream.write((value >> 16) & 0xff);
+        outputStream.write((value >> 8) & 0xff);
+        outputStream.write(value & 0xff);
+    }
+
+    static int readInt32(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24)
+                | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8)
+                | (data[offset + 3] & 0xff);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+
+        for (Map.Entry<String, Object> field : mFields.entrySet()) {
+            if (builder.length() > 1) {
+                builder.append(", ");
+            }
+
+            builder.append(field.getKey()).append("=");
+
+            if (field.getValue() instanceof byte[]) {
+                builder.append("<").append(((byte[]) field.getValue()).length).append(" bytes>");
+            } else {
+                builder.append(field.getValue());
+            }
+        }
+
+        return builder.append("}").toString();
+    }
+}
@@ -21,6 +21,8 @@ import android.media.tv.TvContract;
 import android.support.annotation.NonNull;
 import android.text.TextUtils;
 
+import java.util.Objects;
+
 import ie.macinnes.tvheadend.TvContractUtils;
 import ie.macinnes.tvheadend.client.TVHClient;
 
@@ -127,60 +129,13 @@ public class Channel implements Comparable<Channel> {
         mInternalProviderData = internalProviderData;
     }
 
+    /**
+     * Creates a Channel from the current row of cursor. When reading many rows, create a
+     * single {@link ChannelRow} for the cursor instead, this resolves the column layout on
+     * each call.
+     */
     public static Channel fromCursor(Cursor cursor) {
-        Channel channel = new Channel();
-
-        int index = cursor.getColumnIndex(TvContract.Channels._ID);
-        if (index >= 0 && !cursor.isNull(index)) {
-            channel.setId(cursor.getLong(index));
-        }
-
-        index = cursor.getColumnIndex(TvContract.Channels.COLUMN_INPUT_ID);
-        if (index >= 0 && !cursor.isNull(index)) {
-            channel.setInputId(cursor.getString(index));
-        }
-
-        index = cursor.getColumnIndex(TvContract.Channels.COLUMN_TYPE);
-        if (index >= 0 && !cursor.isNull(index)) {
-            channel.setType(cursor.getString(index));
-        }
-
-        index = cursor.getColumnIndex(TvContract.Channels.COLUMN_DISPLAY_NUMBER);
-        if (index >= 0 && !cursor.isNull(index)) {
-            channel.setDisplayNumber(cursor.getString(index));
-        }
-
-        index = cursor.getColumnIndex(TvContract.Channels.COLUMN_DISPLAY_NAME);
-        if (index >= 0 && !cursor.isNull(index)) {
-            channel.setDisplayName(cursor.getString(index));
-        }
-
-        index = cursor.getColumnIndex(TvContract.Channels.COLUMN_DESCRIPTION);
-        if (index >= 0 && !cursor.isNull(index)) {
-            channel.setDescription(cursor.getString(index));
-        }
-
-        index = cursor.getColumnIndex(TvContract.Channels.COLUMN_ORIGINAL_NETWORK_ID);
-        if (index >= 0 && !cursor.isNull(index)) {
-            channel.setOriginalNetworkId(cursor.getInt(index));
-        }
-
-        index = cursor.getColumnIndex(TvContract.Channels.COLUMN_TRANSPORT_STREAM_ID);
-        if (index >= 0 && !cursor.isNull(index)) {
-            channel.setTransportStreamId(cursor.getInt(index));
-        }
-
-        index = cursor.getColumnIndex(TvContract.Channels.COLUMN_SERVICE_ID);
-        if (index >= 0 && !cursor.isNull(index)) {
-            channel.setServiceId(cursor.getInt(index));
-        }
-
-        index = cursor.getColumnIndex(TvContract.Programs.COLUMN_INTERNAL_PROVIDER_DATA);
-        if (index >= 0 && !cursor.isNull(index)) {
-            channel.setInternalProviderData(InternalProviderData.fromString(cursor.getString(index)));
-        }
-
-        return channel;
+        return new ChannelRow(cursor).toChannel();
     }
 
     public static Channel fromClientChannel(TVHClient.Channel clientChannel, Account account) {
@@ -298,6 +253,39 @@ public class Channel implements Comparable<Channel> {
         return mDisplayNumber.compareTo(other.mDisplayNumber);
     }
 
+    /**
+     * Compares the fields we store in TvProvider, the row ID and icon URI are ignored. Empty
+     * strings are stored as null, so they're treated as equal.
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof Channel)) {
+            return false;
+        }
+        Channel channel = (Channel) other;
+
+        return mOriginalNetworkId == channel.mOriginalNetworkId
+                && mTransportStreamId == channel.mTransportStreamId
+                && mServiceId == channel.mServiceId
+                && Objects.equals(emptyToNull(mInputId), emptyToNull(channel.mInputId))
+                && Objects.equals(emptyToNull(mType), emptyToNull(channel.mType))
+                && Objects.equals(emptyToNull(mDisplayNumber), emptyToNull(channel.mDisplayNumber))
+                && Objects.equals(emptyToNull(mDisplayName), emptyToNull(channel.mDisplayName))
+                && Objects.equals(emptyToNull(mDescription), emptyToNull(channel.mDescription))
+                && Objects.equals(mInternalProviderData, channel.mInternalProviderData);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(mOriginalNetworkId, mTransportStreamId, mServiceId,
+                emptyToNull(mInputId), emptyToNull(mType), emptyToNull(mDisplayNumber),
+                emptyToNull(mDisplayName), emptyToNull(mDescription), mInternalProviderData);
+    }
+
+    private static String emptyToNull(String string) {
+        return TextUtils.isEmpty(string) ? null : string;
+    }
+
     public static class InternalProviderData {
         // TODO: Replace with gson store
         private String mUuid;
@@ -342,7 +330,12 @@ public class Channel implements Comparable<Channel> {
                 return false;
             }
             InternalProviderData providerData = (InternalProviderData) other;
-            return mUuid.equals(providerData.mUuid) && mAccountName.equals(providerData.mAccountName);
+            return Objects.equals(mUuid, providerData.mUuid) && Objects.equals(mAccountName, providerData.mAccountName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mUuid, mAccountName);
         }
     }
 }
@@ -32,8 +32,10 @@ public class ChannelList extends ArrayList<Channel> {
             return channelList;
         }
 
+        ChannelRow row = new ChannelRow(cursor);
+
         while (cursor.moveToNext()) {
-            channelList.add(Channel.fromCursor(cursor));
+            channelList.add(row.toChannel());
         }
 
         return channelList;
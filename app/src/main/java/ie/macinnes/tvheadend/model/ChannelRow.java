@@ -0,0 +1,99 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.model;
+
+import android.database.Cursor;
+import android.media.tv.TvContract;
+
+/**
+ * A view over the current row of a channels Cursor. Column indexes are resolved once, when the
+ * view is created, rather than for every row.
+ *
+ * NOTE: The view reads straight from the Cursor, it's only valid while the Cursor is open and
+ * positioned on the row in question. Use {@link #toChannel()} to keep a row around.
+ *
+ * A single ChannelRow should be created for each Cursor, and reused for each of its rows.
+ */
+public class ChannelRow {
+    private final Cursor mCursor;
+
+    private final int mIdIndex;
+    private final int mInputIdIndex;
+    private final int mTypeIndex;
+    private final int mDisplayNumberIndex;
+    private final int mDisplayNameIndex;
+    private final int mDescriptionIndex;
+    private final int mOriginalNetworkIdIndex;
+    private final int mTransportStreamIdIndex;
+    private final int mServiceIdIndex;
+    private final int mInternalProviderDataIndex;
+
+    public ChannelRow(Cursor cursor) {
+        mCursor = cursor;
+
+        mIdIndex = cursor.getColumnIndex(TvContract.Channels._ID);
+        mInputIdIndex = cursor.getColumnIndex(TvContract.Channels.COLUMN_INPUT_ID);
+        mTypeIndex = cursor.getColumnIndex(TvContract.Channels.COLUMN_TYPE);
+        mDisplayNumberIndex = cursor.getColumnIndex(TvContract.Channels.COLUMN_DISPLAY_NUMBER);
+        mDisplayNameIndex = cursor.getColumnIndex(TvContract.Channels.COLUMN_DISPLAY_NAME);
+        mDescriptionIndex = cursor.getColumnIndex(TvContract.Channels.COLUMN_DESCRIPTION);
+        mOriginalNetworkIdIndex = cursor.getColumnIndex(TvContract.Channels.COLUMN_ORIGINAL_NETWORK_ID);
+        mTransportStreamIdIndex = cursor.getColumnIndex(TvContract.Channels.COLUMN_TRANSPORT_STREAM_ID);
+        mServiceIdIndex = cursor.getColumnIndex(TvContract.Channels.COLUMN_SERVICE_ID);
+        mInternalProviderDataIndex = cursor.getColumnIndex(TvContract.Channels.COLUMN_INTERNAL_PROVIDER_DATA);
+    }
+
+    /**
+     * Copies the current row into a new Channel.
+     */
+    public Channel toChannel() {
+        return toChannel(new Channel());
+    }
+
+    /**
+     * Copies the current row into channel, overwriting every field. Columns missing from the
+     * projection are reset to their defaults, so a single Channel can be reused across rows.
+     */
+    public Channel toChannel(Channel channel) {
+        channel.setId(hasValue(mIdIndex) ? mCursor.getLong(mIdIndex) : Channel.INVALID_CHANNEL_ID);
+        channel.setInputId(getString(mInputIdIndex));
+        channel.setType(getString(mTypeIndex));
+        channel.setDisplayNumber(getString(mDisplayNumberIndex));
+        channel.setDisplayName(getString(mDisplayNameIndex));
+        channel.setDescription(getString(mDescriptionIndex));
+        channel.setIconUri(null);
+        channel.setOriginalNetworkId(getInt(mOriginalNetworkIdIndex));
+        channel.setTransportStreamId(getInt(mTransportStreamIdIndex));
+        channel.setServiceId(getInt(mServiceIdIndex));
+
+        String internalProviderData = getString(mInternalProviderDataIndex);
+        channel.setInternalProviderData(internalProviderData != null
+                ? Channel.InternalProviderData.fromString(internalProviderData) : null);
+
+        return channel;
+    }
+
+    private boolean hasValue(int index) {
+        return index >= 0 && !mCursor.isNull(index);
+    }
+
+    private int getInt(int index) {
+        return hasValue(index) ? mCursor.getInt(index) : 0;
+    }
+
+    private String getString(int index) {
+        return hasValue(index) ? mCursor.getString(index) : null;
+    }
+}
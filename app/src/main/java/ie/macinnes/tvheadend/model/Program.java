@@ -31,6 +31,9 @@ public class Program implements Comparable<Program> {
     private static final long INVALID_LONG_VALUE = -1;
     private static final int INVALID_INT_VALUE = -1;
 
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
     private long mProgramId;
     private long mChannelId;
     private String mTitle;
@@ -141,83 +144,13 @@ public class Program implements Comparable<Program> {
         mInternalProviderData = internalProviderData;
     }
 
-    @TargetApi(24)
+    /**
+     * Creates a Program from the current row of cursor. When reading many rows, create a
+     * single {@link ProgramRow} for the cursor instead, this resolves the column layout on
+     * each call.
+     */
     public static Program fromCursor(Cursor cursor) {
-        Program program = new Program();
-
-        int index = cursor.getColumnIndex(TvContract.Programs._ID);
-        if (index >= 0 && !cursor.isNull(index)) {
-            program.setProgramId(cursor.getLong(index));
-        }
-
-        index = cursor.getColumnIndex(TvContract.Programs.COLUMN_CHANNEL_ID);
-        if (index >= 0 && !cursor.isNull(index)) {
-            program.setChannelId(cursor.getLong(index));
-        }
-
-        index = cursor.getColumnIndex(TvContract.Programs.COLUMN_TITLE);
-        if (index >= 0 && !cursor.isNull(index)) {
-            program.setTitle(cursor.getString(index));
-        }
-
-        index = cursor.getColumnIndex(TvContract.Programs.COLUMN_EPISODE_TITLE);
-        if (index >= 0 && !cursor.isNull(index)) {
-            program.setEpisodeTitle(cursor.getString(index));
-        }
-
-        index = cursor.getColumnIndex(TvContract.Programs.COLUMN_SHORT_DESCRIPTION);
-        if (index >= 0 && !cursor.isNull(index)) {
-            program.setShortDescription(cursor.getString(index));
-        }
-
-        index = cursor.getColumnIndex(TvContract.Programs.COLUMN_LONG_DESCRIPTION);
-        if (index >= 0 && !cursor.isNull(index)) {
-            program.setLongDescription(cursor.getString(index));
-        }
-
-        index = cursor.getColumnIndex(TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS);
-        if (index >= 0 && !cursor.isNull(index)) {
-            program.setStartTimeUtcMillis(cursor.getLong(index));
-        }
-
-        index = cursor.getColumnIndex(TvContract.Programs.COLUMN_END_TIME_UTC_MILLIS);
-        if (index >= 0 && !cursor.isNull(index)) {
-            program.setEndTimeUtcMillis(cursor.getLong(index));
-        }
-
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-            index = cursor.getColumnIndex(TvContract.Programs.COLUMN_SEASON_DISPLAY_NUMBER);
-            if (index >= 0 && !cursor.isNull(index)) {
-                program.setSeasonDisplayNumber(cursor.getString(index));
-            }
-
-            index = cursor.getColumnIndex(TvContract.Programs.COLUMN_EPISODE_DISPLAY_NUMBER);
-            if (index >= 0 && !cursor.isNull(index)) {
-                program.setEpisodeDisplayNumber(cursor.getString(index));
-            }
-        } else {
-            index = cursor.getColumnIndex(TvContract.Programs.COLUMN_SEASON_NUMBER);
-            if (index >= 0 && !cursor.isNull(index)) {
-                program.setSeasonDisplayNumber(cursor.getString(index));
-            }
-
-            index = cursor.getColumnIndex(TvContract.Programs.COLUMN_EPISODE_NUMBER);
-            if (index >= 0 && !cursor.isNull(index)) {
-                program.setEpisodeDisplayNumber(cursor.getString(index));
-            }
-        }
-        
-        index = cursor.getColumnIndex(TvContract.Programs.COLUMN_POSTER_ART_URI);
-        if (index >= 0 && !cursor.isNull(index)) {
-            program.setImage(cursor.getString(index));
-        }
-
-        index = cursor.getColumnIndex(TvContract.Programs.COLUMN_INTERNAL_PROVIDER_DATA);
-        if (index >= 0 && !cursor.isNull(index)) {
-            program.setInternalProviderData(InternalProviderData.fromString(cursor.getString(index)));
-        }
-
-        return program;
+        return new ProgramRow(cursor).toProgram();
     }
 
     public static Program fromClientEvent(TVHClient.Event clientEvent, long channelId, Account account) {
@@ -263,9 +196,66 @@ public class Program implements Comparable<Program> {
 
         program.setInternalProviderData(providerData);
 
+        // Stored alongside the eventId, so later syncs can tell if anything changed without
+        // reading the program back in full
+        providerData.setContentHash(program.computeContentHash());
+
         return program;
     }
 
+    /**
+     * Computes a 64-bit FNV-1a hash over every field we sync to TvProvider. The content hash
+     * itself, and the program ID, are excluded.
+     */
+    public long computeContentHash() {
+        long hash = FNV_OFFSET_BASIS;
+
+        hash = hashLong(hash, mChannelId);
+        hash = hashLong(hash, mStartTimeUtcMillis);
+        hash = hashLong(hash, mEndTimeUtcMillis);
+        hash = hashString(hash, mTitle);
+        hash = hashString(hash, mEpisodeTitle);
+        hash = hashString(hash, mShortDescription);
+        hash = hashString(hash, mLongDescription);
+        hash = hashString(hash, mSeasonDisplayNumber);
+        hash = hashString(hash, mEpisodeDisplayNumber);
+        hash = hashString(hash, mImage);
+
+        if (mInternalProviderData != null) {
+            hash = hashString(hash, mInternalProviderData.getEventId());
+            hash = hashString(hash, mInternalProviderData.getAccountName());
+        }
+
+        // 0 is reserved for "no hash stored"
+        return hash != 0 ? hash : 1;
+    }
+
+    private static long hashLong(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash ^= (value >>> (i * 8)) & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static long hashString(long hash, String value) {
+        if (value == null) {
+            // Distinguish null from the empty string
+            return hashLong(hash, -1);
+        }
+
+        hash = hashLong(hash, value.length());
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash ^= c & 0xff;
+            hash *= FNV_PRIME;
+            hash ^= c >>> 8;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
@@ -399,10 +389,18 @@ public class Program implements Comparable<Program> {
                 && mInternalProviderData.equals(program.mInternalProviderData);
     }
 
+    @Override
+    public int hashCode() {
+        return Objects.hash(mChannelId, mStartTimeUtcMillis, mEndTimeUtcMillis, mTitle,
+                mEpisodeTitle, mShortDescription, mLongDescription, mSeasonDisplayNumber,
+                mEpisodeDisplayNumber, mImage, mInternalProviderData);
+    }
+
     public static class InternalProviderData {
         // TODO: Replace with gson store
         private String mEventId;
         private String mAccountName;
+        private long mContentHash;
 
         public static InternalProviderData fromString(String string) {
             InternalProviderData providerData = new InternalProviderData();
@@ -410,15 +408,24 @@ public class Program implements Comparable<Program> {
 
             providerData.mEventId = parts[0];
 
-            if (parts.length == 2) {
+            if (parts.length >= 2) {
                 providerData.mAccountName = parts[1];
             }
 
+            if (parts.length >= 3) {
+                // Programs written by older versions have no content hash
+                try {
+                    providerData.mContentHash = Long.parseLong(parts[2]);
+                } catch (NumberFormatException e) {
+                    providerData.mContentHash = 0;
+                }
+            }
+
             return providerData;
         }
 
         public String toString() {
-            return mEventId + ":" + mAccountName;
+            return mEventId + ":" + mAccountName + ":" + Long.toString(mContentHash);
         }
 
         public String getEventId() {
@@ -437,13 +444,28 @@ public class Program implements Comparable<Program> {
             mAccountName = accountName;
         }
 
+        public long getContentHash() {
+            return mContentHash;
+        }
+
+        public void setContentHash(long contentHash) {
+            mContentHash = contentHash;
+        }
+
         @Override
         public boolean equals(Object other) {
             if (!(other instanceof InternalProviderData)) {
                 return false;
             }
             InternalProviderData providerData = (InternalProviderData) other;
-            return mEventId.equals(providerData.mEventId) && mAccountName.equals(providerData.mAccountName);
+            return mEventId.equals(providerData.mEventId)
+                    && mAccountName.equals(providerData.mAccountName)
+                    && mContentHash == providerData.mContentHash;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mEventId, mAccountName, mContentHash);
         }
     }
 }
@@ -29,8 +29,10 @@ public class ProgramList extends ArrayList<Program> {
             return programList;
         }
 
+        ProgramRow row = new ProgramRow(cursor);
+
         while (cursor.moveToNext()) {
-            programList.add(Program.fromCursor(cursor));
+            programList.add(row.toProgram());
         }
 
         return programList;
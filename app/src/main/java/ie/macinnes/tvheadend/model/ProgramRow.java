@@ -0,0 +1,168 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.model;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.media.tv.TvContract;
+import android.os.Build;
+
+/**
+ * A view over the current row of a programs Cursor. Column indexes are resolved once, when the
+ * view is created, rather than for every row. Columns missing from the projection read as
+ * null, or -1 for numeric columns.
+ *
+ * NOTE: The view reads straight from the Cursor, it's only valid while the Cursor is open and
+ * positioned on the row in question. Use {@link #toProgram()} to keep a row around.
+ *
+ * A single ProgramRow should be created for each Cursor, and reused for each of its rows.
+ */
+public class ProgramRow {
+    private static final long INVALID_LONG_VALUE = -1;
+
+    private final Cursor mCursor;
+
+    private final int mProgramIdIndex;
+    private final int mChannelIdIndex;
+    private final int mTitleIndex;
+    private final int mEpisodeTitleIndex;
+    private final int mShortDescriptionIndex;
+    private final int mLongDescriptionIndex;
+    private final int mStartTimeIndex;
+    private final int mEndTimeIndex;
+    private final int mSeasonIndex;
+    private final int mEpisodeIndex;
+    private final int mImageIndex;
+    private final int mInternalProviderDataIndex;
+
+    @TargetApi(24)
+    public ProgramRow(Cursor cursor) {
+        mCursor = cursor;
+
+        mProgramIdIndex = cursor.getColumnIndex(TvContract.Programs._ID);
+        mChannelIdIndex = cursor.getColumnIndex(TvContract.Programs.COLUMN_CHANNEL_ID);
+        mTitleIndex = cursor.getColumnIndex(TvContract.Programs.COLUMN_TITLE);
+        mEpisodeTitleIndex = cursor.getColumnIndex(TvContract.Programs.COLUMN_EPISODE_TITLE);
+        mShortDescriptionIndex = cursor.getColumnIndex(TvContract.Programs.COLUMN_SHORT_DESCRIPTION);
+        mLongDescriptionIndex = cursor.getColumnIndex(TvContract.Programs.COLUMN_LONG_DESCRIPTION);
+        mStartTimeIndex = cursor.getColumnIndex(TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS);
+        mEndTimeIndex = cursor.getColumnIndex(TvContract.Programs.COLUMN_END_TIME_UTC_MILLIS);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            mSeasonIndex = cursor.getColumnIndex(TvContract.Programs.COLUMN_SEASON_DISPLAY_NUMBER);
+            mEpisodeIndex = cursor.getColumnIndex(TvContract.Programs.COLUMN_EPISODE_DISPLAY_NUMBER);
+        } else {
+            mSeasonIndex = cursor.getColumnIndex(TvContract.Programs.COLUMN_SEASON_NUMBER);
+            mEpisodeIndex = cursor.getColumnIndex(TvContract.Programs.COLUMN_EPISODE_NUMBER);
+        }
+
+        mImageIndex = cursor.getColumnIndex(TvContract.Programs.COLUMN_POSTER_ART_URI);
+        mInternalProviderDataIndex = cursor.getColumnIndex(TvContract.Programs.COLUMN_INTERNAL_PROVIDER_DATA);
+    }
+
+    public long getProgramId() {
+        return getLong(mProgramIdIndex);
+    }
+
+    public long getChannelId() {
+        return getLong(mChannelIdIndex);
+    }
+
+    public String getTitle() {
+        return getString(mTitleIndex);
+    }
+
+    public String getEpisodeTitle() {
+        return getString(mEpisodeTitleIndex);
+    }
+
+    public String getShortDescription() {
+        return getString(mShortDescriptionIndex);
+    }
+
+    public String getLongDescription() {
+        return getString(mLongDescriptionIndex);
+    }
+
+    public long getStartTimeUtcMillis() {
+        return getLong(mStartTimeIndex);
+    }
+
+    public long getEndTimeUtcMillis() {
+        return getLong(mEndTimeIndex);
+    }
+
+    public String getSeasonDisplayNumber() {
+        return getString(mSeasonIndex);
+    }
+
+    public String getEpisodeDisplayNumber() {
+        return getString(mEpisodeIndex);
+    }
+
+    public String getImage() {
+        return getString(mImageIndex);
+    }
+
+    public Program.InternalProviderData getInternalProviderData() {
+        String internalProviderData = getString(mInternalProviderDataIndex);
+
+        if (internalProviderData == null) {
+            return null;
+        }
+
+        return Program.InternalProviderData.fromString(internalProviderData);
+    }
+
+    /**
+     * Copies the current row into a new Program.
+     */
+    public Program toProgram() {
+        return toProgram(new Program());
+    }
+
+    /**
+     * Copies the current row into program, overwriting every field. Columns missing from the
+     * projection are reset to their defaults, so a single Program can be reused across rows.
+     */
+    public Program toProgram(Program program) {
+        program.setProgramId(hasValue(mProgramIdIndex) ? mCursor.getLong(mProgramIdIndex) : 0);
+        program.setChannelId(hasValue(mChannelIdIndex) ? mCursor.getLong(mChannelIdIndex) : 0);
+        program.setTitle(getTitle());
+        program.setEpisodeTitle(getEpisodeTitle());
+        program.setShortDescription(getShortDescription());
+        program.setLongDescription(getLongDescription());
+        program.setStartTimeUtcMillis(hasValue(mStartTimeIndex) ? mCursor.getLong(mStartTimeIndex) : 0);
+        program.setEndTimeUtcMillis(hasValue(mEndTimeIndex) ? mCursor.getLong(mEndTimeIndex) : 0);
+        program.setSeasonDisplayNumber(getSeasonDisplayNumber());
+        program.setEpisodeDisplayNumber(getEpisodeDisplayNumber());
+        program.setImage(getImage());
+        program.setInternalProviderData(getInternalProviderData());
+
+        return program;
+    }
+
+    private boolean hasValue(int index) {
+        return index >= 0 && !mCursor.isNull(index);
+    }
+
+    private long getLong(int index) {
+        return hasValue(index) ? mCursor.getLong(index) : INVALID_LONG_VALUE;
+    }
+
+    private String getString(int index) {
+        return hasValue(index) ? mCursor.getString(index) : null;
+    }
+}
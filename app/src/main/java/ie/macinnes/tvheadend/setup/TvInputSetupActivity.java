@@ -39,9 +39,9 @@ import java.util.List;
 import ie.macinnes.tvheadend.Constants;
 import ie.macinnes.tvheadend.R;
 import ie.macinnes.tvheadend.TvContractUtils;
-import ie.macinnes.tvheadend.client.TVHClient;
 import ie.macinnes.tvheadend.migrate.MigrateUtils;
 import ie.macinnes.tvheadend.sync.SyncUtils;
+import ie.macinnes.tvheadend.tvinput.ZapAccelerator;
 
 public class TvInputSetupActivity extends Activity {
     private static final String TAG = TvInputSetupActivity.class.getName();
@@ -62,7 +62,6 @@ public class TvInputSetupActivity extends Activity {
         protected AccountManager mAccountManager;
 
         protected static Account sAccount;
-        protected static TVHClient sClient;
 
         @Override
         public int onProvideTheme() {
@@ -82,7 +81,6 @@ public class TvInputSetupActivity extends Activity {
             }
 
             mAccountManager = AccountManager.get(getActivity());
-            sClient = TVHClient.getInstance(getActivity());
         }
 
         protected Account getAccountByName(String name) {
@@ -302,9 +300,6 @@ public class TvInputSetupActivity extends Activity {
         @Override
         public void onGuidedActionClicked(GuidedAction action) {
             if (ACTION_ID_CONFIRM == action.getId()) {
-                // Setup the client with the selected account
-                sClient.setConnectionInfo(sAccount);
-
                 // Move onto the next step
                 GuidedStepFragment fragment = new SessionSelectorFragment();
                 fragment.setArguments(getArguments());
@@ -317,6 +312,7 @@ public class TvInputSetupActivity extends Activity {
         private static final int ACTION_ID_MEDIA_PLAYER = 1;
         private static final int ACTION_ID_EXO_PLAYER = 2;
         private static final int ACTION_ID_VLC = 3;
+        private static final int ACTION_ID_HTSP = 4;
 
         @NonNull
         @Override
@@ -358,6 +354,15 @@ public class TvInputSetupActivity extends Activity {
                     .build();
 
             actions.add(action);
+
+            action = new GuidedAction.Builder(getActivity())
+                    .id(ACTION_ID_HTSP)
+                    .title("HTSP")
+                    .description("Native HTSP streaming into ExoPlayer (Experimental)")
+                    .editable(false)
+                    .build();
+
+            actions.add(action);
         }
 
         @Override
@@ -370,6 +375,8 @@ public class TvInputSetupActivity extends Activity {
                 session = Constants.SESSION_EXO_PLAYER;
             } else if (action.getId() == ACTION_ID_VLC) {
                 session = Constants.SESSION_VLC;
+            } else if (action.getId() == ACTION_ID_HTSP) {
+                session = Constants.SESSION_HTSP;
             } else {
                 return;
             }
@@ -382,13 +389,330 @@ public class TvInputSetupActivity extends Activity {
             editor.putString(Constants.KEY_SESSION, session);
             editor.commit();
 
-            // Move onto the next step
-            GuidedStepFragment fragment = new SyncingFragment();
+            // Move onto the next step, only the ExoPlayer session supports zap acceleration
+            GuidedStepFragment fragment;
+
+            if (Constants.SESSION_EXO_PLAYER.equals(session)) {
+                fragment = new ZapAccelerationFragment();
+            } else {
+                fragment = new ProgramGuideFragment();
+            }
+
             fragment.setArguments(getArguments());
             add(getFragmentManager(), fragment);
         }
     }
 
+    public static class ZapAccelerationFragment extends BaseGuidedStepFragment {
+        private static final int ACTION_ID_CONFIRM = 1;
+
+        // Enabled states are 2xx
+        private static final int ACTION_ID_SELECT_ENABLED = 2;
+        private static final int ACTION_ID_ENABLED = 201;
+        private static final int ACTION_ID_DISABLED = 202;
+
+        // Subscription limits are 3xx, the limit being the action ID - 300
+        private static final int ACTION_ID_SELECT_MAX_SUBSCRIPTIONS = 3;
+        private static final int ACTION_ID_MAX_SUBSCRIPTIONS_BASE = 300;
+        private static final int MIN_MAX_SUBSCRIPTIONS = 2;
+        private static final int MAX_MAX_SUBSCRIPTIONS = 4;
+
+        private SharedPreferences mSharedPreferences;
+
+        private boolean mEnabled;
+        private int mMaxSubscriptions;
+
+        @Override
+        public void onCreate(Bundle savedInstanceState) {
+            // The current choices are needed before super.onCreate() creates the actions
+            mSharedPreferences = getActivity().getSharedPreferences(
+                    Constants.PREFERENCE_TVHEADEND, Context.MODE_PRIVATE);
+
+            mEnabled = mSharedPreferences.getBoolean(Constants.KEY_ZAP_ACCELERATION_ENABLED, false);
+            mMaxSubscriptions = mSharedPreferences.getInt(
+                    Constants.KEY_ZAP_MAX_SUBSCRIPTIONS, ZapAccelerator.DEFAULT_MAX_SUBSCRIPTIONS);
+
+            super.onCreate(savedInstanceState);
+        }
+
+        @NonNull
+        @Override
+        public GuidanceStylist.Guidance onCreateGuidance(Bundle savedInstanceState) {
+            GuidanceStylist.Guidance guidance = new GuidanceStylist.Guidance(
+                    "Zap Acceleration",
+                    "Keep the previous and neighbouring channels streaming in the background, so " +
+                    "switching to them is quicker. Each channel streamed is a subscription on " +
+                    "your server, and may hold a tuner",
+                    "TVHeadend",
+                    null);
+
+            return guidance;
+        }
+
+        @Override
+        public void onCreateActions(@NonNull List<GuidedAction> actions, Bundle savedInstanceState) {
+            List<GuidedAction> subActions = new ArrayList();
+
+            subActions.add(createChoiceAction(ACTION_ID_ENABLED, "Enabled", null, mEnabled));
+            subActions.add(createChoiceAction(ACTION_ID_DISABLED, "Disabled", null, !mEnabled));
+
+            GuidedAction action = new GuidedAction.Builder(getActivity())
+                    .id(ACTION_ID_SELECT_ENABLED)
+                    .title("Zap Acceleration")
+                    .description(mEnabled ? "Enabled" : "Disabled")
+                    .subActions(subActions)
+                    .build();
+
+            actions.add(action);
+
+            subActions = new ArrayList();
+
+            for (int maxSubscriptions = MIN_MAX_SUBSCRIPTIONS; maxSubscriptions <= MAX_MAX_SUBSCRIPTIONS; maxSubscriptions++) {
+                subActions.add(createChoiceAction(ACTION_ID_MAX_SUBSCRIPTIONS_BASE + maxSubscriptions,
+                        Integer.toString(maxSubscriptions), formatMaxSubscriptions(maxSubscriptions),
+                        mMaxSubscriptions == maxSubscriptions));
+            }
+
+            action = new GuidedAction.Builder(getActivity())
+                    .id(ACTION_ID_SELECT_MAX_SUBSCRIPTIONS)
+                    .title("Subscriptions")
+                    .description(formatMaxSubscriptions(mMaxSubscriptions))
+                    .subActions(subActions)
+                    .build();
+
+            actions.add(action);
+        }
+
+        @Override
+        public void onCreateButtonActions(@NonNull List<GuidedAction> actions, Bundle savedInstanceState) {
+            GuidedAction action = new GuidedAction.Builder(getActivity())
+                    .id(ACTION_ID_CONFIRM)
+                    .title("Confirm")
+                    .build();
+
+            actions.add(action);
+        }
+
+        private GuidedAction createChoiceAction(int id, String title, String description, boolean checked) {
+            GuidedAction action = new GuidedAction.Builder(getActivity())
+                    .id(id)
+                    .title(title)
+                    .description(description)
+                    .checkSetId(GuidedAction.DEFAULT_CHECK_SET_ID)
+                    .build();
+
+            action.setChecked(checked);
+
+            return action;
+        }
+
+        private static String formatMaxSubscriptions(int maxSubscriptions) {
+            // One of the subscriptions is the channel being watched
+            return "Live channel plus up to " + (maxSubscriptions - 1) + " in the background";
+        }
+
+        @Override
+        public boolean onSubGuidedActionClicked(GuidedAction action) {
+            long actionId = action.getId();
+
+            if (actionId >= 200 && actionId <= 299) {
+                mEnabled = actionId == ACTION_ID_ENABLED;
+
+                findActionById(ACTION_ID_SELECT_ENABLED).setDescription(mEnabled ? "Enabled" : "Disabled");
+                notifyActionChanged(findActionPositionById(ACTION_ID_SELECT_ENABLED));
+            } else if (actionId >= 300 && actionId <= 399) {
+                mMaxSubscriptions = (int) actionId - ACTION_ID_MAX_SUBSCRIPTIONS_BASE;
+
+                findActionById(ACTION_ID_SELECT_MAX_SUBSCRIPTIONS).setDescription(formatMaxSubscriptions(mMaxSubscriptions));
+                notifyActionChanged(findActionPositionById(ACTION_ID_SELECT_MAX_SUBSCRIPTIONS));
+            }
+
+            return true;
+        }
+
+        @Override
+        public void onGuidedActionClicked(GuidedAction action) {
+            if (ACTION_ID_CONFIRM == action.getId()) {
+                // Store the chosen settings, read by each new session
+                SharedPreferences.Editor editor = mSharedPreferences.edit();
+                editor.putBoolean(Constants.KEY_ZAP_ACCELERATION_ENABLED, mEnabled);
+                editor.putInt(Constants.KEY_ZAP_MAX_SUBSCRIPTIONS, mMaxSubscriptions);
+                editor.commit();
+
+                // Move onto the next step
+                GuidedStepFragment fragment = new ProgramGuideFragment();
+                fragment.setArguments(getArguments());
+                add(getFragmentManager(), fragment);
+            }
+        }
+    }
+
+    public static class ProgramGuideFragment extends BaseGuidedStepFragment {
+        private static final int ACTION_ID_CONFIRM = 1;
+
+        // Sync Windows are 2xx
+        private static final int ACTION_ID_SELECT_SYNC_WINDOW = 2;
+        private static final int ACTION_ID_SYNC_WINDOW_2_DAYS = 201;
+        private static final int ACTION_ID_SYNC_WINDOW_1_WEEK = 202;
+        private static final int ACTION_ID_SYNC_WINDOW_2_WEEKS = 203;
+
+        // Program Retentions are 3xx
+        private static final int ACTION_ID_SELECT_PROGRAM_RETENTION = 3;
+        private static final int ACTION_ID_PROGRAM_RETENTION_NONE = 301;
+        private static final int ACTION_ID_PROGRAM_RETENTION_1_DAY = 302;
+        private static final int ACTION_ID_PROGRAM_RETENTION_3_DAYS = 303;
+
+        private SharedPreferences mSharedPreferences;
+
+        private int mSyncWindowHours;
+        private int mProgramRetentionHours;
+
+        @Override
+        public void onCreate(Bundle savedInstanceState) {
+            // The current choices are needed before super.onCreate() creates the actions
+            mSharedPreferences = getActivity().getSharedPreferences(
+                    Constants.PREFERENCE_TVHEADEND, Context.MODE_PRIVATE);
+
+            mSyncWindowHours = mSharedPreferences.getInt(
+                    Constants.KEY_SYNC_WINDOW, SyncUtils.DEFAULT_SYNC_WINDOW_HOURS);
+            mProgramRetentionHours = mSharedPreferences.getInt(
+                    Constants.KEY_PROGRAM_RETENTION, SyncUtils.DEFAULT_PROGRAM_RETENTION_HOURS);
+
+            super.onCreate(savedInstanceState);
+        }
+
+        @NonNull
+        @Override
+        public GuidanceStylist.Guidance onCreateGuidance(Bundle savedInstanceState) {
+            GuidanceStylist.Guidance guidance = new GuidanceStylist.Guidance(
+                    "Program Guide",
+                    "Choose how far ahead programs are synced, and how long they're kept once " +
+                    "they've ended. Longer takes more time and storage to sync",
+                    "TVHeadend",
+                    null);
+
+            return guidance;
+        }
+
+        @Override
+        public void onCreateActions(@NonNull List<GuidedAction> actions, Bundle savedInstanceState) {
+            List<GuidedAction> subActions = new ArrayList();
+
+            subActions.add(createChoiceAction(ACTION_ID_SYNC_WINDOW_2_DAYS, "2 Days", mSyncWindowHours == 48));
+            subActions.add(createChoiceAction(ACTION_ID_SYNC_WINDOW_1_WEEK, "1 Week", mSyncWindowHours == 24 * 7));
+            subActions.add(createChoiceAction(ACTION_ID_SYNC_WINDOW_2_WEEKS, "2 Weeks", mSyncWindowHours == 24 * 14));
+
+            GuidedAction action = new GuidedAction.Builder(getActivity())
+                    .id(ACTION_ID_SELECT_SYNC_WINDOW)
+                    .title("Sync Window")
+                    .description(formatHours(mSyncWindowHours) + " ahead")
+                    .subActions(subActions)
+                    .build();
+
+            actions.add(action);
+
+            subActions = new ArrayList();
+
+            subActions.add(createChoiceAction(ACTION_ID_PROGRAM_RETENTION_NONE, "Don't Keep", mProgramRetentionHours == 0));
+            subActions.add(createChoiceAction(ACTION_ID_PROGRAM_RETENTION_1_DAY, "1 Day", mProgramRetentionHours == 24));
+            subActions.add(createChoiceAction(ACTION_ID_PROGRAM_RETENTION_3_DAYS, "3 Days", mProgramRetentionHours == 24 * 3));
+
+            action = new GuidedAction.Builder(getActivity())
+                    .id(ACTION_ID_SELECT_PROGRAM_RETENTION)
+                    .title("Ended Programs")
+                    .description(formatRetention(mProgramRetentionHours))
+                    .subActions(subActions)
+                    .build();
+
+            actions.add(action);
+        }
+
+        @Override
+        public void onCreateButtonActions(@NonNull List<GuidedAction> actions, Bundle savedInstanceState) {
+            GuidedAction action = new GuidedAction.Builder(getActivity())
+                    .id(ACTION_ID_CONFIRM)
+                    .title("Confirm")
+                    .build();
+
+            actions.add(action);
+        }
+
+        private GuidedAction createChoiceAction(int id, String title, boolean checked) {
+            GuidedAction action = new GuidedAction.Builder(getActivity())
+                    .id(id)
+                    .title(title)
+                    .checkSetId(GuidedAction.DEFAULT_CHECK_SET_ID)
+                    .build();
+
+            action.setChecked(checked);
+
+            return action;
+        }
+
+        private static String formatHours(int hours) {
+            if (hours % (24 * 7) == 0) {
+                return (hours / (24 * 7)) + (hours == 24 * 7 ? " week" : " weeks");
+            } else if (hours % 24 == 0) {
+                return (hours / 24) + (hours == 24 ? " day" : " days");
+            }
+
+            return hours + " hours";
+        }
+
+        private static String formatRetention(int hours) {
+            return hours == 0 ? "Removed once ended" : "Kept for " + formatHours(hours);
+        }
+
+        @Override
+        public boolean onSubGuidedActionClicked(GuidedAction action) {
+            long actionId = action.getId();
+
+            if (actionId >= 200 && actionId <= 299) {
+                // A sync window was chosen
+                if (actionId == ACTION_ID_SYNC_WINDOW_2_DAYS) {
+                    mSyncWindowHours = 48;
+                } else if (actionId == ACTION_ID_SYNC_WINDOW_1_WEEK) {
+                    mSyncWindowHours = 24 * 7;
+                } else if (actionId == ACTION_ID_SYNC_WINDOW_2_WEEKS) {
+                    mSyncWindowHours = 24 * 14;
+                }
+
+                findActionById(ACTION_ID_SELECT_SYNC_WINDOW).setDescription(formatHours(mSyncWindowHours) + " ahead");
+                notifyActionChanged(findActionPositionById(ACTION_ID_SELECT_SYNC_WINDOW));
+            } else if (actionId >= 300 && actionId <= 399) {
+                // A program retention was chosen
+                if (actionId == ACTION_ID_PROGRAM_RETENTION_NONE) {
+                    mProgramRetentionHours = 0;
+                } else if (actionId == ACTION_ID_PROGRAM_RETENTION_1_DAY) {
+                    mProgramRetentionHours = 24;
+                } else if (actionId == ACTION_ID_PROGRAM_RETENTION_3_DAYS) {
+                    mProgramRetentionHours = 24 * 3;
+                }
+
+                findActionById(ACTION_ID_SELECT_PROGRAM_RETENTION).setDescription(formatRetention(mProgramRetentionHours));
+                notifyActionChanged(findActionPositionById(ACTION_ID_SELECT_PROGRAM_RETENTION));
+            }
+
+            return true;
+        }
+
+        @Override
+        public void onGuidedActionClicked(GuidedAction action) {
+            if (ACTION_ID_CONFIRM == action.getId()) {
+                // Store the chosen windows, SyncUtils reads them on each sync
+                SharedPreferences.Editor editor = mSharedPreferences.edit();
+                editor.putInt(Constants.KEY_SYNC_WINDOW, mSyncWindowHours);
+                editor.putInt(Constants.KEY_PROGRAM_RETENTION, mProgramRetentionHours);
+                editor.commit();
+
+                // Move onto the next step
+                GuidedStepFragment fragment = new SyncingFragment();
+                fragment.setArguments(getArguments());
+                add(getFragmentManager(), fragment);
+            }
+        }
+    }
+
     public static class SyncingFragment extends BaseGuidedStepFragment {
         private Object mSyncStatusChangedReceiverHandle;
         private final SyncStatusObserver mSyncStatusObserver = new SyncStatusObserver() {
@@ -466,7 +466,7 @@ public class VlcSetupActivity extends Activity {
                 SharedPreferences.Editor editor = mSharedPreferences.edit();
 
                 editor.putBoolean(Constants.KEY_DEINTERLACE_ENABLED, mDeinterlace);
-                if (mScaling) editor.putString(Constants.KEY_DEINTERLACE_METHOD, mDeinterlaceMethod);
+                if (mDeinterlace) editor.putString(Constants.KEY_DEINTERLACE_METHOD, mDeinterlaceMethod);
 
                 editor.putBoolean(Constants.KEY_SCALING_ENABLED, mScaling);
                 if (mScaling) editor.putInt(Constants.KEY_SCALING_METHOD, mScalingMethod);
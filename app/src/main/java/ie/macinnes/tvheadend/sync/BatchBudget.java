@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2016 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package ie.macinnes.tvheadend.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.os.TransactionTooLargeException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sizes applyBatch transactions by the estimated Parcel size of their operations, rather than
+ * by a fixed number of operations.
+ *
+ * Binder transactions are limited to 1MB, shared by every transaction in flight in the process.
+ * The budget starts well below that, and is halved each time a transaction is still too large.
+ */
+public class BatchBudget {
+    private static final String TAG = BatchBudget.class.getName();
+
+    public static final int DEFAULT_BYTE_BUDGET = 256 * 1024;
+    private static final int MIN_BYTE_BUDGET = 16 * 1024;
+
+    // Operation type, Uri, and the flags/nulls for selection, back references etc
+    private static final int OPERATION_OVERHEAD_BYTES = 64;
+
+    private final AtomicInteger mByteBudget;
+
+    public BatchBudget() {
+        this(DEFAULT_BYTE_BUDGET);
+    }
+
+    public BatchBudget(int byteBudget) {
+        mByteBudget = new AtomicInteger(Math.max(byteBudget, MIN_BYTE_BUDGET));
+    }
+
+    public int getByteBudget() {
+        return mByteBudget.get();
+    }
+
+    /**
+     * Halves the budget, down to a minimum.
+     */
+    public void shrink() {
+        int byteBudget;
+        int newByteBudget;
+
+        do {
+            byteBudget = mByteBudget.get();
+            newByteBudget = Math.max(byteBudget / 2, MIN_BYTE_BUDGET);
+        } while (!mByteBudget.compareAndSet(byteBudget, newByteBudget));
+
+        Log.d(TAG, "Batch byte budget is now " + newByteBudget);
+    }
+
+    /**
+     * Applies ops, splitting them in two and retrying each half should the transaction still be
+     * too large. Each split also shrinks the budget, so later batches are built smaller.
+     */
+    public ContentProviderResult[] applyBatch(ContentResolver resolver, String authority, ArrayList<ContentProviderOperation> ops)
+            throws RemoteException, OperationApplicationException {
+        try {
+            return resolver.applyBatch(authority, ops);
+        } catch (TransactionTooLargeException e) {
+            if (ops.size() < 2) {
+                throw e;
+            }
+
+            Log.w(TAG, "Batch of " + ops.size() + " operations too large, splitting");
+            shrink();
+
+            int middle = ops.size() / 2;
+
+            ContentProviderResult[] head = applyBatch(
+                    resolver, authority, new ArrayList<>(ops.subList(0, middle)));
+            ContentProviderResult[] tail = applyBatch(
+                    resolver, authority, new ArrayList<>(ops.subList(middle, ops.size())));
+
+            ContentProviderResult[] results = new ContentProviderResult[head.length + tail.length];
+            System.arraycopy(head, 0, results, 0, head.length);
+            System.arraycopy(tail, 0, results, head.length, tail.length);
+
+            return results;
+        }
+    }
+
+    /**
+     * Estimates the Parcel size of an operation on uri with values, which may be null.
+     */
+    public static int estimateSize(Uri uri, ContentValues values) {
+        int size = OPERATION_OVERHEAD_BYTES + estimateStringSize(uri.toString());
+
+        if (values != null) {
+            size += 4;
+
+            for (Map.Entry<String, Object> entry : values.valueSet()) {
+                size += estimateStringSize(entry.getKey()) + estimateValueSize(entry.getValue());
+            }
+        }
+
+        return size;
+    }
+
+    private static int estimateValueSize(Object value) {
+        // Each value is preceded by its type
+        if (value == null) {
+            return 4;
+        } else if (value instanceof String) {
+            return 4 + estimateStringSize((String) value);
+        } else if (value instanceof byte[]) {
+            return 4 + 4 + pad(((byte[]) value).length);
+        } else if (value instanceof Long || value instanceof Double) {
+            return 4 + 8;
+        } else {
+            return 4 + 4;
+        }
+    }
+
+    private static int estimateStringSize(String string) {
+        // Length, then UTF-16 chars and a terminator
+        return 4 + pad((string.length() + 1) * 2);
+    }
+
+    private static int pad(int size) {
+        return (size + 3) & ~3;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2016 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package ie.macinnes.tvheadend.sync;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import ie.macinnes.tvheadend.Constants;
+
+/**
+ * Persists, for each channel logo written to TvProvider, the source URL it came from along with
+ * the HTTP validators and a digest of the image. Logo syncs use it to make conditional requests,
+ * and to skip writing logos which haven't changed.
+ */
+public class LogoManifest {
+    private static final String LOGO_KEY_PREFIX = "LOGO-";
+
+    private final SharedPreferences mSharedPreferences;
+
+    @SuppressWarnings("deprecation")
+    public LogoManifest(Context context, Account account) {
+        // Written by the sync process, and cleared by the main one when the account is removed
+        mSharedPreferences = context.getSharedPreferences(
+                Constants.PREFERENCE_LOGO_MANIFEST + "-" + account.name,
+                Context.MODE_PRIVATE | Context.MODE_MULTI_PROCESS);
+    }
+
+    public Entry getEntry(Uri logoUri) {
+        String string = mSharedPreferences.getString(LOGO_KEY_PREFIX + logoUri.toString(), null);
+
+        if (string == null) {
+            return null;
+        }
+
+        return Entry.fromString(string);
+    }
+
+    /**
+     * @return the entry shared by every one of logoUris for sourceUrl, or null should any of them
+     *         be missing, from another source, or hold a different image.
+     */
+    public Entry getCommonEntry(String sourceUrl, Collection<Uri> logoUris) {
+        Entry commonEntry = null;
+
+        for (Uri logoUri : logoUris) {
+            Entry entry = getEntry(logoUri);
+
+            if (entry == null || !entry.getSourceUrl().equals(sourceUrl)) {
+                return null;
+            }
+
+            if (commonEntry == null) {
+                commonEntry = entry;
+            } else if (!commonEntry.equals(entry)) {
+                return null;
+            }
+        }
+
+        return commonEntry;
+    }
+
+    public void put(Uri logoUri, Entry entry) {
+        mSharedPreferences.edit()
+                .putString(LOGO_KEY_PREFIX + logoUri.toString(), entry.toString())
+                .apply();
+    }
+
+    /**
+     * Forgets the logos of any channels not in logoUris, i.e. those which have been deleted or
+     * no longer have a logo.
+     */
+    public void retain(Collection<Uri> logoUris) {
+        Set<String> keys = new HashSet<>();
+
+        for (Uri logoUri : logoUris) {
+            keys.add(LOGO_KEY_PREFIX + logoUri.toString());
+        }
+
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+
+        for (String key : mSharedPreferences.getAll().keySet()) {
+            if (!keys.contains(key)) {
+                editor.remove(key);
+            }
+        }
+
+        editor.apply();
+    }
+
+    public void clear() {
+        // Written straight away, so the sync process can't read the old entries after this
+        mSharedPreferences.edit().clear().commit();
+    }
+
+    public static class Entry {
+        // Validators and URLs can't contain line breaks
+        private static final String SEPARATOR = "\n";
+
+        private final String mSourceUrl;
+        private final String mETag;
+        private final String mLastModified;
+        private final String mDigest;
+
+        public Entry(String sourceUrl, String etag, String lastModified, String digest) {
+            mSourceUrl = sourceUrl;
+            mETag = etag;
+            mLastModified = lastModified;
+            mDigest = digest;
+        }
+
+        public static Entry fromString(String string) {
+            String[] parts = string.split(SEPARATOR, -1);
+
+            if (parts.length != 4) {
+                return null;
+            }
+
+            return new Entry(parts[3], emptyToNull(parts[1]), emptyToNull(parts[2]), parts[0]);
+        }
+
+        public String toString() {
+            return mDigest + SEPARATOR
+                    + nullToEmpty(mETag) + SEPARATOR
+                    + nullToEmpty(mLastModified) + SEPARATOR
+                    + mSourceUrl;
+        }
+
+        public String getSourceUrl() {
+            return mSourceUrl;
+        }
+
+        public String getETag() {
+            return mETag;
+        }
+
+        public String getLastModified() {
+            return mLastModified;
+        }
+
+        public String getDigest() {
+            return mDigest;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+
+            return toString().equals(o.toString());
+        }
+
+        @Override
+        public int hashCode() {
+            return toString().hashCode();
+        }
+
+        private static String nullToEmpty(String string) {
+            return string != null ? string : "";
+        }
+
+        private static String emptyToNull(String string) {
+            return string.isEmpty() ? null : string;
+        }
+    }
+}
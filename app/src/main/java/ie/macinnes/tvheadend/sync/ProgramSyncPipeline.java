@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) 2016 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package ie.macinnes.tvheadend.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ie.macinnes.tvheadend.Constants;
+import ie.macinnes.tvheadend.TvContractUtils;
+import ie.macinnes.tvheadend.model.Channel;
+import ie.macinnes.tvheadend.model.ProgramList;
+
+/**
+ * Syncs programs through three stages connected by bounded queues:
+ *
+ * 1. Fetch: runs the supplied FetchTasks, each emitting complete per-channel ProgramLists.
+ * 2. Diff: compares each ProgramList with what's stored in TvProvider, producing batches of ops.
+ * 3. Write: applies the batches to TvProvider.
+ *
+ * Each stage has its own fixed number of threads. When a downstream stage falls behind the
+ * queue feeding it fills up, and the upstream stage blocks until there is room again.
+ */
+public class ProgramSyncPipeline {
+    private static final String TAG = ProgramSyncPipeline.class.getName();
+
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+
+    public static final int DEFAULT_FETCH_CONCURRENCY = 2;
+    public static final int DEFAULT_DIFF_CONCURRENCY = Math.max(2, CPU_COUNT);
+    // TvProvider serializes writes to its database, more than one writer gains very little.
+    public static final int DEFAULT_WRITE_CONCURRENCY = 1;
+    public static final int DEFAULT_QUEUE_CAPACITY = 16;
+
+    public interface FetchTask {
+        /**
+         * Fetch programs from the server, passing each channel's complete, start time ordered,
+         * ProgramList to the emitter.
+         *
+         * @return false if the fetch failed
+         */
+        boolean fetch(Emitter emitter) throws InterruptedException;
+    }
+
+    public interface Emitter {
+        /**
+         * Emit a channel's programs, replacing all of the channel's programs in TvProvider.
+         */
+        void emit(Channel channel, ProgramList programList) throws InterruptedException;
+
+        /**
+         * Emit a channel's programs, only replacing programs in TvProvider which overlap the
+         * window, i.e. those which end after windowStartUtcMillis and start before
+         * windowEndUtcMillis. Programs in the window which aren't in programList are deleted.
+         */
+        void emit(Channel channel, ProgramList programList, long windowStartUtcMillis, long windowEndUtcMillis) throws InterruptedException;
+    }
+
+    private static class ChannelPrograms {
+        final Channel mChannel;
+        final ProgramList mProgramList;
+        final long mWindowStartUtcMillis;
+        final long mWindowEndUtcMillis;
+
+        ChannelPrograms(Channel channel, ProgramList programList, long windowStartUtcMillis, long windowEndUtcMillis) {
+            mChannel = channel;
+            mProgramList = programList;
+            mWindowStartUtcMillis = windowStartUtcMillis;
+            mWindowEndUtcMillis = windowEndUtcMillis;
+        }
+    }
+
+    // Queue markers telling a stage's workers there is no more work coming
+    private static final ChannelPrograms END_OF_CHANNELS = new ChannelPrograms(null, null, 0, 0);
+    private static final ArrayList<ContentProviderOperation> END_OF_BATCHES = new ArrayList<>();
+
+    private final Context mContext;
+    private final int mFetchConcurrency;
+    private final int mDiffConcurrency;
+    private final int mWriteConcurrency;
+
+    private final BlockingQueue<ChannelPrograms> mDiffQueue;
+    private final BlockingQueue<ArrayList<ContentProviderOperation>> mWriteQueue;
+
+    private final AtomicBoolean mCancelled = new AtomicBoolean(false);
+    private final AtomicBoolean mFailed = new AtomicBoolean(false);
+
+    private final AtomicLong mFetchTimeMs = new AtomicLong();
+    private final AtomicLong mDiffTimeMs = new AtomicLong();
+    private final AtomicLong mWriteTimeMs = new AtomicLong();
+    private final AtomicInteger mChannelCount = new AtomicInteger();
+    private final AtomicInteger mBatchCount = new AtomicInteger();
+
+    private final List<ExecutorService> mExecutors = new ArrayList<>();
+
+    // Shared by every differ and writer, so a batch that's too large shrinks all later batches
+    private final BatchBudget mBatchBudget = new BatchBudget();
+
+    public ProgramSyncPipeline(Context context) {
+        this(context, DEFAULT_FETCH_CONCURRENCY, DEFAULT_DIFF_CONCURRENCY,
+                DEFAULT_WRITE_CONCURRENCY, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public ProgramSyncPipeline(Context context, int fetchConcurrency, int diffConcurrency, int writeConcurrency, int queueCapacity) {
+        mContext = context;
+        mFetchConcurrency = fetchConcurrency;
+        mDiffConcurrency = diffConcurrency;
+        mWriteConcurrency = writeConcurrency;
+
+        mDiffQueue = new ArrayBlockingQueue<>(queueCapacity);
+        mWriteQueue = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    public void cancel() {
+        Log.d(TAG, "Cancelling program sync pipeline");
+        mCancelled.set(true);
+
+        mDiffQueue.clear();
+        mWriteQueue.clear();
+
+        synchronized (mExecutors) {
+            for (ExecutorService executor : mExecutors) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    public boolean isCancelled() {
+        return mCancelled.get();
+    }
+
+    /**
+     * Runs the pipeline to completion, blocking the calling thread.
+     *
+     * @return true if every fetch task succeeded and the sync was not cancelled
+     */
+    public boolean run(List<FetchTask> fetchTasks) {
+        final long startTime = SystemClock.elapsedRealtime();
+
+        final BlockingQueue<FetchTask> fetchQueue = new LinkedBlockingQueue<>(fetchTasks);
+
+        final CountDownLatch fetchLatch = new CountDownLatch(mFetchConcurrency);
+        final CountDownLatch diffLatch = new CountDownLatch(mDiffConcurrency);
+        final CountDownLatch writeLatch = new CountDownLatch(mWriteConcurrency);
+
+        final Emitter emitter = new Emitter() {
+            @Override
+            public void emit(Channel channel, ProgramList programList) throws InterruptedException {
+                emit(channel, programList, 0, 0);
+            }
+
+            @Override
+            public void emit(Channel channel, ProgramList programList, long windowStartUtcMillis, long windowEndUtcMillis) throws InterruptedException {
+                mDiffQueue.put(new ChannelPrograms(channel, programList, windowStartUtcMillis, windowEndUtcMillis));
+            }
+        };
+
+        synchronized (mExecutors) {
+            if (isCancelled()) {
+                return false;
+            }
+
+            ExecutorService writeExecutor = newExecutor("EpgSyncWrite", mWriteConcurrency);
+            for (int i = 0; i < mWriteConcurrency; i++) {
+                writeExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            runWriter();
+                        } finally {
+                            writeLatch.countDown();
+                        }
+                    }
+                });
+            }
+
+            ExecutorService diffExecutor = newExecutor("EpgSyncDiff", mDiffConcurrency);
+            for (int i = 0; i < mDiffConcurrency; i++) {
+                diffExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            runDiffer();
+                        } finally {
+                            diffLatch.countDown();
+                        }
+                    }
+                });
+            }
+
+            ExecutorService fetchExecutor = newExecutor("EpgSyncFetch", mFetchConcurrency);
+            for (int i = 0; i < mFetchConcurrency; i++) {
+                fetchExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            runFetcher(fetchQueue, emitter);
+                        } finally {
+                            fetchLatch.countDown();
+                        }
+                    }
+                });
+            }
+        }
+
+        try {
+            // As each stage drains, tell the next stage's workers there's nothing more to come.
+            fetchLatch.await();
+            for (int i = 0; i < mDiffConcurrency; i++) {
+                putMarker(mDiffQueue, END_OF_CHANNELS);
+            }
+
+            diffLatch.await();
+            for (int i = 0; i < mWriteConcurrency; i++) {
+                putMarker(mWriteQueue, END_OF_BATCHES);
+            }
+
+            writeLatch.await();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while awaiting program sync pipeline to complete");
+            cancel();
+            return false;
+        } finally {
+            synchronized (mExecutors) {
+                for (ExecutorService executor : mExecutors) {
+                    executor.shutdownNow();
+                }
+                mExecutors.clear();
+            }
+        }
+
+        Log.d(TAG, "Program sync pipeline finished in " + (SystemClock.elapsedRealtime() - startTime)
+                + "ms. Channels: " + mChannelCount.get() + ", Batches: " + mBatchCount.get()
+                + ". Stage busy time, Fetch: " + mFetchTimeMs.get() + "ms, Diff: "
+                + mDiffTimeMs.get() + "ms, Write: " + mWriteTimeMs.get() + "ms");
+
+        return !isCancelled() && !mFailed.get();
+    }
+
+    private <T> void putMarker(BlockingQueue<T> queue, T marker) throws InterruptedException {
+        // If we've been cancelled, the consumers may already be gone and never drain the queue.
+        while (!queue.offer(marker, 100, TimeUnit.MILLISECONDS)) {
+            if (isCancelled()) {
+                return;
+            }
+        }
+    }
+
+    private ExecutorService newExecutor(final String name, int threads) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            public Thread newThread(Runnable r) {
+                return new Thread(r, name + " #" + mCount.getAndIncrement());
+            }
+        });
+
+        mExecutors.add(executor);
+
+        return executor;
+    }
+
+    private void runFetcher(BlockingQueue<FetchTask> fetchQueue, Emitter emitter) {
+        FetchTask fetchTask;
+
+        while (!isCancelled() && (fetchTask = fetchQueue.poll()) != null) {
+            long startTime = SystemClock.elapsedRealtime();
+
+            try {
+                if (!fetchTask.fetch(emitter)) {
+                    mFailed.set(true);
+                }
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Interrupted while fetching programs");
+                return;
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to fetch programs", e);
+                mFailed.set(true);
+            } finally {
+                mFetchTimeMs.addAndGet(SystemClock.elapsedRealtime() - startTime);
+            }
+        }
+    }
+
+    private void runDiffer() {
+        final ProgramsDiffer.BatchListener batchListener = new ProgramsDiffer.BatchListener() {
+            @Override
+            public void onBatch(ArrayList<ContentProviderOperation> ops) throws InterruptedException {
+                mWriteQueue.put(ops);
+            }
+        };
+
+        try {
+            while (true) {
+                ChannelPrograms channelPrograms = mDiffQueue.take();
+
+                if (channelPrograms == END_OF_CHANNELS || isCancelled()) {
+                    return;
+                }
+
+                long startTime = SystemClock.elapsedRealtime();
+
+                Channel channel = channelPrograms.mChannel;
+                ProgramsDiffer differ = new ProgramsDiffer(mBatchBudget);
+
+                try {
+                    ProgramList oldProgramList = TvContractUtils.getProgramsForSync(
+                            mContext, channel, channelPrograms.mWindowStartUtcMillis,
+                            channelPrograms.mWindowEndUtcMillis);
+                    differ.diff(oldProgramList, channelPrograms.mProgramList, batchListener);
+                    mChannelCount.incrementAndGet();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to diff programs for channel: " + channel.toString(), e);
+                    mFailed.set(true);
+                    continue;
+                } finally {
+                    mDiffTimeMs.addAndGet(SystemClock.elapsedRealtime() - startTime);
+                }
+
+                Log.d(TAG, "Finished diffing programs for channel: " + channel.toString() + ". " + differ.toString());
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Interrupted while diffing programs");
+        }
+    }
+
+    private void runWriter() {
+        try {
+            while (true) {
+                ArrayList<ContentProviderOperation> ops = mWriteQueue.take();
+
+                if (ops == END_OF_BATCHES || isCancelled()) {
+                    return;
+                }
+
+                long startTime = SystemClock.elapsedRealtime();
+
+                try {
+                    mBatchBudget.applyBatch(mContext.getContentResolver(), Constants.CONTENT_AUTHORITY, ops);
+                    mBatchCount.incrementAndGet();
+                } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+                    Log.e(TAG, "Failed to apply program batch.", e);
+                    mFailed.set(true);
+                } finally {
+                    mWriteTimeMs.addAndGet(SystemClock.elapsedRealtime() - startTime);
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Interrupted while writing programs");
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2016 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package ie.macinnes.tvheadend.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.media.tv.TvContract;
+import android.net.Uri;
+
+import java.util.ArrayList;
+
+import ie.macinnes.tvheadend.model.Program;
+import ie.macinnes.tvheadend.model.ProgramList;
+
+/**
+ * Compares the programs currently stored in TvProvider for a channel with a freshly fetched
+ * list, producing batches of ContentProviderOperations which bring TvProvider up to date.
+ *
+ * Programs are compared by the content hash stored in their InternalProviderData, so the old
+ * programs only need their ID, start/end times and InternalProviderData loaded. See
+ * {@link ie.macinnes.tvheadend.TvContractUtils#getProgramsForSync}.
+ */
+public class ProgramsDiffer {
+    public interface BatchListener {
+        void onBatch(ArrayList<ContentProviderOperation> ops) throws InterruptedException;
+    }
+
+    private final BatchBudget mBatchBudget;
+
+    private ArrayList<ContentProviderOperation> mOps = new ArrayList<>();
+    private int mOpsBytes = 0;
+
+    private int mAdditions = 0;
+    private int mUpdates = 0;
+    private int mDeletions = 0;
+    private int mNochange = 0;
+
+    public ProgramsDiffer() {
+        this(new BatchBudget());
+    }
+
+    /**
+     * @param batchBudget Limits the estimated size of each batch, so they don't cause a
+     *                    TransactionTooLargeException
+     */
+    public ProgramsDiffer(BatchBudget batchBudget) {
+        mBatchBudget = batchBudget;
+    }
+
+    /**
+     * @param oldProgramList The programs in TvProvider, covering the same window as
+     *                       newProgramList. Any not in newProgramList are deleted.
+     */
+    public void diff(ProgramList oldProgramList, ProgramList newProgramList, BatchListener listener) throws InterruptedException {
+        int oldProgramsIndex = 0;
+        int newProgramsIndex = 0;
+        final int oldProgramsCount = oldProgramList.size();
+        final int newProgramsCount = newProgramList.size();
+
+        // Compare the new programs with old programs one by one and update/delete the old one
+        // or insert new program if there is no matching program in the database.
+
+        while (newProgramsIndex < newProgramsCount) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+
+            Program oldProgram = oldProgramsIndex < oldProgramsCount
+                    ? oldProgramList.get(oldProgramsIndex) : null;
+            Program newProgram = newProgramList.get(newProgramsIndex);
+
+            boolean addNewProgram = false;
+            if (oldProgram != null) {
+                if (programContentMatches(oldProgram, newProgram)) {
+                    // Exact match. No need to update. Move on to the next programs.
+                    oldProgramsIndex++;
+                    newProgramsIndex++;
+
+                    mNochange++;
+                } else if (programEventIdMatches(oldProgram, newProgram)) {
+                    // Partial match. Update the old program with the new one.
+                    // NOTE: Use 'update' in this case instead of 'insert' and 'delete'. There
+                    // could be application specific settings which belong to the old program.
+                    Uri programUri = TvContract.buildProgramUri(oldProgram.getProgramId());
+                    ContentValues values = newProgram.toContentValues();
+                    addOperation(ContentProviderOperation.newUpdate(programUri)
+                            .withValues(values)
+                            .build(), BatchBudget.estimateSize(programUri, values), listener);
+                    oldProgramsIndex++;
+                    newProgramsIndex++;
+                    mUpdates++;
+                } else if (oldProgram.getEndTimeUtcMillis()
+                        < newProgram.getEndTimeUtcMillis()) {
+                    // No match. Remove the old program first to see if the next program in
+                    // {@code oldPrograms} partially matches the new program.
+                    Uri programUri = TvContract.buildProgramUri(oldProgram.getProgramId());
+                    addOperation(ContentProviderOperation.newDelete(programUri)
+                            .build(), BatchBudget.estimateSize(programUri, null), listener);
+                    oldProgramsIndex++;
+                    mDeletions++;
+                } else {
+                    // No match. The new program does not match any of the old programs. Insert
+                    // it as a new program.
+                    addNewProgram = true;
+                    newProgramsIndex++;
+                }
+            } else {
+                // No old programs. Just insert new programs.
+                addNewProgram = true;
+                newProgramsIndex++;
+            }
+
+            if (addNewProgram) {
+                ContentValues values = newProgram.toContentValues();
+                addOperation(ContentProviderOperation
+                        .newInsert(TvContract.Programs.CONTENT_URI)
+                        .withValues(values)
+                        .build(), BatchBudget.estimateSize(TvContract.Programs.CONTENT_URI, values), listener);
+                mAdditions++;
+            }
+        }
+
+        // Anything left over is no longer on the server, including everything when the channel
+        // has no programs at all.
+        while (oldProgramsIndex < oldProgramsCount) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+
+            Program oldProgram = oldProgramList.get(oldProgramsIndex);
+            Uri programUri = TvContract.buildProgramUri(oldProgram.getProgramId());
+            addOperation(ContentProviderOperation.newDelete(programUri)
+                    .build(), BatchBudget.estimateSize(programUri, null), listener);
+            oldProgramsIndex++;
+            mDeletions++;
+        }
+
+        flush(listener);
+    }
+
+    private void addOperation(ContentProviderOperation op, int estimatedBytes, BatchListener listener) throws InterruptedException {
+        // Throttle the batch operation not to cause TransactionTooLargeException.
+        if (!mOps.isEmpty() && mOpsBytes + estimatedBytes > mBatchBudget.getByteBudget()) {
+            flush(listener);
+        }
+
+        mOps.add(op);
+        mOpsBytes += estimatedBytes;
+    }
+
+    private void flush(BatchListener listener) throws InterruptedException {
+        if (mOps.isEmpty()) {
+            return;
+        }
+
+        ArrayList<ContentProviderOperation> ops = mOps;
+
+        mOps = new ArrayList<>();
+        mOpsBytes = 0;
+
+        listener.onBatch(ops);
+    }
+
+    public int getAdditions() {
+        return mAdditions;
+    }
+
+    public int getUpdates() {
+        return mUpdates;
+    }
+
+    public int getDeletions() {
+        return mDeletions;
+    }
+
+    public int getNochange() {
+        return mNochange;
+    }
+
+    @Override
+    public String toString() {
+        return "A:" + Integer.toString(mAdditions) + ", U:" + Integer.toString(mUpdates) + ", D:" + Integer.toString(mDeletions) + ", NC:" + Integer.toString(mNochange);
+    }
+
+    private static boolean programContentMatches(Program oldProgram, Program newProgram) {
+        final long oldContentHash = oldProgram.getInternalProviderData().getContentHash();
+        final long newContentHash = newProgram.getInternalProviderData().getContentHash();
+
+        // Programs stored by older versions have no hash, always update them
+        return oldContentHash != 0
+                && oldContentHash == newContentHash
+                && programEventIdMatches(oldProgram, newProgram);
+    }
+
+    private static boolean programEventIdMatches(Program oldProgram, Program newProgram) {
+        final String oldEventId = oldProgram.getInternalProviderData().getEventId();
+        final String newEventId = newProgram.getInternalProviderData().getEventId();
+
+        return oldEventId.equals(newEventId);
+    }
+}
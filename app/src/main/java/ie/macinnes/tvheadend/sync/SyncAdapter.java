@@ -18,14 +18,18 @@ package ie.macinnes.tvheadend.sync;
 import android.accounts.Account;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.SyncResult;
 import android.media.tv.TvContract;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.RemoteException;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.SparseArray;
@@ -33,9 +37,11 @@ import android.util.SparseArray;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -47,11 +53,13 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import ie.macinnes.tvheadend.Constants;
 import ie.macinnes.tvheadend.TvContractUtils;
+import ie.macinnes.tvheadend.client.GridStreamParser;
 import ie.macinnes.tvheadend.client.TVHClient;
 import ie.macinnes.tvheadend.model.Channel;
 import ie.macinnes.tvheadend.model.ChannelList;
+import ie.macinnes.tvheadend.model.Program;
+import ie.macinnes.tvheadend.model.ProgramList;
 import ie.macinnes.tvheadend.tasks.SyncLogosTask;
-import ie.macinnes.tvheadend.tasks.SyncProgramsTask;
 
 
 public class SyncAdapter extends AbstractThreadedSyncAdapter {
@@ -60,10 +68,25 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     private final Context mContext;
     private final ContentResolver mContentResolver;
 
-    private final TVHClient mClient;
-
-    private boolean mIsCancelled = false;
-    private ArrayList<AsyncTask> mPendingTasks = new ArrayList<AsyncTask>();
+    // Accounts sync in parallel, each on its own thread, so the state of each sync is kept by
+    // the thread running it
+    private final Map<Thread, SyncRun> mSyncRuns = new HashMap<>();
+
+    private final BatchBudget mBatchBudget = new BatchBudget();
+
+    // The channel columns we write, and so need to read back to tell if a channel has changed
+    private static final String[] CHANNEL_SYNC_PROJECTION = {
+            TvContract.Channels._ID,
+            TvContract.Channels.COLUMN_INPUT_ID,
+            TvContract.Channels.COLUMN_TYPE,
+            TvContract.Channels.COLUMN_DISPLAY_NUMBER,
+            TvContract.Channels.COLUMN_DISPLAY_NAME,
+            TvContract.Channels.COLUMN_DESCRIPTION,
+            TvContract.Channels.COLUMN_ORIGINAL_NETWORK_ID,
+            TvContract.Channels.COLUMN_TRANSPORT_STREAM_ID,
+            TvContract.Channels.COLUMN_SERVICE_ID,
+            TvContract.Channels.COLUMN_INTERNAL_PROVIDER_DATA
+    };
 
     private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
     private static final int INITIAL_POOL_SIZE = 1;
@@ -90,8 +113,6 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 
         mContext = context;
         mContentResolver = context.getContentResolver();
-
-        mClient = TVHClient.getInstance(context);
     }
 
     public SyncAdapter(Context context, boolean autoInitialize, boolean allowParallelSyncs) {
@@ -99,37 +120,67 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 
         mContext = context;
         mContentResolver = context.getContentResolver();
-
-        mClient = TVHClient.getInstance(context);
     }
 
     @Override
     public void onSyncCanceled() {
-        Log.d(TAG, "Sync cancellation requested");
-        mIsCancelled = true;
+        Log.d(TAG, "Sync cancellation requested for all accounts");
 
-        Log.d(TAG, "Cancelling " + mPendingTasks.size() + " pending tasks");
+        synchronized (mSyncRuns) {
+            for (SyncRun syncRun : mSyncRuns.values()) {
+                syncRun.cancel();
+            }
+        }
+    }
 
-        while (mPendingTasks.size() != 0) {
-            AsyncTask asyncTask = mPendingTasks.get(0);
-            asyncTask.cancel(true);
-            mPendingTasks.remove(asyncTask);
+    @Override
+    public void onSyncCanceled(Thread thread) {
+        SyncRun syncRun;
+
+        synchronized (mSyncRuns) {
+            syncRun = mSyncRuns.get(thread);
+        }
+
+        if (syncRun != null) {
+            Log.d(TAG, "Sync cancellation requested for account: " + syncRun.getAccount().toString());
+            syncRun.cancel();
         }
     }
 
+    /**
+     * @return true if the sync running on the calling thread has been cancelled
+     */
     public boolean isCancelled() {
-        return mIsCancelled;
+        SyncRun syncRun = getSyncRun();
+        return syncRun == null || syncRun.isCancelled();
+    }
+
+    private SyncRun getSyncRun() {
+        synchronized (mSyncRuns) {
+            return mSyncRuns.get(Thread.currentThread());
+        }
     }
 
     @Override
     public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
-        Log.d(TAG, "Starting sync for account: " + account.toString());
+        // Resolved once, the client is then passed to everything the sync fetches with
+        TVHClient client = TVHClient.getInstance(mContext, account);
+
+        synchronized (mSyncRuns) {
+            mSyncRuns.put(Thread.currentThread(), new SyncRun(account, client));
+        }
 
-        mIsCancelled = false;
+        try {
+            performSync(account, client, extras);
+        } finally {
+            synchronized (mSyncRuns) {
+                mSyncRuns.remove(Thread.currentThread());
+            }
+        }
+    }
 
-        // TODO: The TVHClient class needs to support multiple accounts, this is racy as other
-        // processes may be using this singleton with different creds.
-        mClient.setConnectionInfo(account);
+    private void performSync(Account account, TVHClient client, Bundle extras) {
+        Log.d(TAG, "Starting sync for account: " + account.toString());
 
         if (isCancelled()) {
             Log.d(TAG, "Sync cancelled");
@@ -137,7 +188,7 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         }
 
         // Sync Channels
-        if (!syncChannels(account)) {
+        if (!syncChannels(account, client)) {
             return;
         }
 
@@ -148,7 +199,8 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 
         // Sync Programs
         final boolean quickSync = extras.getBoolean(Constants.SYNC_EXTRAS_QUICK, false);
-        if (!syncPrograms(account, quickSync)) {
+        final boolean manualSync = extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false);
+        if (!syncPrograms(account, client, quickSync, !quickSync && !manualSync)) {
             return;
         }
 
@@ -156,13 +208,21 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         Log.d(TAG, "Completed sync for account: " + account.toString());
     }
 
-    private boolean syncChannels(final Account account) {
+    private boolean syncChannels(final Account account, TVHClient client) {
         Log.d(TAG, "Starting channel sync");
 
-        ChannelList channelList;
+        // Channels are converted as each page is parsed, rather than once the whole grid is in
+        final ChannelList channelList = new ChannelList();
+
+        GridStreamParser.EntryListener<TVHClient.Channel> entryListener = new GridStreamParser.EntryListener<TVHClient.Channel>() {
+            @Override
+            public void onEntry(TVHClient.Channel channel) {
+                channelList.add(Channel.fromClientChannel(channel, account));
+            }
+        };
 
         try {
-            channelList = ChannelList.fromClientChannelList(mClient.getChannelGrid(), account);
+            client.streamChannelGrid(entryListener);
         } catch (InterruptedException|ExecutionException e) {
             // Something went wrong
             Log.w(TAG, "Failed to fetch channel list from server: " + e.getLocalizedMessage(), e);
@@ -176,16 +236,29 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         // Sort the list of Channels
         Collections.sort(channelList);
 
-        // Build a channel map, mapping from Original Network ID -> RowID's
-        SparseArray<Long> channelMap = TvContractUtils.buildChannelMap(mContext, channelList);
+        // Build a channel map, mapping from Original Network ID -> existing Channel
+        SparseArray<Channel> channelMap = new SparseArray<>();
+
+        for (Channel existingChannel : TvContractUtils.getChannels(mContext, CHANNEL_SYNC_PROJECTION, account)) {
+            channelMap.put(existingChannel.getOriginalNetworkId(), existingChannel);
+        }
 
         // Prep a mapping for Logo content URI and URLs
         Map<Uri, String> logos = new HashMap<>();
 
-        // Update the Channels DB - If a channel exists, update it. If not, insert a new one.
-        ContentValues values;
-        Long rowId;
-        Uri channelUri;
+        // Update the Channels DB - If a channel exists, and has changed, update it. If not, insert
+        // a new one. The operations are applied in batches sized by mBatchBudget, rather than one
+        // transaction per row.
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        int opsBytes = 0;
+
+        // The icon URL for each insert in the current batch, by operation index. The new
+        // channel's URI is only known once the batch has been applied.
+        SparseArray<String> insertedLogos = new SparseArray<>();
+
+        int additions = 0;
+        int updates = 0;
+        int nochange = 0;
 
         for (Channel channel : channelList) {
             if (isCancelled()) {
@@ -193,49 +266,91 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
                 return false;
             }
 
-            values = channel.toContentValues();
-
-            rowId = channelMap.get(channel.getOriginalNetworkId());
+            Channel existingChannel = channelMap.get(channel.getOriginalNetworkId());
+            boolean hasLogo = !TextUtils.isEmpty(channel.getIconUri());
 
-            if (rowId == null) {
+            if (existingChannel == null) {
                 Log.d(TAG, "Adding channel: " + channel.toString());
-                channelUri = mContentResolver.insert(TvContract.Channels.CONTENT_URI, values);
+
+                if (hasLogo) {
+                    insertedLogos.put(ops.size(), channel.getIconUri());
+                }
+
+                ContentValues values = channel.toContentValues();
+                ops.add(ContentProviderOperation.newInsert(TvContract.Channels.CONTENT_URI)
+                        .withValues(values)
+                        .build());
+                opsBytes += BatchBudget.estimateSize(TvContract.Channels.CONTENT_URI, values);
+                additions++;
             } else {
-                Log.d(TAG, "Updating channel: " + channel.toString());
-                channelUri = TvContract.buildChannelUri(rowId);
-                mContentResolver.update(channelUri, values, null, null);
+                Uri channelUri = TvContract.buildChannelUri(existingChannel.getId());
                 channelMap.remove(channel.getOriginalNetworkId());
+
+                if (channel.equals(existingChannel)) {
+                    nochange++;
+                } else {
+                    Log.d(TAG, "Updating channel: " + channel.toString());
+                    ContentValues values = channel.toContentValues();
+                    ops.add(ContentProviderOperation.newUpdate(channelUri)
+                            .withValues(values)
+                            .build());
+                    opsBytes += BatchBudget.estimateSize(channelUri, values);
+                    updates++;
+                }
+
+                // If we have a channel icon, add it to the logos map
+                if (hasLogo) {
+                    logos.put(TvContract.buildChannelLogoUri(channelUri), channel.getIconUri());
+                }
             }
 
-            // If we have a channel icon, add it to the logs map
-            if (channel.getIconUri() != null && !TextUtils.isEmpty(channel.getIconUri())) {
-                logos.put(TvContract.buildChannelLogoUri(channelUri), channel.getIconUri());
+            if (opsBytes >= mBatchBudget.getByteBudget()) {
+                if (!applyChannelBatch(ops, insertedLogos, logos)) {
+                    return false;
+                }
+                ops = new ArrayList<>();
+                opsBytes = 0;
+                insertedLogos = new SparseArray<>();
             }
         }
 
         // Update the Channels DB - Delete channels which no longer exist.
         int size = channelMap.size();
         for (int i = 0; i < size; ++i) {
-            if (isCancelled()) {
-                Log.d(TAG, "Sync cancelled");
-                return false;
+            long rowId = channelMap.valueAt(i).getId();
+            Log.d(TAG, "Deleting channel: " + rowId);
+            Uri channelUri = TvContract.buildChannelUri(rowId);
+            ops.add(ContentProviderOperation.newDelete(channelUri).build());
+            opsBytes += BatchBudget.estimateSize(channelUri, null);
+
+            if (opsBytes >= mBatchBudget.getByteBudget()) {
+                if (!applyChannelBatch(ops, insertedLogos, logos)) {
+                    return false;
+                }
+                ops = new ArrayList<>();
+                opsBytes = 0;
+                insertedLogos = new SparseArray<>();
             }
+        }
 
-            rowId = channelMap.valueAt(i);
-            Log.d(TAG, "Deleting channel: " + rowId);
-            mContentResolver.delete(TvContract.buildChannelUri(rowId), null, null);
+        if (!ops.isEmpty() && !applyChannelBatch(ops, insertedLogos, logos)) {
+            return false;
         }
 
+        Log.d(TAG, "Channel changes. A:" + additions + ", U:" + updates + ", D:" + size + ", NC:" + nochange);
+
         if (!logos.isEmpty()) {
-            SyncLogosTask syncLogosTask = new SyncLogosTask(mContext) {
+            final SyncRun syncRun = getSyncRun();
+
+            SyncLogosTask syncLogosTask = new SyncLogosTask(mContext, account) {
                 @Override
                 protected void onPostExecute(Void voids) {
-                    mPendingTasks.remove(this);
+                    syncRun.removePendingTask(this);
                 }
 
                 @Override
                 protected void onCancelled() {
-                    mPendingTasks.remove(this);
+                    syncRun.removePendingTask(this);
                 }
             };
 
@@ -245,7 +360,7 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
             }
 
             Log.d(TAG, "Dispatching Logos Sync Task");
-            mPendingTasks.add(syncLogosTask.executeOnExecutor(sExecutor, logos));
+            syncRun.addPendingTask(syncLogosTask.executeOnExecutor(sExecutor, logos));
         }
 
         Log.d(TAG, "Completed channel sync");
@@ -253,7 +368,34 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         return true;
     }
 
-    private boolean syncPrograms(final Account account, final boolean quickSync) {
+    private boolean applyChannelBatch(ArrayList<ContentProviderOperation> ops, SparseArray<String> insertedLogos, Map<Uri, String> logos) {
+        if (isCancelled()) {
+            Log.d(TAG, "Sync cancelled");
+            return false;
+        }
+
+        ContentProviderResult[] results;
+
+        try {
+            results = mBatchBudget.applyBatch(mContentResolver, TvContract.AUTHORITY, ops);
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(TAG, "Failed to apply channel changes", e);
+            return false;
+        }
+
+        // Now we know the URIs of any new channels, queue up their logos
+        for (int i = 0; i < insertedLogos.size(); i++) {
+            Uri channelUri = results[insertedLogos.keyAt(i)].uri;
+
+            if (channelUri != null) {
+                logos.put(TvContract.buildChannelLogoUri(channelUri), insertedLogos.valueAt(i));
+            }
+        }
+
+        return true;
+    }
+
+    private boolean syncPrograms(final Account account, TVHClient client, final boolean quickSync, final boolean allowIncremental) {
         Log.d(TAG, "Starting program sync");
 
         // Gather the list of channels from TvProvider
@@ -266,69 +408,581 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         };
 
         // Fetch the ChannelList
-        ChannelList channelList = TvContractUtils.getChannels(mContext, projection);
+        ChannelList channelList = TvContractUtils.getChannels(mContext, projection, account);
 
         // Update the EPG for each channel
-        final CountDownLatch countDownLatch = new CountDownLatch(channelList.size());
+        List<ProgramSyncPipeline.FetchTask> fetchTasks = new ArrayList<>();
+
+        SyncState syncState = new SyncState(mContext, account);
+        BulkFetchTask bulkFetchTask = null;
+
+        // Only programs within the window are fetched, and replaced. Programs which have already
+        // ended are left alone by the sync, and pruned once they're past the retention period.
+        long now = System.currentTimeMillis();
+        long windowStartUtcMillis = now;
+        // The server filters by whole seconds, the window must end on one for the programs
+        // diffed against to be the same as those fetched
+        long windowEndUtcMillis = (now + SyncUtils.getSyncWindowMillis(mContext, quickSync)) / 1000 * 1000;
+        long retainedUtcMillis = now - SyncUtils.getProgramRetentionMillis(mContext);
+
+        if (quickSync) {
+            // Used by the Setup Wizard, fetch the next few hours of events for each channel
+            // individually
+            for (Channel channel : channelList) {
+                fetchTasks.add(new ChannelFetchTask(account, client, channel, windowStartUtcMillis, windowEndUtcMillis));
+            }
+        } else {
+            // Periodic syncs only fetch what's new since the last sync, with a regular full sync
+            // to pick up any changes to programs we've already seen.
+            long sinceFullSync = System.currentTimeMillis() - syncState.getLastFullSync();
+            boolean incremental = allowIncremental
+                    && sinceFullSync >= 0 && sinceFullSync < SyncUtils.FULL_SYNC_INTERVAL_SEC * 1000;
+
+            // Fetch the events for every channel in a few large pages, then split them up by
+            // channel locally.
+            bulkFetchTask = new BulkFetchTask(account, client, channelList, incremental ? syncState : null,
+                    windowStartUtcMillis, windowEndUtcMillis);
+            fetchTasks.add(bulkFetchTask);
+        }
 
-        for (Channel channel : channelList) {
-            updateChannelPrograms(account, countDownLatch, channel, quickSync);
+        ProgramSyncPipeline pipeline = new ProgramSyncPipeline(mContext);
+        SyncRun syncRun = getSyncRun();
+
+        if (syncRun == null || !syncRun.setPipeline(pipeline)) {
+            Log.d(TAG, "Sync cancelled");
+            return false;
         }
 
-        // Wait for all tasks to finish
+        boolean completed;
+
         try {
-            countDownLatch.await();
-        } catch (InterruptedException e) {
-            Log.w(TAG, "Interrupted while awaiting program sync to complete: " + e.getLocalizedMessage());
+            completed = pipeline.run(fetchTasks);
+        } finally {
+            syncRun.setPipeline(null);
+        }
+
+        if (!completed) {
+            Log.w(TAG, "Program sync did not complete successfully");
             return false;
         }
 
+        if (bulkFetchTask != null) {
+            // Only advance the high-water marks once everything has been written
+            Set<String> channelUuids = new HashSet<>();
+            for (Channel channel : channelList) {
+                channelUuids.add(channel.getInternalProviderData().getUuid());
+            }
+
+            syncState.update(channelUuids, bulkFetchTask.getChannelStates(), bulkFetchTask.isFullSync());
+        }
+
+        int pruned = TvContractUtils.removeProgramsEndedBefore(mContext, retainedUtcMillis);
+        Log.d(TAG, "Pruned " + pruned + " programs ended before " + retainedUtcMillis);
+
         Log.d(TAG, "Completed program sync");
         return true;
     }
 
-    private boolean updateChannelPrograms(final Account account, final CountDownLatch countDownLatch, final Channel channel, final boolean quickSync) {
+    /**
+     * Fetches a channel's programs which end after windowStartUtcMillis and start before
+     * windowEndUtcMillis.
+     */
+    private ProgramList fetchChannelPrograms(TVHClient client, final Account account, final Channel channel, long windowStartUtcMillis, long windowEndUtcMillis) throws InterruptedException {
         Log.d(TAG, "Fetching events for channel " + channel.toString());
 
-        TVHClient.EventList eventList;
+        // Events are converted to Programs as they are parsed, the intermediate TVHClient.Event
+        // objects are discarded immediately.
+        final ProgramList programList = new ProgramList();
+
+        GridStreamParser.EntryListener<TVHClient.Event> entryListener = new GridStreamParser.EntryListener<TVHClient.Event>() {
+            @Override
+            public void onEntry(TVHClient.Event event) {
+                programList.add(Program.fromClientEvent(event, channel.getId(), account));
+            }
+        };
 
         String channelUuid = channel.getInternalProviderData().getUuid();
 
         try {
-            if (quickSync) {
-                // Used by the Setup Wizard, we do a quick sync in the forground, then a full sync
-                // in the background.
-                eventList = mClient.getEventGrid(channelUuid, TVHClient.QUICK_EVENT_LIMIT);
-            } else {
-                eventList = mClient.getEventGrid(channelUuid);
-            }
-        } catch (InterruptedException|ExecutionException e) {
+            client.streamEvents(
+                    channelUuid, windowStartUtcMillis / 1000, windowEndUtcMillis / 1000, 0, entryListener);
+        } catch (ExecutionException e) {
             // Something went wrong
             Log.w(TAG, "Failed to fetch event list from server: " + e.getLocalizedMessage(), e);
-            return false;
+            return null;
         } catch (TimeoutException e) {
             // Request timed out
             Log.w(TAG, "Failed to fetch event  list from server, timed out");
-            return false;
+            return null;
         }
 
-        // Prepare the SyncProgramsTask
-        final SyncProgramsTask syncProgramsTask = new SyncProgramsTask(mContext, channel, account) {
-            @Override
-            protected void onPostExecute(Boolean completed) {
-                mPendingTasks.remove(this);
-                countDownLatch.countDown();
+        return programList;
+    }
+
+    private interface ChannelProgramsListener {
+        /**
+         * Called, on the fetching thread, with each channel's complete programs, in start time
+         * order.
+         */
+        void onChannelPrograms(Channel channel, ProgramList programList) throws InterruptedException;
+    }
+
+    /**
+     * Fetches the programs of every channel in a few large pages, grouped by channel, handing
+     * each channel's programs on as soon as the next channel's start arriving shows they're
+     * complete. Only the channel in progress, and those completed in the current page, are held
+     * in memory.
+     *
+     * Channels sharing a number with another, or without one, can't be told apart by the sort
+     * and are fetched on their own afterwards. As are any others whose events don't arrive
+     * together after all.
+     *
+     * @param minStopTime Only events ending at or after this, in seconds
+     * @param maxStartTime Only events starting before this, in seconds
+     * @return false should the fetch fail
+     */
+    private boolean fetchAllPrograms(TVHClient client, final Account account, ChannelList channelList, long minStopTime, long maxStartTime, final ChannelProgramsListener listener) throws InterruptedException {
+        Log.d(TAG, "Fetching events for " + channelList.size() + " channels, ending after " + minStopTime
+                + ", starting before " + maxStartTime);
+
+        // Channels sharing a number have their events interleaved, they're fetched on their own
+        Map<String, Integer> numberCounts = new HashMap<>();
+
+        for (Channel channel : channelList) {
+            String number = channel.getDisplayNumber();
+            Integer count = numberCounts.get(number);
+            numberCounts.put(number, count == null ? 1 : count + 1);
+        }
+
+        final Map<String, Channel> channels = new HashMap<>();
+        Set<String> sharedNumberChannelUuids = new HashSet<>();
+
+        for (Channel channel : channelList) {
+            String number = channel.getDisplayNumber();
+
+            if (TextUtils.isEmpty(number) || numberCounts.get(number) > 1) {
+                sharedNumberChannelUuids.add(channel.getInternalProviderData().getUuid());
+            } else {
+                channels.put(channel.getInternalProviderData().getUuid(), channel);
             }
+        }
+
+        final ChannelBatcher batcher = new ChannelBatcher(account, channels);
 
+        TVHClient.PageListener pageListener = new TVHClient.PageListener() {
             @Override
-            protected void onCancelled() {
-                mPendingTasks.remove(this);
-                countDownLatch.countDown();
+            public void onPage() throws InterruptedException {
+                batcher.drainCompleted(listener);
             }
         };
 
-        mPendingTasks.add(syncProgramsTask.executeOnExecutor(sExecutor, eventList));
+        int eventCount;
+
+        try {
+            eventCount = client.streamEventsByChannel(
+                    minStopTime, maxStartTime, batcher, pageListener);
+        } catch (ExecutionException e) {
+            // Something went wrong
+            Log.w(TAG, "Failed to fetch event list from server: " + e.getLocalizedMessage(), e);
+            return false;
+        } catch (TimeoutException e) {
+            // Request timed out
+            Log.w(TAG, "Failed to fetch event list from server, timed out");
+            return false;
+        }
+
+        // The last channel is only complete once every page is in
+        batcher.finish();
+        batcher.drainCompleted(listener);
+
+        Log.d(TAG, "Fetched " + eventCount + " events");
+
+        for (Channel channel : channelList) {
+            String channelUuid = channel.getInternalProviderData().getUuid();
+
+            if (sharedNumberChannelUuids.contains(channelUuid) || batcher.isSplit(channelUuid)) {
+                Log.d(TAG, "Fetching events for channel on its own: " + channel.toString());
+
+                ProgramList programList = fetchChannelPrograms(
+                        client, account, channel, minStopTime * 1000, maxStartTime * 1000);
+
+                if (programList == null) {
+                    return false;
+                }
+
+                Collections.sort(programList);
+                listener.onChannelPrograms(channel, programList);
+            } else if (!batcher.isEmitted(channelUuid)) {
+                // No events at all, the channel's programs are still synced so any old ones in
+                // the window are deleted
+                listener.onChannelPrograms(channel, new ProgramList());
+            }
+        }
 
         return true;
     }
+
+    /**
+     * Groups events, arriving on the network thread in channel order, into a ProgramList per
+     * channel. Each channel is set aside as completed once another channel's events start.
+     */
+    private static class ChannelBatcher implements GridStreamParser.EntryListener<TVHClient.Event> {
+        private final Account mAccount;
+        private final Map<String, Channel> mChannels;
+
+        private String mCurrentChannelUuid;
+        private ProgramList mCurrentProgramList;
+
+        private final List<String> mCompletedChannelUuids = new ArrayList<>();
+        private final List<ProgramList> mCompletedProgramLists = new ArrayList<>();
+
+        // Channels whose programs have been completed
+        private final Set<String> mEmittedChannelUuids = new HashSet<>();
+        // Channels whose events didn't arrive together, and so can't be trusted
+        private final Set<String> mSplitChannelUuids = new HashSet<>();
+
+        public ChannelBatcher(Account account, Map<String, Channel> channels) {
+            mAccount = account;
+            mChannels = channels;
+        }
+
+        @Override
+        public synchronized void onEntry(TVHClient.Event event) {
+            Channel channel = mChannels.get(event.channelUuid);
+
+            if (channel == null || mSplitChannelUuids.contains(event.channelUuid)) {
+                // Event for a channel we're not syncing, e.g. a disabled channel, or one we'll
+                // fetch again
+                return;
+            }
+
+            if (!event.channelUuid.equals(mCurrentChannelUuid)) {
+                complete();
+
+                if (mEmittedChannelUuids.contains(event.channelUuid)) {
+                    mSplitChannelUuids.add(event.channelUuid);
+                    return;
+                }
+
+                mCurrentChannelUuid = event.channelUuid;
+                mCurrentProgramList = new ProgramList();
+            }
+
+            mCurrentProgramList.add(Program.fromClientEvent(event, channel.getId(), mAccount));
+        }
+
+        public synchronized void finish() {
+            complete();
+        }
+
+        /**
+         * Hands on the channels completed so far, outside of the lock so parsing carries on.
+         */
+        public void drainCompleted(ChannelProgramsListener listener) throws InterruptedException {
+            List<String> channelUuids;
+            List<ProgramList> programLists;
+
+            synchronized (this) {
+                channelUuids = new ArrayList<>(mCompletedChannelUuids);
+                programLists = new ArrayList<>(mCompletedProgramLists);
+                mCompletedChannelUuids.clear();
+                mCompletedProgramLists.clear();
+            }
+
+            for (int i = 0; i < channelUuids.size(); i++) {
+                String channelUuid = channelUuids.get(i);
+
+                if (isSplit(channelUuid)) {
+                    continue;
+                }
+
+                ProgramList programList = programLists.get(i);
+
+                // The diff expects each channel's programs in start time order
+                Collections.sort(programList);
+                listener.onChannelPrograms(mChannels.get(channelUuid), programList);
+            }
+        }
+
+        public synchronized boolean isSplit(String channelUuid) {
+            return mSplitChannelUuids.contains(channelUuid);
+        }
+
+        public synchronized boolean isEmitted(String channelUuid) {
+            return mEmittedChannelUuids.contains(channelUuid);
+        }
+
+        private void complete() {
+            if (mCurrentChannelUuid != null) {
+                mCompletedChannelUuids.add(mCurrentChannelUuid);
+                mCompletedProgramLists.add(mCurrentProgramList);
+                mEmittedChannelUuids.add(mCurrentChannelUuid);
+            }
+
+            mCurrentChannelUuid = null;
+            mCurrentProgramList = null;
+        }
+    }
+
+    private class BulkFetchTask implements ProgramSyncPipeline.FetchTask {
+        // If more than this fraction of channels can't be synced incrementally, a full bulk
+        // fetch is cheaper than fetching each of them individually.
+        private static final float MAX_FALLBACK_FRACTION = 0.25f;
+
+        private final Account mAccount;
+        private final TVHClient mClient;
+        private final ChannelList mChannelList;
+        private final SyncState mSyncState;
+        private final long mWindowStartUtcMillis;
+        private final long mWindowEndUtcMillis;
+
+        private final Map<String, SyncState.ChannelState> mChannelStates = new HashMap<>();
+        private boolean mFullSync = false;
+
+        /**
+         * @param syncState The stored high-water marks to sync incrementally from, or null for a
+         *                  full sync.
+         * @param windowStartUtcMillis Full syncs replace programs ending after this
+         * @param windowEndUtcMillis Programs starting after this aren't fetched
+         */
+        public BulkFetchTask(Account account, TVHClient client, ChannelList channelList, SyncState syncState, long windowStartUtcMillis, long windowEndUtcMillis) {
+            mAccount = account;
+            mClient = client;
+            mChannelList = channelList;
+            mSyncState = syncState;
+            mWindowStartUtcMillis = windowStartUtcMillis;
+            mWindowEndUtcMillis = windowEndUtcMillis;
+        }
+
+        public Map<String, SyncState.ChannelState> getChannelStates() {
+            return mChannelStates;
+        }
+
+        public boolean isFullSync() {
+            return mFullSync;
+        }
+
+        @Override
+        public boolean fetch(final ProgramSyncPipeline.Emitter emitter) throws InterruptedException {
+            final ChannelList fullChannels = new ChannelList();
+            ChannelList incrementalChannels = new ChannelList();
+            final Map<String, SyncState.ChannelState> oldChannelStates = new HashMap<>();
+            long minStopTimeUtcMillis = Long.MAX_VALUE;
+
+            if (mSyncState != null) {
+                for (Channel channel : mChannelList) {
+                    String channelUuid = channel.getInternalProviderData().getUuid();
+                    SyncState.ChannelState channelState = mSyncState.getChannelState(channelUuid);
+
+                    if (channelState == null) {
+                        fullChannels.add(channel);
+                    } else {
+                        incrementalChannels.add(channel);
+                        oldChannelStates.put(channelUuid, channelState);
+                        minStopTimeUtcMillis = Math.min(minStopTimeUtcMillis, channelState.getEndTimeUtcMillis());
+                    }
+                }
+            }
+
+            if (incrementalChannels.isEmpty()
+                    || fullChannels.size() > mChannelList.size() * MAX_FALLBACK_FRACTION) {
+                return fetchFull(emitter);
+            }
+
+            Log.d(TAG, "Starting incremental program fetch for " + incrementalChannels.size() + " channels");
+
+            ChannelProgramsListener listener = new ChannelProgramsListener() {
+                @Override
+                public void onChannelPrograms(Channel channel, ProgramList programList) throws InterruptedException {
+                    String channelUuid = channel.getInternalProviderData().getUuid();
+                    SyncState.ChannelState channelState = oldChannelStates.get(channelUuid);
+
+                    // The request covered the earliest high-water mark of all channels, drop
+                    // anything before this channel's own.
+                    ProgramList newProgramList = new ProgramList();
+                    for (Program program : programList) {
+                        if (program.getEndTimeUtcMillis() >= channelState.getEndTimeUtcMillis()) {
+                            newProgramList.add(program);
+                        }
+                    }
+
+                    if (channelState.isEmpty()) {
+                        // The channel had no programs last time, there's nothing to check against
+                        putChannelState(channelUuid, newProgramList);
+                        emitter.emit(channel, newProgramList, channelState.getEndTimeUtcMillis(), mWindowEndUtcMillis);
+                        return;
+                    }
+
+                    // The first program should be the one we finished on last time, unchanged
+                    // both on the server and in TvProvider. Otherwise things have moved under us,
+                    // resync the whole channel.
+                    Program serverProgram = newProgramList.isEmpty() ? null : newProgramList.get(0);
+                    if (!channelState.matches(serverProgram)) {
+                        Log.d(TAG, "Server no longer matches high-water mark for channel: " + channel.toString());
+                        fullChannels.add(channel);
+                        return;
+                    }
+
+                    Program localProgram = TvContractUtils.getProgramStartingAt(
+                            mContext, channel, channelState.getStartTimeUtcMillis());
+                    if (!channelState.matches(localProgram)) {
+                        Log.d(TAG, "TvProvider no longer matches high-water mark for channel: " + channel.toString());
+                        fullChannels.add(channel);
+                        return;
+                    }
+
+                    putChannelState(channelUuid, newProgramList);
+                    emitter.emit(channel, newProgramList, channelState.getStartTimeUtcMillis(), mWindowEndUtcMillis);
+                }
+            };
+
+            if (!fetchAllPrograms(mClient, mAccount, incrementalChannels, minStopTimeUtcMillis / 1000,
+                    mWindowEndUtcMillis / 1000, listener)) {
+                return false;
+            }
+
+            // Fall back to a full sync of any channel we couldn't sync incrementally
+            for (Channel channel : fullChannels) {
+                ProgramList programList = fetchChannelPrograms(
+                        mClient, mAccount, channel, mWindowStartUtcMillis, mWindowEndUtcMillis);
+
+                if (programList == null) {
+                    return false;
+                }
+
+                putChannelState(channel.getInternalProviderData().getUuid(), programList);
+                emitter.emit(channel, programList, mWindowStartUtcMillis, mWindowEndUtcMillis);
+            }
+
+            return true;
+        }
+
+        private boolean fetchFull(final ProgramSyncPipeline.Emitter emitter) throws InterruptedException {
+            Log.d(TAG, "Starting full program fetch");
+
+            mFullSync = true;
+
+            // Each channel goes on to be diffed and written while the rest are still being fetched
+            ChannelProgramsListener listener = new ChannelProgramsListener() {
+                @Override
+                public void onChannelPrograms(Channel channel, ProgramList programList) throws InterruptedException {
+                    putChannelState(channel.getInternalProviderData().getUuid(), programList);
+                    emitter.emit(channel, programList, mWindowStartUtcMillis, mWindowEndUtcMillis);
+                }
+            };
+
+            return fetchAllPrograms(mClient, mAccount, mChannelList, mWindowStartUtcMillis / 1000,
+                    mWindowEndUtcMillis / 1000, listener);
+        }
+
+        private void putChannelState(String channelUuid, ProgramList programList) {
+            if (programList.isEmpty()) {
+                // Remember the channel had nothing, so it isn't counted as needing a full sync
+                mChannelStates.put(channelUuid, SyncState.ChannelState.empty(mWindowEndUtcMillis));
+            } else {
+                mChannelStates.put(channelUuid, SyncState.ChannelState.fromProgram(
+                        programList.get(programList.size() - 1)));
+            }
+        }
+    }
+
+    private class ChannelFetchTask implements ProgramSyncPipeline.FetchTask {
+        private final Account mAccount;
+        private final TVHClient mClient;
+        private final Channel mChannel;
+        private final long mWindowStartUtcMillis;
+        private final long mWindowEndUtcMillis;
+
+        public ChannelFetchTask(Account account, TVHClient client, Channel channel, long windowStartUtcMillis, long windowEndUtcMillis) {
+            mAccount = account;
+            mClient = client;
+            mChannel = channel;
+            mWindowStartUtcMillis = windowStartUtcMillis;
+            mWindowEndUtcMillis = windowEndUtcMillis;
+        }
+
+        @Override
+        public boolean fetch(ProgramSyncPipeline.Emitter emitter) throws InterruptedException {
+            ProgramList programList = fetchChannelPrograms(
+                    mClient, mAccount, mChannel, mWindowStartUtcMillis, mWindowEndUtcMillis);
+
+            if (programList == null) {
+                return false;
+            }
+
+            emitter.emit(mChannel, programList, mWindowStartUtcMillis, mWindowEndUtcMillis);
+
+            return true;
+        }
+    }
+
+    /**
+     * The state of a single account's sync, so it can be cancelled without affecting the syncs
+     * of other accounts.
+     */
+    private static class SyncRun {
+        private final Account mAccount;
+        private final TVHClient mClient;
+
+        private volatile boolean mIsCancelled = false;
+        private ProgramSyncPipeline mPipeline;
+        private final ArrayList<AsyncTask> mPendingTasks = new ArrayList<AsyncTask>();
+
+        public SyncRun(Account account, TVHClient client) {
+            mAccount = account;
+            mClient = client;
+        }
+
+        public Account getAccount() {
+            return mAccount;
+        }
+
+        public boolean isCancelled() {
+            return mIsCancelled;
+        }
+
+        public void cancel() {
+            ArrayList<AsyncTask> pendingTasks;
+
+            synchronized (this) {
+                mIsCancelled = true;
+
+                if (mPipeline != null) {
+                    mPipeline.cancel();
+                }
+
+                pendingTasks = new ArrayList<AsyncTask>(mPendingTasks);
+                mPendingTasks.clear();
+            }
+
+            Log.d(TAG, "Cancelling " + pendingTasks.size() + " pending tasks");
+
+            for (AsyncTask asyncTask : pendingTasks) {
+                asyncTask.cancel(true);
+            }
+
+            // Release anything still blocked on a request, rather than waiting out its timeout
+            mClient.cancelAll();
+        }
+
+        /**
+         * @return false if the sync has already been cancelled, and pipeline won't be
+         */
+        public synchronized boolean setPipeline(ProgramSyncPipeline pipeline) {
+            if (pipeline != null && mIsCancelled) {
+                return false;
+            }
+
+            mPipeline = pipeline;
+            return true;
+        }
+
+        public synchronized void addPendingTask(AsyncTask asyncTask) {
+            mPendingTasks.add(asyncTask);
+        }
+
+        public synchronized void removePendingTask(AsyncTask asyncTask) {
+            mPendingTasks.remove(asyncTask);
+        }
+    }
 }
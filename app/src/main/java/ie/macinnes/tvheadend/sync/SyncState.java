@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2016 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package ie.macinnes.tvheadend.sync;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Map;
+import java.util.Set;
+
+import ie.macinnes.tvheadend.Constants;
+import ie.macinnes.tvheadend.model.Program;
+
+/**
+ * Persists, for each channel, the last program written by a full or incremental program sync,
+ * or that there were none. This is the high-water mark incremental syncs continue from.
+ */
+public class SyncState {
+    private static final String KEY_LAST_FULL_SYNC = "LAST-FULL-SYNC";
+    private static final String CHANNEL_KEY_PREFIX = "CHANNEL-";
+
+    private final SharedPreferences mSharedPreferences;
+
+    @SuppressWarnings("deprecation")
+    public SyncState(Context context, Account account) {
+        // Written by the sync process, and cleared by the main one when the account is removed
+        mSharedPreferences = context.getSharedPreferences(
+                Constants.PREFERENCE_SYNC_STATE + "-" + account.name,
+                Context.MODE_PRIVATE | Context.MODE_MULTI_PROCESS);
+    }
+
+    public long getLastFullSync() {
+        return mSharedPreferences.getLong(KEY_LAST_FULL_SYNC, 0);
+    }
+
+    public ChannelState getChannelState(String channelUuid) {
+        String string = mSharedPreferences.getString(CHANNEL_KEY_PREFIX + channelUuid, null);
+
+        if (string == null) {
+            return null;
+        }
+
+        return ChannelState.fromString(string);
+    }
+
+    /**
+     * Stores the new high-water marks, forgetting those of channels no longer in channelUuids.
+     * When fullSync is true, channels not present in channelStates are forgotten too and the last
+     * full sync time is updated.
+     */
+    public void update(Set<String> channelUuids, Map<String, ChannelState> channelStates, boolean fullSync) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+
+        if (fullSync) {
+            editor.clear();
+            editor.putLong(KEY_LAST_FULL_SYNC, System.currentTimeMillis());
+        } else {
+            for (String key : mSharedPreferences.getAll().keySet()) {
+                if (key.startsWith(CHANNEL_KEY_PREFIX)
+                        && !channelUuids.contains(key.substring(CHANNEL_KEY_PREFIX.length()))) {
+                    editor.remove(key);
+                }
+            }
+        }
+
+        for (Map.Entry<String, ChannelState> entry : channelStates.entrySet()) {
+            editor.putString(CHANNEL_KEY_PREFIX + entry.getKey(), entry.getValue().toString());
+        }
+
+        editor.apply();
+    }
+
+    public void clear() {
+        // Written straight away, so the sync process can't read the old state after this
+        mSharedPreferences.edit().clear().commit();
+    }
+
+    public static class ChannelState {
+        private String mEventId;
+        private long mStartTimeUtcMillis;
+        private long mEndTimeUtcMillis;
+        private long mContentHash;
+
+        public static ChannelState fromProgram(Program program) {
+            ChannelState channelState = new ChannelState();
+
+            channelState.mEventId = program.getInternalProviderData().getEventId();
+            channelState.mStartTimeUtcMillis = program.getStartTimeUtcMillis();
+            channelState.mEndTimeUtcMillis = program.getEndTimeUtcMillis();
+            channelState.mContentHash = program.getInternalProviderData().getContentHash();
+
+            return channelState;
+        }
+
+        /**
+         * A channel which had no programs up to endTimeUtcMillis. Incremental syncs carry on from
+         * there, as they would after a channel's last program.
+         */
+        public static ChannelState empty(long endTimeUtcMillis) {
+            ChannelState channelState = new ChannelState();
+
+            channelState.mEventId = "";
+            channelState.mStartTimeUtcMillis = endTimeUtcMillis;
+            channelState.mEndTimeUtcMillis = endTimeUtcMillis;
+            channelState.mContentHash = 0;
+
+            return channelState;
+        }
+
+        public static ChannelState fromString(String string) {
+            String[] parts = string.split(":");
+
+            if (parts.length != 4) {
+                return null;
+            }
+
+            ChannelState channelState = new ChannelState();
+
+            try {
+                channelState.mEventId = parts[0];
+                channelState.mStartTimeUtcMillis = Long.parseLong(parts[1]);
+                channelState.mEndTimeUtcMillis = Long.parseLong(parts[2]);
+                channelState.mContentHash = Long.parseLong(parts[3]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            return channelState;
+        }
+
+        public String toString() {
+            return mEventId + ":" + mStartTimeUtcMillis + ":" + mEndTimeUtcMillis + ":" + mContentHash;
+        }
+
+        public String getEventId() {
+            return mEventId;
+        }
+
+        public long getStartTimeUtcMillis() {
+            return mStartTimeUtcMillis;
+        }
+
+        public long getEndTimeUtcMillis() {
+            return mEndTimeUtcMillis;
+        }
+
+        public boolean isEmpty() {
+            return mEventId.isEmpty();
+        }
+
+        /**
+         * @return true if program is the same, unchanged, program this state was created from.
+         *         Only the times and InternalProviderData of program are needed.
+         */
+        public boolean matches(Program program) {
+            return program != null
+                    && program.getInternalProviderData() != null
+                    && mContentHash != 0
+                    && mEventId.equals(program.getInternalProviderData().getEventId())
+                    && mStartTimeUtcMillis == program.getStartTimeUtcMillis()
+                    && mEndTimeUtcMillis == program.getEndTimeUtcMillis()
+                    && mContentHash == program.getInternalProviderData().getContentHash();
+        }
+    }
+}
@@ -17,6 +17,8 @@ package ie.macinnes.tvheadend.sync;
 
 import android.accounts.Account;
 import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.util.Log;
 
@@ -26,6 +28,50 @@ public class SyncUtils {
     private static final String TAG = SyncUtils.class.getName();
 
     public static final long SYNC_FREQUENCY_SEC = 60 * 60 * 12 ;  // twice daily
+    public static final long FULL_SYNC_INTERVAL_SEC = 60 * 60 * 24 * 3;  // every 3 days
+
+    // How far ahead programs are synced, and how long they're kept once they've ended
+    public static final int DEFAULT_SYNC_WINDOW_HOURS = 24 * 14;
+    public static final int QUICK_SYNC_WINDOW_HOURS = 48;
+    public static final int DEFAULT_PROGRAM_RETENTION_HOURS = 24;
+
+    /**
+     * @return how far ahead of now a sync should fetch programs, in milliseconds. The window is
+     *         chosen during setup, quick syncs fetch a fixed part of it.
+     */
+    public static long getSyncWindowMillis(Context context, boolean quickSync) {
+        SharedPreferences sharedPreferences = getSyncPreferences(context);
+
+        int hours = sharedPreferences.getInt(Constants.KEY_SYNC_WINDOW, DEFAULT_SYNC_WINDOW_HOURS);
+
+        if (quickSync) {
+            hours = Math.min(hours, QUICK_SYNC_WINDOW_HOURS);
+        }
+
+        return hours * 60 * 60 * 1000L;
+    }
+
+    /**
+     * @return how long programs are kept in TvProvider after they've ended, in milliseconds
+     */
+    public static long getProgramRetentionMillis(Context context) {
+        SharedPreferences sharedPreferences = getSyncPreferences(context);
+
+        int hours = sharedPreferences.getInt(Constants.KEY_PROGRAM_RETENTION, DEFAULT_PROGRAM_RETENTION_HOURS);
+
+        return hours * 60 * 60 * 1000L;
+    }
+
+    /**
+     * The sync adapter runs in its own process, which would otherwise keep the values it first
+     * loaded after the setup wizard changes them. The periodic sync's extras are fixed when it's
+     * added, so they can't carry the settings instead.
+     */
+    @SuppressWarnings("deprecation")
+    private static SharedPreferences getSyncPreferences(Context context) {
+        return context.getSharedPreferences(
+                Constants.PREFERENCE_TVHEADEND, Context.MODE_PRIVATE | Context.MODE_MULTI_PROCESS);
+    }
 
     public static void setUpPeriodicSync(Account account) {
         Log.d(TAG, "Setting periodic sync for account: " + account.toString());
@@ -16,64 +16,259 @@
 
 package ie.macinnes.tvheadend.tasks;
 
+import android.accounts.Account;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import ie.macinnes.tvheadend.client.ImageRequest;
+import ie.macinnes.tvheadend.client.LogoRequest;
 import ie.macinnes.tvheadend.client.TVHClient;
+import ie.macinnes.tvheadend.sync.LogoManifest;
 
 public class SyncLogosTask extends AsyncTask<Map<Uri, String>, Void, Void> {
     public static final String TAG = SyncLogosTask.class.getSimpleName();
 
+    // Matches Volley's network dispatcher pool, any more would just queue up behind it
+    private static final int MAX_CONCURRENT_FETCHES = 4;
+
+    // Logos larger than this, in either dimension, are scaled down before being stored
+    private static final int MAX_LOGO_DIMENSION = 512;
+
+    // Formats every TvProvider client can decode, these are stored exactly as served
+    private static final Set<String> PASSTHROUGH_MIME_TYPES = new HashSet<>(Arrays.asList(
+            "image/png", "image/jpeg", "image/webp"));
+
     private final Context mContext;
     private final TVHClient mClient;
     private final ContentResolver mContentResolver;
+    private final LogoManifest mLogoManifest;
 
-    public SyncLogosTask(Context context) {
+    private final AtomicInteger mFetchedCount = new AtomicInteger();
+    private final AtomicInteger mNotModifiedCount = new AtomicInteger();
+    private final AtomicInteger mWrittenCount = new AtomicInteger();
+    private final AtomicInteger mReencodedCount = new AtomicInteger();
+
+    public SyncLogosTask(Context context, Account account) {
         mContext = context;
 
-        mClient = TVHClient.getInstance(context);
+        mClient = TVHClient.getInstance(context, account);
         mContentResolver = context.getContentResolver();
+        mLogoManifest = new LogoManifest(context, account);
     }
 
     @Override
     public Void doInBackground(Map<Uri, String>... logosList) {
+        // Many channels share a logo, so group the content URIs by source URL and fetch each
+        // distinct logo only once
+        Map<String, List<Uri>> contentUris = new HashMap<>();
+
         for (Map<Uri, String> logos : logosList) {
-            for (Uri uri : logos.keySet()) {
-                insertUrl(mContext, uri, logos.get(uri));
+            for (Map.Entry<Uri, String> entry : logos.entrySet()) {
+                List<Uri> uris = contentUris.get(entry.getValue());
+
+                if (uris == null) {
+                    uris = new ArrayList<>();
+                    contentUris.put(entry.getValue(), uris);
+                }
+
+                uris.add(entry.getKey());
             }
         }
+
+        // Every channel with a logo is passed in, anything else in the manifest is stale
+        List<Uri> allContentUris = new ArrayList<>();
+        for (List<Uri> uris : contentUris.values()) {
+            allContentUris.addAll(uris);
+        }
+        mLogoManifest.retain(allContentUris);
+
+        if (contentUris.isEmpty()) {
+            return null;
+        }
+
+        long startTime = SystemClock.elapsedRealtime();
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(MAX_CONCURRENT_FETCHES, contentUris.size()));
+
+        for (final Map.Entry<String, List<Uri>> entry : contentUris.entrySet()) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (isCancelled()) {
+                        return;
+                    }
+
+                    insertUrl(entry.getKey(), entry.getValue());
+                }
+            });
+        }
+
+        executor.shutdown();
+
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                if (isCancelled()) {
+                    executor.shutdownNow();
+                }
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        Log.d(TAG, "Fetched " + mFetchedCount.get() + " of " + contentUris.size() + " logos ("
+                + mNotModifiedCount.get() + " not modified), wrote "
+                + mWrittenCount.get() + " channel logos (" + mReencodedCount.get() + " re-encoded) in "
+                + (SystemClock.elapsedRealtime() - startTime) + "ms");
+
         return null;
     }
 
-    private void insertUrl(Context context, Uri contentUri, String sourceUrl) {
-        Log.d(TAG, "Inserting logo " + sourceUrl + " to " + contentUri);
+    private void insertUrl(String sourceUrl, List<Uri> contentUris) {
+        // Only make the request conditional when every channel already holds the same logo,
+        // otherwise there'd be nothing to write to the others on a 304
+        LogoManifest.Entry commonEntry = mLogoManifest.getCommonEntry(sourceUrl, contentUris);
 
-        Bitmap logo;
+        LogoRequest.Logo logo;
 
         try {
-            logo = mClient.getChannelIcon(sourceUrl);
+            logo = mClient.getChannelLogo(sourceUrl,
+                    commonEntry != null ? commonEntry.getETag() : null,
+                    commonEntry != null ? commonEntry.getLastModified() : null);
         } catch (InterruptedException|ExecutionException|TimeoutException e) {
             Log.d(TAG, "Failed to fetch logo from " + sourceUrl, e);
             return;
         }
 
+        if (logo.notModified) {
+            mNotModifiedCount.incrementAndGet();
+            return;
+        }
+
+        mFetchedCount.incrementAndGet();
+
+        LogoManifest.Entry entry = new LogoManifest.Entry(
+                sourceUrl, logo.etag, logo.lastModified, logo.digest);
+
+        // Servers without validators still send the same bytes, only write to channels which
+        // don't already hold them
+        List<Uri> changedContentUris = new ArrayList<>();
+
+        for (Uri contentUri : contentUris) {
+            LogoManifest.Entry oldEntry = mLogoManifest.getEntry(contentUri);
+
+            if (oldEntry != null && oldEntry.getDigest().equals(logo.digest)) {
+                if (!oldEntry.equals(entry)) {
+                    mLogoManifest.put(contentUri, entry);
+                }
+            } else {
+                changedContentUris.add(contentUri);
+            }
+        }
+
+        if (changedContentUris.isEmpty()) {
+            return;
+        }
+
+        Log.d(TAG, "Inserting logo " + sourceUrl + " to " + changedContentUris.size() + " channel(s)");
+
+        byte[] bytes = prepareLogo(sourceUrl, logo.data);
+
+        if (bytes == null) {
+            return;
+        }
+
+        for (Uri contentUri : changedContentUris) {
+            if (writeLogo(contentUri, bytes)) {
+                mLogoManifest.put(contentUri, entry);
+                mWrittenCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return the bytes to store for a logo, the served bytes themselves where possible, or null
+     *         should the logo be undecodable.
+     */
+    private byte[] prepareLogo(String sourceUrl, byte[] data) {
+        // Only the header is read, no pixels are decoded
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            Log.w(TAG, "Failed to decode logo from " + sourceUrl);
+            return null;
+        }
+
+        boolean oversized = options.outWidth > MAX_LOGO_DIMENSION || options.outHeight > MAX_LOGO_DIMENSION;
+
+        if (!oversized && PASSTHROUGH_MIME_TYPES.contains(options.outMimeType)) {
+            return data;
+        }
+
+        Log.d(TAG, "Re-encoding " + options.outMimeType + " logo " + sourceUrl + " ("
+                + options.outWidth + "x" + options.outHeight + ")");
+
+        // Sampled as it's decoded, a large logo is never held at full size
+        Bitmap bitmap;
+
+        try {
+            bitmap = ImageRequest.decodeSampled(data, MAX_LOGO_DIMENSION, MAX_LOGO_DIMENSION);
+        } catch (OutOfMemoryError e) {
+            Log.w(TAG, "Out of memory decoding logo from " + sourceUrl);
+            return null;
+        }
+
+        if (bitmap == null) {
+            Log.w(TAG, "Failed to decode logo from " + sourceUrl);
+            return null;
+        }
+
+        // Encode once, however many channels share the logo
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, encoded);
+        bitmap.recycle();
+
+        mReencodedCount.incrementAndGet();
+
+        return encoded.toByteArray();
+    }
+
+    private boolean writeLogo(Uri contentUri, byte[] bytes) {
         OutputStream os = null;
 
         try {
             os = mContentResolver.openOutputStream(contentUri);
-            logo.compress(Bitmap.CompressFormat.PNG, 100, os);
+            os.write(bytes);
+            return true;
         } catch (IOException ioe) {
-            Log.e(TAG, "Failed to copy " + sourceUrl + "  to " + contentUri, ioe);
+            Log.e(TAG, "Failed to write logo to " + contentUri, ioe);
+            return false;
         } finally {
             if (os != null) {
                 try {
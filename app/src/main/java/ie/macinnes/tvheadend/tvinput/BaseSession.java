@@ -9,9 +9,9 @@ import android.os.Message;
 import android.util.Log;
 import android.view.Surface;
 
+import java.io.InputStream;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import ie.macinnes.tvheadend.TvContractUtils;
 import ie.macinnes.tvheadend.model.Channel;
 
 abstract public class BaseSession extends android.media.tv.TvInputService.Session implements Handler.Callback {
@@ -31,6 +31,12 @@ abstract public class BaseSession extends android.media.tv.TvInputService.Sessio
 
     protected PlayChannelRunnable mPlayChannelRunnable;
 
+    // The timeline of the current tune, marked as it progresses
+    protected volatile TuneTimeline mTuneTimeline;
+
+    // Null unless enabled, and supported by the session
+    protected ZapAccelerator mZapAccelerator;
+
     public BaseSession(Context context, Handler serviceHandler) {
         super(context);
         mContext = context;
@@ -40,6 +46,10 @@ abstract public class BaseSession extends android.media.tv.TvInputService.Sessio
 
         mSessionNumber = sSessionCounter.getAndIncrement();
         mTvInputManager = (TvInputManager) context.getSystemService(Context.TV_INPUT_SERVICE);
+
+        if (isZapAccelerationSupported() && ZapAccelerator.isEnabled(context)) {
+            mZapAccelerator = new ZapAccelerator(context, serviceHandler);
+        }
     }
 
     @Override
@@ -49,8 +59,11 @@ abstract public class BaseSession extends android.media.tv.TvInputService.Sessio
         // Notify we are busy tuning
         notifyVideoUnavailable(TvInputManager.VIDEO_UNAVAILABLE_REASON_TUNING);
 
+        finishTuneTimeline(mTuneTimeline);
+        mTuneTimeline = new TuneTimeline(getPlayerName());
+
         mServiceHandler.removeCallbacks(mPlayChannelRunnable);
-        mPlayChannelRunnable = new PlayChannelRunnable(channelUri);
+        mPlayChannelRunnable = new PlayChannelRunnable(channelUri, mTuneTimeline);
         mServiceHandler.post(mPlayChannelRunnable);
 
         return true;
@@ -70,12 +83,18 @@ abstract public class BaseSession extends android.media.tv.TvInputService.Sessio
         }
 
         stopPlayback();
+        finishTuneTimeline(mTuneTimeline);
+
+        if (mZapAccelerator != null) {
+            mZapAccelerator.release();
+        }
     }
 
     @Override
     public void notifyVideoAvailable() {
         Log.d(TAG, "Notifying video is available");
         super.notifyVideoAvailable();
+        markTuneStage(TuneTimeline.STAGE_VIDEO_AVAILABLE);
     }
 
     @Override
@@ -100,7 +119,14 @@ abstract public class BaseSession extends android.media.tv.TvInputService.Sessio
     public boolean handleMessage(Message msg) {
         switch (msg.what) {
             case MSG_PLAY_CHANNEL:
-                return playChannel((Channel) msg.obj);
+                Channel channel = (Channel) msg.obj;
+                boolean result = playChannel(channel);
+
+                if (mZapAccelerator != null) {
+                    mZapAccelerator.onTuned(channel);
+                }
+
+                return result;
         }
         return false;
     }
@@ -108,16 +134,66 @@ abstract public class BaseSession extends android.media.tv.TvInputService.Sessio
     abstract protected boolean playChannel(Channel channel);
     abstract protected void stopPlayback();
 
+    /**
+     * @return true should the session be able to play from a prebuffered stream
+     */
+    protected boolean isZapAccelerationSupported() {
+        return false;
+    }
+
+    /**
+     * @return the prebuffered stream for channel, starting at a keyframe, or null should there
+     *         not be one. The caller is responsible for closing it.
+     */
+    protected InputStream takePrebufferedStream(Channel channel) {
+        if (mZapAccelerator == null) {
+            return null;
+        }
+
+        return mZapAccelerator.takeStream(channel);
+    }
+
+    /**
+     * @return the name tunes are aggregated under, along with any settings affecting tune times
+     */
+    protected String getPlayerName() {
+        return getClass().getSimpleName();
+    }
+
+    /**
+     * Marks a stage of the current tune as reached, recording the tune once it's complete.
+     */
+    protected void markTuneStage(int stage) {
+        TuneTimeline timeline = mTuneTimeline;
+
+        if (timeline != null && timeline.mark(stage) && timeline.isComplete()) {
+            finishTuneTimeline(timeline);
+        }
+    }
+
+    /**
+     * Records a tune, complete or not, should it still be the current tune.
+     */
+    private synchronized void finishTuneTimeline(TuneTimeline timeline) {
+        if (timeline != null && timeline == mTuneTimeline) {
+            TuneStats.getInstance().record(timeline);
+            mTuneTimeline = null;
+        }
+    }
+
     private class PlayChannelRunnable implements Runnable {
         private final Uri mChannelUri;
+        private final TuneTimeline mTimeline;
 
-        public PlayChannelRunnable(Uri channelUri) {
+        public PlayChannelRunnable(Uri channelUri, TuneTimeline timeline) {
             mChannelUri = channelUri;
+            mTimeline = timeline;
         }
 
         @Override
         public void run() {
-            Channel channel = TvContractUtils.getChannelFromChannelUri(mContext, mChannelUri);
+            Channel channel = TuneCache.getInstance(mContext).getChannel(mChannelUri);
+            mTimeline.mark(TuneTimeline.STAGE_CHANNEL_LOOKUP);
 
             if (channel != null) {
                 mSessionHandler.removeMessages(MSG_PLAY_CHANNEL);
@@ -15,8 +15,6 @@
  */
 package ie.macinnes.tvheadend.tvinput;
 
-import android.accounts.Account;
-import android.accounts.AccountManager;
 import android.content.Context;
 import android.media.tv.TvInputManager;
 import android.media.tv.TvTrackInfo;
@@ -28,15 +26,15 @@ import android.widget.Toast;
 
 import com.google.android.exoplayer.ExoPlayer;
 import com.google.android.exoplayer.MediaFormat;
+import com.google.android.exoplayer.upstream.TransferListener;
 import com.google.android.exoplayer.util.Util;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
-import ie.macinnes.tvheadend.Constants;
-import ie.macinnes.tvheadend.account.AccountUtils;
-import ie.macinnes.tvheadend.client.ClientUtils;
 import ie.macinnes.tvheadend.demoplayer.DemoPlayer;
 import ie.macinnes.tvheadend.demoplayer.ExtractorWithHTTPHeadersRendererBuilder;
 import ie.macinnes.tvheadend.model.Channel;
@@ -45,6 +43,7 @@ public class DemoPlayerSession extends BaseSession implements DemoPlayer.Listene
     private static final String TAG = DemoPlayerSession.class.getName();
 
     private DemoPlayer mDemoPlayer;
+    private InputStream mPrebufferedStream;
 
     /**
      * Creates a new Session.
@@ -56,6 +55,11 @@ public class DemoPlayerSession extends BaseSession implements DemoPlayer.Listene
         Log.d(TAG, "Session created (" + mSessionNumber + ")");
     }
 
+    @Override
+    protected boolean isZapAccelerationSupported() {
+        return true;
+    }
+
     @Override
     public boolean onSetSurface(Surface surface) {
         Log.d(TAG, "Session onSetSurface (" + mSessionNumber + ")");
@@ -84,31 +88,17 @@ public class DemoPlayerSession extends BaseSession implements DemoPlayer.Listene
         // Stop any existing playback
         stopPlayback();
 
-        // Gather Details on the Channel
-        String channelUuid = channel.getInternalProviderData().getUuid();
-
-        // Gather Details on the TVHeadend Instance
-        AccountManager accountManager = AccountManager.get(mContext);;
-        Account account = AccountUtils.getActiveAccount(mContext);
-
-        String username = account.name;
-        String password = accountManager.getPassword(account);
-        String hostname = accountManager.getUserData(account, Constants.KEY_HOSTNAME);
-        String httpPort = accountManager.getUserData(account, Constants.KEY_HTTP_PORT);
-        String httpPath = accountManager.getUserData(account, Constants.KEY_HTTP_PATH);
-
-        // Create authentication headers and streamUri
-        Map<String, String> headers = ClientUtils.createBasicAuthHeader(username, password);
-        Uri videoUri;
+        // Gather Details on the TVHeadend Instance, without waiting on AccountManager
+        TuneCache.Endpoint endpoint = TuneCache.getInstance(mContext).getEndpoint();
 
-        if (httpPath == null) {
-            videoUri = Uri.parse("http://" + hostname + ":" + httpPort + "/stream/channel/" + channelUuid + "?profile=tif");
-        } else {
-            videoUri = Uri.parse("http://" + hostname + ":" + httpPort + "/" + httpPath + "/stream/channel/" + channelUuid + "?profile=tif");
+        if (endpoint == null) {
+            Log.w(TAG, "No account to play channel from: " + channel.toString());
+            return false;
         }
 
         // Prepare the media player
-        mDemoPlayer = prepareMediaPlayer(videoUri, headers);
+        mDemoPlayer = prepareMediaPlayer(
+                createRendererBuilder(channel, endpoint, new TuneTransferListener()));
 
         if (mDemoPlayer != null) {
             // Start the media playback
@@ -123,6 +113,28 @@ public class DemoPlayerSession extends BaseSession implements DemoPlayer.Listene
         }
     }
 
+    /**
+     * @param transferListener Marks the tune's stages as the channel's stream is read
+     */
+    protected DemoPlayer.RendererBuilder createRendererBuilder(Channel channel, TuneCache.Endpoint endpoint, TransferListener transferListener) {
+        // Gather Details on the Channel
+        String channelUuid = channel.getInternalProviderData().getUuid();
+
+        // Create authentication headers and streamUri
+        Map<String, String> headers = endpoint.getHeaders();
+        Uri videoUri = endpoint.getStreamUri(channelUuid, false);
+
+        Log.d(TAG, "Preparing video: " + videoUri + ".");
+
+        // Read from a prebuffered stream if we have one
+        mPrebufferedStream = takePrebufferedStream(channel);
+
+        String userAgent = Util.getUserAgent(mContext, "android-tvheadend");
+
+        return new ExtractorWithHTTPHeadersRendererBuilder(
+                mContext, userAgent, videoUri, headers, transferListener, mPrebufferedStream);
+    }
+
     protected void stopPlayback() {
         Log.d(TAG, "Session stopPlayback (" + mSessionNumber + ")");
 
@@ -133,17 +145,21 @@ public class DemoPlayerSession extends BaseSession implements DemoPlayer.Listene
             mDemoPlayer.release();
             mDemoPlayer = null;
         }
-    }
 
-    private DemoPlayer prepareMediaPlayer(Uri videoUri, Map<String, String> headers) {
-        Log.d(TAG, "Preparing video: " + videoUri + ".");
+        // Should the player not have opened it, the stream still holds a subscription
+        if (mPrebufferedStream != null) {
+            try {
+                mPrebufferedStream.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            mPrebufferedStream = null;
+        }
+    }
 
+    private DemoPlayer prepareMediaPlayer(DemoPlayer.RendererBuilder rendererBuilder) {
         // Create and prep the DemoPlayer instance
-        String userAgent = Util.getUserAgent(mContext, "android-tvheadend");
-
-        DemoPlayer demoPlayer = new DemoPlayer(
-                new ExtractorWithHTTPHeadersRendererBuilder(
-                        mContext, userAgent, videoUri, headers));
+        DemoPlayer demoPlayer = new DemoPlayer(rendererBuilder);
 
         demoPlayer.addListener(this);
         demoPlayer.prepare();
@@ -186,6 +202,11 @@ public class DemoPlayerSession extends BaseSession implements DemoPlayer.Listene
         Log.d(TAG, "onVideoSizeChanged W:" + width + " H:" + height);
     }
 
+    @Override
+    public void onDrawnToSurface(Surface surface) {
+        markTuneStage(TuneTimeline.STAGE_FIRST_FRAME);
+    }
+
     private List<TvTrackInfo> getAllTracks() {
         String trackId;
         List<TvTrackInfo> tracks = new ArrayList<>();
@@ -232,4 +253,24 @@ public class DemoPlayerSession extends BaseSession implements DemoPlayer.Listene
     private static String getTrackId(int trackType, int trackIndex) {
         return trackType + "-" + trackIndex;
     }
+
+    /**
+     * Marks the tune's stream connect and first byte stages, as the stream is opened and read.
+     */
+    private class TuneTransferListener implements TransferListener {
+        @Override
+        public void onTransferStart() {
+            markTuneStage(TuneTimeline.STAGE_STREAM_CONNECT);
+        }
+
+        @Override
+        public void onBytesTransferred(int bytesTransferred) {
+            markTuneStage(TuneTimeline.STAGE_FIRST_BYTE);
+        }
+
+        @Override
+        public void onTransferEnd() {
+            // Do nothing.
+        }
+    }
 }
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2016 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package ie.macinnes.tvheadend.tvinput;
+
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+
+import com.google.android.exoplayer.upstream.TransferListener;
+
+import ie.macinnes.tvheadend.demoplayer.DemoPlayer;
+import ie.macinnes.tvheadend.demoplayer.HtspRendererBuilder;
+import ie.macinnes.tvheadend.demoplayer.HtspSampleSource;
+import ie.macinnes.tvheadend.htsp.HtspConnection;
+import ie.macinnes.tvheadend.model.Channel;
+
+/**
+ * Plays channels with ExoPlayer, as already demuxed packets subscribed to over HTSP rather than
+ * MPEG-TS over HTTP.
+ */
+public class HtspSession extends DemoPlayerSession {
+    private static final String TAG = HtspSession.class.getName();
+
+    private static final String CLIENT_NAME = "android-tvheadend";
+
+    public HtspSession(Context context, Handler serviceHandler) {
+        super(context, serviceHandler);
+    }
+
+    @Override
+    protected boolean isZapAccelerationSupported() {
+        // Prebuffered streams are MPEG-TS over HTTP, which this session doesn't read
+        return false;
+    }
+
+    @Override
+    protected DemoPlayer.RendererBuilder createRendererBuilder(Channel channel, TuneCache.Endpoint endpoint, TransferListener transferListener) {
+        String channelUuid = channel.getInternalProviderData().getUuid();
+        long channelId = HtspConnection.getChannelId(channelUuid);
+
+        Log.d(TAG, "Preparing HTSP subscription to " + endpoint.getHostname() + ":"
+                + endpoint.getHtspPort() + ", channel ID " + channelId + ".");
+
+        HtspSampleSource sampleSource = new HtspSampleSource(
+                endpoint.getHostname(), endpoint.getHtspPort(), endpoint.getUsername(),
+                endpoint.getPassword(), CLIENT_NAME, channelId, transferListener);
+
+        return new HtspRendererBuilder(mContext, sampleSource);
+    }
+}
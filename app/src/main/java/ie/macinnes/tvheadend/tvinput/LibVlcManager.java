@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2016 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package ie.macinnes.tvheadend.tvinput;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.videolan.libvlc.LibVLC;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import ie.macinnes.tvheadend.Constants;
+
+/**
+ * Keeps LibVLC instances warm across sessions, keyed by the options they were built with.
+ *
+ * Building a LibVLC instance loads the native library and scans its modules, which is slow enough
+ * to be noticeable each time the TV app creates a session. Sessions instead acquire the instance
+ * for the current settings, and a new one is only built once the settings change. Instances for
+ * old settings are released once the last session using them is released.
+ */
+public class LibVlcManager {
+    private static final String TAG = LibVlcManager.class.getName();
+
+    private static LibVlcManager sInstance;
+
+    private final Context mContext;
+    private final Map<String, PooledInstance> mInstances = new HashMap<>();
+
+    private String mCurrentKey;
+
+    public static synchronized LibVlcManager getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new LibVlcManager(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private LibVlcManager(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * @return the LibVLC instance for settings, building it should there not be one already. It
+     *         must be handed back to release() once the caller is finished with it.
+     */
+    public synchronized LibVLC acquire(Settings settings) {
+        List<String> options = settings.toOptions();
+        String key = TextUtils.join(" ", options);
+
+        PooledInstance instance = mInstances.get(key);
+
+        if (instance == null) {
+            long startTime = SystemClock.elapsedRealtime();
+
+            LibVLC libVLC = new LibVLC(new ArrayList<>(options));
+
+            String userAgent = getUserAgent(libVLC);
+            libVLC.setUserAgent(userAgent, userAgent);
+
+            Log.d(TAG, "Built LibVLC instance in " + (SystemClock.elapsedRealtime() - startTime)
+                    + "ms, with options: " + key);
+
+            instance = new PooledInstance(libVLC);
+            mInstances.put(key, instance);
+        }
+
+        instance.mRefCount++;
+        mCurrentKey = key;
+
+        releaseStaleInstances();
+
+        return instance.mLibVLC;
+    }
+
+    /**
+     * Builds the LibVLC instance for settings ahead of the first session needing it.
+     */
+    public synchronized void warmUp(Settings settings) {
+        release(acquire(settings));
+    }
+
+    public synchronized void release(LibVLC libVLC) {
+        for (PooledInstance instance : mInstances.values()) {
+            if (instance.mLibVLC == libVLC) {
+                instance.mRefCount--;
+                break;
+            }
+        }
+
+        releaseStaleInstances();
+    }
+
+    /**
+     * Releases the unused instances built for settings which have since changed. The instance for
+     * the current settings is kept, even when unused, ready for the next session.
+     */
+    private void releaseStaleInstances() {
+        Iterator<Map.Entry<String, PooledInstance>> it = mInstances.entrySet().iterator();
+
+        while (it.hasNext()) {
+            Map.Entry<String, PooledInstance> entry = it.next();
+
+            if (entry.getValue().mRefCount <= 0 && !entry.getKey().equals(mCurrentKey)) {
+                Log.d(TAG, "Releasing LibVLC instance with options: " + entry.getKey());
+                entry.getValue().mLibVLC.release();
+                it.remove();
+            }
+        }
+    }
+
+    private String getUserAgent(LibVLC libVLC) {
+        String versionName;
+
+        try {
+            String packageName = mContext.getPackageName();
+            PackageInfo info = mContext.getPackageManager().getPackageInfo(packageName, 0);
+            versionName = info.versionName;
+        } catch (PackageManager.NameNotFoundException e) {
+            versionName = "?";
+        }
+
+        return "android-tvheadend/" + versionName + " (Linux;Android " + Build.VERSION.RELEASE
+                + ") VLC/" + libVLC.version();
+    }
+
+    private static class PooledInstance {
+        private final LibVLC mLibVLC;
+        private int mRefCount = 0;
+
+        public PooledInstance(LibVLC libVLC) {
+            mLibVLC = libVLC;
+        }
+    }
+
+    /**
+     * The LibVLC settings chosen in the VLC setup wizard. Without any, playback is deinterlaced
+     * with the blend method, with automatic hardware acceleration and a 2 second network buffer.
+     */
+    public static class Settings {
+        public static final String DEFAULT_DEINTERLACE_METHOD = Constants.DEINTERLACE_BLEND;
+        public static final int DEFAULT_NETWORK_BUFFER_MS = 2000;
+
+        private final String mDeinterlaceMethod;
+        private final int mScalingMethod;
+        private final int mHwAccelMethod;
+        private final int mNetworkBufferMs;
+
+        /**
+         * @param deinterlaceMethod The deinterlace method, or null to disable deinterlacing
+         * @param scalingMethod The scaling method, or -1 for VLC's default
+         */
+        public Settings(String deinterlaceMethod, int scalingMethod, int hwAccelMethod, int networkBufferMs) {
+            mDeinterlaceMethod = deinterlaceMethod;
+            mScalingMethod = scalingMethod;
+            mHwAccelMethod = hwAccelMethod;
+            mNetworkBufferMs = networkBufferMs;
+        }
+
+        public static Settings fromPreferences(Context context) {
+            SharedPreferences sharedPreferences = context.getSharedPreferences(
+                    Constants.PREFERENCE_TVHEADEND, Context.MODE_PRIVATE);
+
+            String deinterlaceMethod = null;
+
+            if (sharedPreferences.getBoolean(Constants.KEY_DEINTERLACE_ENABLED, true)) {
+                deinterlaceMethod = sharedPreferences.getString(
+                        Constants.KEY_DEINTERLACE_METHOD, DEFAULT_DEINTERLACE_METHOD);
+            }
+
+            int scalingMethod = -1;
+
+            if (sharedPreferences.getBoolean(Constants.KEY_SCALING_ENABLED, false)) {
+                scalingMethod = sharedPreferences.getInt(
+                        Constants.KEY_SCALING_METHOD, Constants.SCALING_BILINEAR);
+            }
+
+            int hwAccelMethod = sharedPreferences.getInt(
+                    Constants.KEY_HW_ACCEL_METHOD, Constants.HW_ACCEL_AUTOMATIC);
+
+            int networkBufferMs = sharedPreferences.getInt(
+                    Constants.KEY_NETWORK_BUFFER, DEFAULT_NETWORK_BUFFER_MS);
+
+            if (networkBufferMs <= 0) {
+                networkBufferMs = DEFAULT_NETWORK_BUFFER_MS;
+            }
+
+            return new Settings(deinterlaceMethod, scalingMethod, hwAccelMethod, networkBufferMs);
+        }
+
+        public List<String> toOptions() {
+            List<String> options = new ArrayList<>();
+            options.add("--http-reconnect");
+            options.add("--network-caching=" + mNetworkBufferMs);
+
+            if (mDeinterlaceMethod != null) {
+                options.add("--deinterlace=-1");
+                options.add("--deinterlace-mode=" + mDeinterlaceMethod);
+                options.add("--video-filter=deinterlace");
+            } else {
+                options.add("--deinterlace=0");
+            }
+
+            if (mScalingMethod >= 0) {
+                options.add("--swscale-mode=" + mScalingMethod);
+            }
+
+            return options;
+        }
+
+        /**
+         * Hardware acceleration is set on each Media rather than the LibVLC instance.
+         */
+        public boolean isHwDecoderEnabled() {
+            return mHwAccelMethod != Constants.HW_ACCEL_DISABLED;
+        }
+
+        public boolean isHwDecoderForced() {
+            return mHwAccelMethod == Constants.HW_ACCEL_ENABLED;
+        }
+
+        @Override
+        public String toString() {
+            return "network-caching=" + mNetworkBufferMs
+                    + ", deinterlace=" + (mDeinterlaceMethod != null ? mDeinterlaceMethod : "off")
+                    + ", scaling=" + (mScalingMethod >= 0 ? mScalingMethod : "default")
+                    + ", hw-accel=" + mHwAccelMethod;
+        }
+    }
+}
@@ -15,8 +15,6 @@
  */
 package ie.macinnes.tvheadend.tvinput;
 
-import android.accounts.Account;
-import android.accounts.AccountManager;
 import android.content.Context;
 import android.media.MediaPlayer;
 import android.media.tv.TvInputManager;
@@ -28,9 +26,6 @@ import android.widget.Toast;
 
 import java.util.Map;
 
-import ie.macinnes.tvheadend.Constants;
-import ie.macinnes.tvheadend.account.AccountUtils;
-import ie.macinnes.tvheadend.client.ClientUtils;
 import ie.macinnes.tvheadend.model.Channel;
 
 public class MediaPlayerSession extends BaseSession {
@@ -79,25 +74,17 @@ public class MediaPlayerSession extends BaseSession {
         // Gather Details on the Channel
         String channelUuid = channel.getInternalProviderData().getUuid();
 
-        // Gather Details on the TVHeadend Instance
-        AccountManager accountManager = AccountManager.get(mContext);;
-        Account account = AccountUtils.getActiveAccount(mContext);
+        // Gather Details on the TVHeadend Instance, without waiting on AccountManager
+        TuneCache.Endpoint endpoint = TuneCache.getInstance(mContext).getEndpoint();
 
-        String username = account.name;
-        String password = accountManager.getPassword(account);
-        String hostname = accountManager.getUserData(account, Constants.KEY_HOSTNAME);
-        String httpPort = accountManager.getUserData(account, Constants.KEY_HTTP_PORT);
-        String httpPath = accountManager.getUserData(account, Constants.KEY_HTTP_PATH);
+        if (endpoint == null) {
+            Log.w(TAG, "No account to play channel from: " + channel.toString());
+            return false;
+        }
 
         // Create authentication headers and streamUri
-        Map<String, String> headers = ClientUtils.createBasicAuthHeader(username, password);
-        Uri videoUri;
-
-        if (httpPath == null) {
-            videoUri = Uri.parse("http://" + hostname + ":" + httpPort + "/stream/channel/" + channelUuid + "?profile=tif");
-        } else {
-            videoUri = Uri.parse("http://" + hostname + ":" + httpPort + "/" + httpPath + "/stream/channel/" + channelUuid + "?profile=tif");
-        }
+        Map<String, String> headers = endpoint.getHeaders();
+        Uri videoUri = endpoint.getStreamUri(channelUuid, false);
 
         // Prepare the media player
         mMediaPlayer = prepareMediaPlayer(videoUri, headers);
@@ -165,6 +152,7 @@ public class MediaPlayerSession extends BaseSession {
                         break;
                     case MediaPlayer.MEDIA_INFO_VIDEO_RENDERING_START:
                         Log.d(TAG, "Rendering Start");
+                        markTuneStage(TuneTimeline.STAGE_FIRST_FRAME);
                         notifyVideoAvailable();
                         handled = true;
                         break;
@@ -182,7 +170,11 @@ public class MediaPlayerSession extends BaseSession {
             Log.d(TAG, "Preparing video: " + videoUri + ".");
 
             mediaPlayer.setDataSource(mContext, videoUri, headers);
+            markTuneStage(TuneTimeline.STAGE_STREAM_CONNECT);
+
+            // Blocks until enough of the stream has been read to know its format
             mediaPlayer.prepare();
+            markTuneStage(TuneTimeline.STAGE_FIRST_BYTE);
 
         } catch (Throwable e) {
             Log.e(TAG, "Error preparing video: " + e);
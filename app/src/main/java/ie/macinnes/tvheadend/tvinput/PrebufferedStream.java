@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2016 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package ie.macinnes.tvheadend.tvinput;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A live channel stream, read in the background into a TsKeyframeBuffer until a player takes it
+ * over. The player is then handed the buffered keyframe, followed by the rest of the stream from
+ * the same connection.
+ */
+public class PrebufferedStream {
+    private static final String TAG = PrebufferedStream.class.getName();
+
+    private static final int READ_BUFFER_SIZE = 64 * TsKeyframeBuffer.PACKET_SIZE;
+
+    // Enough for a few seconds of HD video from a keyframe
+    private static final int MAX_KEYFRAME_BUFFER_BYTES = 4 * 1024 * 1024;
+
+    // Chunks read ahead of the player once taken, the connection blocks beyond this
+    private static final int QUEUE_CAPACITY = 256;
+
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int POLL_TIMEOUT_MS = 500;
+
+    private static final byte[] END_OF_STREAM = new byte[0];
+
+    private final String mUrl;
+    private final Map<String, String> mHeaders;
+    private final Thread mThread;
+
+    private final TsKeyframeBuffer mKeyframeBuffer = new TsKeyframeBuffer(MAX_KEYFRAME_BUFFER_BYTES);
+    private BlockingQueue<byte[]> mQueue;
+    private HttpURLConnection mConnection;
+
+    private volatile boolean mClosed = false;
+    private volatile boolean mEnded = false;
+
+    public PrebufferedStream(String url, Map<String, String> headers) {
+        mUrl = url;
+        mHeaders = headers;
+
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readStream();
+            }
+        }, "PrebufferedStream");
+    }
+
+    public void start() {
+        mThread.start();
+    }
+
+    /**
+     * Hands the stream over to a player. Only the first call succeeds, and only once a keyframe
+     * has been buffered.
+     *
+     * @return the buffered keyframe followed by the rest of the stream, or null
+     */
+    public synchronized InputStream takeInputStream() {
+        if (mQueue != null || mClosed || mEnded || !mKeyframeBuffer.hasKeyframe()) {
+            return null;
+        }
+
+        mQueue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+
+        return new QueueInputStream(mKeyframeBuffer.toByteArray(), mQueue);
+    }
+
+    /**
+     * @return true once the stream has been closed, or its connection has ended
+     */
+    public boolean isEnded() {
+        return mClosed || mEnded;
+    }
+
+    public void close() {
+        HttpURLConnection connection;
+
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+
+            mClosed = true;
+            connection = mConnection;
+        }
+
+        mThread.interrupt();
+
+        if (connection != null) {
+            // Unblocks any read in progress
+            connection.disconnect();
+        }
+    }
+
+    private void readStream() {
+        InputStream inputStream = null;
+
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(mUrl).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+
+            for (Map.Entry<String, String> header : mHeaders.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+                mConnection = connection;
+            }
+
+            inputStream = connection.getInputStream();
+
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            int count;
+
+            while (!mClosed && (count = inputStream.read(buffer)) != -1) {
+                deliver(buffer, count);
+            }
+        } catch (IOException e) {
+            if (!mClosed) {
+                Log.w(TAG, "Prebuffered stream failed: " + e.getLocalizedMessage());
+            }
+        } catch (InterruptedException e) {
+            // Closed
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+
+            BlockingQueue<byte[]> queue;
+
+            synchronized (this) {
+                mEnded = true;
+                queue = mQueue;
+            }
+
+            if (queue != null) {
+                queue.offer(END_OF_STREAM);
+            }
+        }
+    }
+
+    private void deliver(byte[] buffer, int count) throws InterruptedException {
+        BlockingQueue<byte[]> queue;
+
+        synchronized (this) {
+            if (mQueue == null) {
+                mKeyframeBuffer.write(buffer, 0, count);
+                return;
+            }
+            queue = mQueue;
+        }
+
+        queue.put(Arrays.copyOf(buffer, count));
+    }
+
+    private class QueueInputStream extends InputStream {
+        private final BlockingQueue<byte[]> mQueue;
+
+        private byte[] mChunk;
+        private int mChunkOffset = 0;
+
+        public QueueInputStream(byte[] initialChunk, BlockingQueue<byte[]> queue) {
+            mChunk = initialChunk;
+            mQueue = queue;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int count = read(single, 0, 1);
+            return count == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            while (mChunk != END_OF_STREAM && mChunkOffset >= mChunk.length) {
+                if (mClosed || (mEnded && mQueue.isEmpty())) {
+                    return -1;
+                }
+
+                try {
+                    byte[] chunk = mQueue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+                    if (chunk != null) {
+                        mChunk = chunk;
+                        mChunkOffset = 0;
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+
+            if (mChunk == END_OF_STREAM) {
+                return -1;
+            }
+
+            int count = Math.min(length, mChunk.length - mChunkOffset);
+            System.arraycopy(mChunk, mChunkOffset, buffer, offset, count);
+            mChunkOffset += count;
+
+            return count;
+        }
+
+        @Override
+        public void close() {
+            PrebufferedStream.this.close();
+        }
+    }
+}
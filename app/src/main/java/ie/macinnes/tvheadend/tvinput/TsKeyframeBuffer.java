@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2016 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package ie.macinnes.tvheadend.tvinput;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Holds the tail of an MPEG-TS stream, from its most recent video keyframe onwards, along with
+ * the latest PAT and PMT. A player handed the buffer can start decoding straight away, rather
+ * than waiting on the next keyframe.
+ *
+ * Keyframes are found from the random access indicator on the packets of the PMT's first video
+ * stream. PSI sections are expected to fit in a single packet, which holds for the single service
+ * streams tvheadend serves per channel.
+ */
+public class TsKeyframeBuffer {
+    public static final int PACKET_SIZE = 188;
+
+    private static final int SYNC_BYTE = 0x47;
+    private static final int PAT_PID = 0;
+    private static final int NO_PID = -1;
+
+    private final int mMaxBytes;
+
+    private final byte[] mPartialPacket = new byte[PACKET_SIZE];
+    private int mPartialLength = 0;
+
+    private byte[] mPat;
+    private byte[] mPmt;
+    private int mPmtPid = NO_PID;
+    private int mVideoPid = NO_PID;
+
+    private final ByteArrayOutputStream mKeyframeData = new ByteArrayOutputStream();
+    private boolean mHasKeyframe = false;
+
+    /**
+     * @param maxBytes The most data held from a keyframe. Should the next keyframe not arrive in
+     *                 time, the buffer is emptied until it does.
+     */
+    public TsKeyframeBuffer(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    public void write(byte[] data, int offset, int length) {
+        int end = offset + length;
+
+        // Complete any packet left over from the last write
+        if (mPartialLength > 0) {
+            int count = Math.min(PACKET_SIZE - mPartialLength, length);
+            System.arraycopy(data, offset, mPartialPacket, mPartialLength, count);
+            mPartialLength += count;
+            offset += count;
+
+            if (mPartialLength < PACKET_SIZE) {
+                return;
+            }
+
+            processPacket(mPartialPacket, 0);
+            mPartialLength = 0;
+        }
+
+        while (offset < end) {
+            if ((data[offset] & 0xff) != SYNC_BYTE) {
+                // Lost sync, skip ahead to the next packet
+                offset++;
+                continue;
+            }
+
+            if (end - offset < PACKET_SIZE) {
+                mPartialLength = end - offset;
+                System.arraycopy(data, offset, mPartialPacket, 0, mPartialLength);
+                return;
+            }
+
+            processPacket(data, offset);
+            offset += PACKET_SIZE;
+        }
+    }
+
+    /**
+     * @return true once there's a keyframe, and the tables needed to decode it, in the buffer
+     */
+    public boolean hasKeyframe() {
+        return mHasKeyframe && mPat != null && mPmt != null;
+    }
+
+    /**
+     * @return the PAT and PMT, followed by everything from the most recent keyframe. The data
+     *         ends wherever the last write did, mid-packet if need be, so it carries on straight
+     *         into the rest of the stream.
+     */
+    public byte[] toByteArray() {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(
+                3 * PACKET_SIZE + mKeyframeData.size());
+
+        if (mPat != null && mPmt != null) {
+            outputStream.write(mPat, 0, PACKET_SIZE);
+            outputStream.write(mPmt, 0, PACKET_SIZE);
+        }
+
+        outputStream.write(mKeyframeData.toByteArray(), 0, mKeyframeData.size());
+
+        // The rest of this packet is the next thing read from the stream
+        outputStream.write(mPartialPacket, 0, mPartialLength);
+
+        return outputStream.toByteArray();
+    }
+
+    private void processPacket(byte[] packet, int offset) {
+        int pid = ((packet[offset + 1] & 0x1f) << 8) | (packet[offset + 2] & 0xff);
+        boolean payloadUnitStart = (packet[offset + 1] & 0x40) != 0;
+        int adaptationFieldControl = (packet[offset + 3] >> 4) & 0x03;
+
+        int payloadOffset = offset + 4;
+        boolean randomAccess = false;
+
+        if ((adaptationFieldControl & 0x02) != 0) {
+            int adaptationFieldLength = packet[offset + 4] & 0xff;
+            randomAccess = adaptationFieldLength > 0 && (packet[offset + 5] & 0x40) != 0;
+            payloadOffset += 1 + adaptationFieldLength;
+        }
+
+        boolean hasPayload = (adaptationFieldControl & 0x01) != 0
+                && payloadOffset < offset + PACKET_SIZE;
+
+        if (pid == PAT_PID && payloadUnitStart && hasPayload) {
+            if (parsePat(packet, payloadOffset, offset + PACKET_SIZE)) {
+                mPat = copyPacket(packet, offset);
+            }
+        } else if (pid == mPmtPid && payloadUnitStart && hasPayload) {
+            if (parsePmt(packet, payloadOffset, offset + PACKET_SIZE)) {
+                mPmt = copyPacket(packet, offset);
+            }
+        }
+
+        if (pid == mVideoPid && randomAccess) {
+            mKeyframeData.reset();
+            mHasKeyframe = true;
+        }
+
+        if (mHasKeyframe) {
+            mKeyframeData.write(packet, offset, PACKET_SIZE);
+
+            if (mKeyframeData.size() > mMaxBytes) {
+                mKeyframeData.reset();
+                mHasKeyframe = false;
+            }
+        }
+    }
+
+    private boolean parsePat(byte[] packet, int payloadOffset, int end) {
+        int section = payloadOffset + 1 + (packet[payloadOffset] & 0xff);
+
+        if (section + 8 > end || packet[section] != 0x00) {
+            return false;
+        }
+
+        int sectionEnd = Math.min(getSectionEnd(packet, section), end);
+
+        // Program loop, stopping short of the CRC
+        for (int i = section + 8; i + 4 <= sectionEnd - 4; i += 4) {
+            int programNumber = ((packet[i] & 0xff) << 8) | (packet[i + 1] & 0xff);
+
+            if (programNumber != 0) {
+                int pmtPid = ((packet[i + 2] & 0x1f) << 8) | (packet[i + 3] & 0xff);
+
+                if (pmtPid != mPmtPid) {
+                    mPmtPid = pmtPid;
+                    mPmt = null;
+                    mVideoPid = NO_PID;
+                }
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean parsePmt(byte[] packet, int payloadOffset, int end) {
+        int section = payloadOffset + 1 + (packet[payloadOffset] & 0xff);
+
+        if (section + 12 > end || packet[section] != 0x02) {
+            return false;
+        }
+
+        int sectionEnd = Math.min(getSectionEnd(packet, section), end);
+        int programInfoLength = ((packet[section + 10] & 0x0f) << 8) | (packet[section + 11] & 0xff);
+
+        // Elementary stream loop, stopping short of the CRC
+        for (int i = section + 12 + programInfoLength; i + 5 <= sectionEnd - 4; ) {
+            int streamType = packet[i] & 0xff;
+            int elementaryPid = ((packet[i + 1] & 0x1f) << 8) | (packet[i + 2] & 0xff);
+            int esInfoLength = ((packet[i + 3] & 0x0f) << 8) | (packet[i + 4] & 0xff);
+
+            if (isVideoStreamType(streamType)) {
+                if (elementaryPid != mVideoPid) {
+                    mVideoPid = elementaryPid;
+                    mKeyframeData.reset();
+                    mHasKeyframe = false;
+                }
+
+                return true;
+            }
+
+            i += 5 + esInfoLength;
+        }
+
+        return false;
+    }
+
+    private static int getSectionEnd(byte[] packet, int section) {
+        int sectionLength = ((packet[section + 1] & 0x0f) << 8) | (packet[section + 2] & 0xff);
+        return section + 3 + sectionLength;
+    }
+
+    private static boolean isVideoStreamType(int streamType) {
+        switch (streamType) {
+            case 0x01: // MPEG-1
+            case 0x02: // MPEG-2
+            case 0x10: // MPEG-4 Part 2
+            case 0x1b: // H.264
+            case 0x24: // H.265
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static byte[] copyPacket(byte[] packet, int offset) {
+        byte[] copy = new byte[PACKET_SIZE];
+        System.arraycopy(packet, offset, copy, 0, PACKET_SIZE);
+        return copy;
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) 2016 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package ie.macinnes.tvheadend.tvinput;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.accounts.OnAccountsUpdateListener;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.media.tv.TvContract;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import ie.macinnes.tvheadend.Constants;
+import ie.macinnes.tvheadend.TvContractUtils;
+import ie.macinnes.tvheadend.account.AccountUtils;
+import ie.macinnes.tvheadend.client.ClientUtils;
+import ie.macinnes.tvheadend.htsp.HtspConnection;
+import ie.macinnes.tvheadend.model.Channel;
+import ie.macinnes.tvheadend.model.ChannelList;
+
+/**
+ * Holds what a tune needs in memory, i.e. the channels and the active account's stream endpoint,
+ * so tuning doesn't wait on TvProvider or AccountManager.
+ *
+ * Channels are reloaded in the background once TvProvider reports them changed, e.g. by a sync,
+ * and the endpoint once AccountManager reports the accounts changed. The previous channels are
+ * served until the reload completes, and swapped for the new ones in one go. Channels not yet
+ * cached fall back to querying directly.
+ */
+public class TuneCache {
+    private static final String TAG = TuneCache.class.getName();
+
+    // Syncs change channels in batches, wait for them to settle before reloading
+    private static final long RELOAD_DELAY_MS = 1000;
+
+    // Only what tuning and zapping use, rather than every column of every channel
+    private static final String[] CHANNEL_PROJECTION = {
+            TvContract.Channels._ID,
+            TvContract.Channels.COLUMN_DISPLAY_NAME,
+            TvContract.Channels.COLUMN_DISPLAY_NUMBER,
+            TvContract.Channels.COLUMN_INTERNAL_PROVIDER_DATA
+    };
+
+    private static TuneCache sInstance;
+
+    private final Context mContext;
+    private final HandlerThread mHandlerThread;
+    private final Handler mHandler;
+    private final ContentObserver mChannelsObserver;
+    private final OnAccountsUpdateListener mAccountsUpdateListener;
+
+    private Map<Long, Channel> mChannels;
+    private ChannelList mSortedChannels;
+    private Endpoint mEndpoint;
+
+    private final Runnable mReloadChannelsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            loadChannels();
+        }
+    };
+
+    private final Runnable mReloadEndpointRunnable = new Runnable() {
+        @Override
+        public void run() {
+            loadEndpoint();
+        }
+    };
+
+    public static synchronized TuneCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new TuneCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Stops watching for changes and quits the cache's thread, the next getInstance() starts
+     * afresh.
+     */
+    public static synchronized void releaseInstance() {
+        if (sInstance != null) {
+            sInstance.release();
+            sInstance = null;
+        }
+    }
+
+    private TuneCache(Context context) {
+        mContext = context;
+
+        mHandlerThread = new HandlerThread(getClass().getSimpleName());
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+
+        mChannelsObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                invalidateChannels();
+            }
+        };
+
+        mContext.getContentResolver().registerContentObserver(
+                TvContract.Channels.CONTENT_URI, true, mChannelsObserver);
+
+        mAccountsUpdateListener = new OnAccountsUpdateListener() {
+            @Override
+            public void onAccountsUpdated(Account[] accounts) {
+                invalidateEndpoint();
+            }
+        };
+
+        AccountManager.get(mContext).addOnAccountsUpdatedListener(mAccountsUpdateListener, mHandler, false);
+    }
+
+    private void release() {
+        mContext.getContentResolver().unregisterContentObserver(mChannelsObserver);
+        AccountManager.get(mContext).removeOnAccountsUpdatedListener(mAccountsUpdateListener);
+
+        mHandler.removeCallbacksAndMessages(null);
+        mHandlerThread.quit();
+    }
+
+    /**
+     * Loads the channels and endpoint in the background, ahead of the first tune.
+     */
+    public void preload() {
+        mHandler.post(mReloadChannelsRunnable);
+        mHandler.post(mReloadEndpointRunnable);
+    }
+
+    /**
+     * @return the channel, or null should it not exist
+     */
+    public Channel getChannel(Uri channelUri) {
+        long channelId = ContentUris.parseId(channelUri);
+
+        synchronized (this) {
+            if (mChannels != null && mChannels.containsKey(channelId)) {
+                return mChannels.get(channelId);
+            }
+        }
+
+        Log.d(TAG, "Channel " + channelId + " not cached, querying TvProvider");
+
+        try {
+            return TvContractUtils.getChannelFromChannelUri(mContext, channelUri);
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return every channel, sorted by display number. Empty until the channels have first been
+     *         loaded, the list mustn't be modified.
+     */
+    public ChannelList getSortedChannels() {
+        synchronized (this) {
+            if (mSortedChannels != null) {
+                return mSortedChannels;
+            }
+        }
+
+        // Not worth holding up the caller for, load them in the background for next time
+        mHandler.post(mReloadChannelsRunnable);
+
+        return new ChannelList();
+    }
+
+    /**
+     * @return the active account's endpoint, or null should there be no account
+     */
+    public Endpoint getEndpoint() {
+        synchronized (this) {
+            if (mEndpoint != null) {
+                return mEndpoint;
+            }
+        }
+
+        return loadEndpoint();
+    }
+
+    /**
+     * Reloads the channels in the background, the current ones are served until it's done.
+     */
+    public void invalidateChannels() {
+        mHandler.removeCallbacks(mReloadChannelsRunnable);
+        mHandler.postDelayed(mReloadChannelsRunnable, RELOAD_DELAY_MS);
+    }
+
+    public void invalidateEndpoint() {
+        synchronized (this) {
+            mEndpoint = null;
+        }
+
+        mHandler.removeCallbacks(mReloadEndpointRunnable);
+        mHandler.post(mReloadEndpointRunnable);
+    }
+
+    private void loadChannels() {
+        ChannelList channels = TvContractUtils.getChannels(mContext, CHANNEL_PROJECTION);
+        Collections.sort(channels);
+
+        Map<Long, Channel> channelMap = new HashMap<>();
+
+        for (Channel channel : channels) {
+            channelMap.put(channel.getId(), channel);
+        }
+
+        synchronized (this) {
+            mChannels = channelMap;
+            mSortedChannels = channels;
+        }
+
+        Log.d(TAG, "Cached " + channels.size() + " channels");
+    }
+
+    private Endpoint loadEndpoint() {
+        Endpoint endpoint = Endpoint.fromAccount(mContext, AccountUtils.getActiveAccount(mContext));
+
+        synchronized (this) {
+            mEndpoint = endpoint;
+        }
+
+        return endpoint;
+    }
+
+    /**
+     * Where, and as whom, channels are streamed from.
+     */
+    public static class Endpoint {
+        private final String mUsername;
+        private final String mPassword;
+        private final String mHostname;
+        private final String mHttpPort;
+        private final String mHttpPath;
+        private final int mHtspPort;
+
+        public Endpoint(String username, String password, String hostname, String httpPort, String httpPath, int htspPort) {
+            mUsername = username;
+            mPassword = password;
+            mHostname = hostname;
+            mHttpPort = httpPort;
+            mHttpPath = httpPath;
+            mHtspPort = htspPort;
+        }
+
+        public static Endpoint fromAccount(Context context, Account account) {
+            if (account == null) {
+                return null;
+            }
+
+            AccountManager accountManager = AccountManager.get(context);
+
+            // Accounts added before the HTSP port was asked for, or left empty, don't have one
+            String htspPort = accountManager.getUserData(account, Constants.KEY_HTSP_PORT);
+
+            return new Endpoint(
+                    account.name,
+                    accountManager.getPassword(account),
+                    accountManager.getUserData(account, Constants.KEY_HOSTNAME),
+                    accountManager.getUserData(account, Constants.KEY_HTTP_PORT),
+                    accountManager.getUserData(account, Constants.KEY_HTTP_PATH),
+                    parseHtspPort(htspPort));
+        }
+
+        private static int parseHtspPort(String htspPort) {
+            if (TextUtils.isEmpty(htspPort)) {
+                return HtspConnection.DEFAULT_PORT;
+            }
+
+            try {
+                return Integer.parseInt(htspPort);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Invalid HTSP port " + htspPort + ", using the default");
+                return HtspConnection.DEFAULT_PORT;
+            }
+        }
+
+        public String getUsername() {
+            return mUsername;
+        }
+
+        public String getPassword() {
+            return mPassword;
+        }
+
+        public String getHostname() {
+            return mHostname;
+        }
+
+        public int getHtspPort() {
+            return mHtspPort;
+        }
+
+        /**
+         * @return the basic auth headers, a new map on each call as players may modify it
+         */
+        public Map<String, String> getHeaders() {
+            return ClientUtils.createBasicAuthHeader(mUsername, mPassword);
+        }
+
+        /**
+         * @param includeCredentials Whether the credentials are included in the URI, for players
+         *                           which can't be given headers
+         */
+        public Uri getStreamUri(String channelUuid, boolean includeCredentials) {
+            String authority = mHostname + ":" + mHttpPort;
+
+            if (includeCredentials) {
+                authority = mUsername + ":" + mPassword + "@" + authority;
+            }
+
+            if (mHttpPath == null) {
+                return Uri.parse("http://" + authority + "/stream/channel/" + channelUuid + "?profile=tif");
+            } else {
+                return Uri.parse("http://" + authority + "/" + mHttpPath + "/stream/channel/" + channelUuid + "?profile=tif");
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2016 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package ie.macinnes.tvheadend.tvinput;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Aggregates the timelines of recent tunes, per player, into percentiles for each stage.
+ */
+public class TuneStats {
+    private static final String TAG = TuneStats.class.getName();
+    private static final String NEWLINE = System.getProperty("line.separator");
+
+    // Tunes kept per player, older tunes are dropped
+    private static final int MAX_SAMPLES = 200;
+
+    private static final int[] PERCENTILES = {50, 90, 99};
+
+    private static TuneStats sInstance;
+
+    private final Map<String, PlayerStats> mPlayerStats = new LinkedHashMap<>();
+
+    public static synchronized TuneStats getInstance() {
+        if (sInstance == null) {
+            sInstance = new TuneStats();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Records a tune. Tunes which never made video available are counted as abandoned, e.g.
+     * when the user zaps past a channel before it started playing.
+     */
+    public synchronized void record(TuneTimeline timeline) {
+        Log.d(TAG, "Tune timeline: " + timeline.toString());
+
+        PlayerStats playerStats = mPlayerStats.get(timeline.getPlayerName());
+
+        if (playerStats == null) {
+            playerStats = new PlayerStats();
+            mPlayerStats.put(timeline.getPlayerName(), playerStats);
+        }
+
+        playerStats.record(timeline);
+    }
+
+    public synchronized void reset() {
+        mPlayerStats.clear();
+    }
+
+    /**
+     * @return a human readable summary of the recorded tunes
+     */
+    public synchronized String dump() {
+        if (mPlayerStats.isEmpty()) {
+            return "No tunes recorded";
+        }
+
+        StringBuilder builder = new StringBuilder();
+
+        for (Map.Entry<String, PlayerStats> entry : mPlayerStats.entrySet()) {
+            entry.getValue().dump(entry.getKey(), builder);
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * @return the nearest-rank percentile of the sorted values
+     */
+    static long percentile(long[] sortedValues, int percentile) {
+        int rank = (int) Math.ceil(percentile / 100.0 * sortedValues.length);
+        return sortedValues[Math.max(rank, 1) - 1];
+    }
+
+    private static class PlayerStats {
+        private int mTuneCount = 0;
+        private int mAbandonedCount = 0;
+
+        // Ring buffers of the stage times of the most recent tunes
+        private final long[][] mSamples = new long[TuneTimeline.STAGE_COUNT][MAX_SAMPLES];
+        private final int[] mSampleCounts = new int[TuneTimeline.STAGE_COUNT];
+        private final int[] mNextSample = new int[TuneTimeline.STAGE_COUNT];
+
+        public void record(TuneTimeline timeline) {
+            mTuneCount++;
+
+            if (!timeline.isReached(TuneTimeline.STAGE_VIDEO_AVAILABLE)) {
+                mAbandonedCount++;
+                return;
+            }
+
+            for (int stage = 0; stage < TuneTimeline.STAGE_COUNT; stage++) {
+                long stageTime = timeline.getStageTime(stage);
+
+                if (stageTime < 0) {
+                    continue;
+                }
+
+                mSamples[stage][mNextSample[stage]] = stageTime;
+                mNextSample[stage] = (mNextSample[stage] + 1) % MAX_SAMPLES;
+                mSampleCounts[stage] = Math.min(mSampleCounts[stage] + 1, MAX_SAMPLES);
+            }
+        }
+
+        public void dump(String playerName, StringBuilder builder) {
+            builder.append(playerName).append(": ")
+                    .append(mTuneCount).append(" tunes, ")
+                    .append(mAbandonedCount).append(" abandoned").append(NEWLINE);
+
+            for (int stage = 0; stage < TuneTimeline.STAGE_COUNT; stage++) {
+                builder.append("  ").append(TuneTimeline.getStageName(stage)).append(": ");
+
+                if (mSampleCounts[stage] == 0) {
+                    builder.append("n/a").append(NEWLINE);
+                    continue;
+                }
+
+                long[] sorted = Arrays.copyOf(mSamples[stage], mSampleCounts[stage]);
+                Arrays.sort(sorted);
+
+                for (int percentile : PERCENTILES) {
+                    builder.append("p").append(percentile).append("=")
+                            .append(percentile(sorted, percentile)).append("ms ");
+                }
+
+                builder.append("(n=").append(sorted.length).append(")").append(NEWLINE);
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2016 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package ie.macinnes.tvheadend.tvinput;
+
+import android.os.SystemClock;
+
+/**
+ * The time taken by each stage of a single tune, from onTune until video is available.
+ *
+ * Each stage is marked the first time it's reached, later marks are ignored. Players which can't
+ * report a stage simply never mark it. Marks can come from any thread.
+ */
+public class TuneTimeline {
+    // The channel's details have been read from TvProvider
+    public static final int STAGE_CHANNEL_LOOKUP = 0;
+
+    // The player has connected to, or started opening, the stream
+    public static final int STAGE_STREAM_CONNECT = 1;
+
+    // The first of the stream's data has been received
+    public static final int STAGE_FIRST_BYTE = 2;
+
+    // The first video frame has been decoded and rendered
+    public static final int STAGE_FIRST_FRAME = 3;
+
+    // The session has notified the TV app that video is available
+    public static final int STAGE_VIDEO_AVAILABLE = 4;
+
+    public static final int STAGE_COUNT = 5;
+
+    private static final String[] STAGE_NAMES = {
+            "channel lookup",
+            "stream connect",
+            "first byte",
+            "first frame",
+            "video available",
+    };
+
+    private static final long NOT_REACHED = -1;
+
+    private final String mPlayerName;
+    private final long mStartTime;
+    private final long[] mStageTimes = new long[STAGE_COUNT];
+
+    public TuneTimeline(String playerName) {
+        mPlayerName = playerName;
+        mStartTime = SystemClock.elapsedRealtime();
+
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mStageTimes[i] = NOT_REACHED;
+        }
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    public String getPlayerName() {
+        return mPlayerName;
+    }
+
+    /**
+     * Marks the stage as reached now, should it not have been reached already.
+     *
+     * @return true if this was the first time the stage was reached
+     */
+    public synchronized boolean mark(int stage) {
+        if (mStageTimes[stage] != NOT_REACHED) {
+            return false;
+        }
+
+        mStageTimes[stage] = SystemClock.elapsedRealtime() - mStartTime;
+        return true;
+    }
+
+    public synchronized boolean isReached(int stage) {
+        return mStageTimes[stage] != NOT_REACHED;
+    }
+
+    /**
+     * @return the milliseconds from onTune until the stage was reached, or -1 if it wasn't
+     */
+    public synchronized long getStageTime(int stage) {
+        return mStageTimes[stage];
+    }
+
+    /**
+     * @return true once every stage a player is expected to report has been reached
+     */
+    public synchronized boolean isComplete() {
+        return isReached(STAGE_VIDEO_AVAILABLE) && isReached(STAGE_FIRST_FRAME);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder(mPlayerName);
+
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            builder.append(i == 0 ? ": " : ", ");
+            builder.append(STAGE_NAMES[i]).append("=");
+
+            if (mStageTimes[i] == NOT_REACHED) {
+                builder.append("-");
+            } else {
+                builder.append(mStageTimes[i]).append("ms");
+            }
+        }
+
+        return builder.toString();
+    }
+}
@@ -43,11 +43,25 @@ public class TvInputService extends android.media.tv.TvInputService {
         // TODO: Find a better (+ out of UI thread) way to do this.
         MigrateUtils.doMigrate(getBaseContext());
 
+        // Get the channels and account loaded before the first tune
+        TuneCache.getInstance(this).preload();
+
         // Store the chosen session type
         SharedPreferences sharedPreferences = getSharedPreferences(
                 Constants.PREFERENCE_TVHEADEND, Context.MODE_PRIVATE);
 
         mSessionType = sharedPreferences.getString(Constants.KEY_SESSION, Constants.SESSION_MEDIA_PLAYER);
+
+        if (Constants.SESSION_VLC.equals(mSessionType)) {
+            // Get LibVLC loaded before the TV app creates the first session
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    LibVlcManager.getInstance(getApplicationContext()).warmUp(
+                            LibVlcManager.Settings.fromPreferences(getApplicationContext()));
+                }
+            });
+        }
     }
 
     @Override
@@ -57,6 +71,8 @@ public class TvInputService extends android.media.tv.TvInputService {
         mHandlerThread.quit();
         mHandlerThread = null;
         mHandler = null;
+
+        TuneCache.releaseInstance();
     }
 
     @Override
@@ -67,6 +83,8 @@ public class TvInputService extends android.media.tv.TvInputService {
             return new VlcSession(this, mHandler);
         } else if (mSessionType != null && mSessionType.equals(Constants.SESSION_EXO_PLAYER)) {
             return new DemoPlayerSession(this, mHandler);
+        } else if (mSessionType != null && mSessionType.equals(Constants.SESSION_HTSP)) {
+            return new HtspSession(this, mHandler);
         } else {
             return new MediaPlayerSession(this, mHandler);
         }
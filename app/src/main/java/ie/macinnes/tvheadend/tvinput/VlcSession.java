@@ -15,14 +15,9 @@
  */
 package ie.macinnes.tvheadend.tvinput;
 
-import android.accounts.Account;
-import android.accounts.AccountManager;
 import android.content.Context;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
 import android.media.tv.TvTrackInfo;
 import android.net.Uri;
-import android.os.Build;
 import android.os.Handler;
 import android.util.Log;
 import android.view.Surface;
@@ -36,14 +31,12 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
-import ie.macinnes.tvheadend.Constants;
-import ie.macinnes.tvheadend.account.AccountUtils;
-import ie.macinnes.tvheadend.client.ClientUtils;
 import ie.macinnes.tvheadend.model.Channel;
 
 public class VlcSession extends BaseSession {
     private static final String TAG = VlcSession.class.getName();
 
+    private final LibVlcManager.Settings mSettings;
     private LibVLC mLibVLC;
     private MediaPlayer mMediaPlayer;
 
@@ -56,32 +49,24 @@ public class VlcSession extends BaseSession {
         super(context, serviceHandler);
         Log.d(TAG, "Session created (" + mSessionNumber + ")");
 
-        ArrayList<String> options = new ArrayList<>();
-        options.add("--http-reconnect");
-        options.add("--network-caching=2000");
-        options.add("--deinterlace=-1");
-        options.add("--deinterlace-mode=blend"); // discard,blend,mean,bob,linear,x,yadif,yadif2x,phosphor,ivtc
-        options.add("--video-filter=deinterlace");
-
-        mLibVLC = new LibVLC(options);
-
-        String userAgent = getUserAgent(mContext);
-        mLibVLC.setUserAgent(userAgent, userAgent);
+        // Sessions share a warm LibVLC instance, until the settings change
+        mSettings = LibVlcManager.Settings.fromPreferences(mContext);
+        mLibVLC = LibVlcManager.getInstance(mContext).acquire(mSettings);
     }
 
-    public String getUserAgent(Context context) {
-        String versionName;
+    @Override
+    public void onRelease() {
+        super.onRelease();
 
-        try {
-            String packageName = context.getPackageName();
-            PackageInfo info = context.getPackageManager().getPackageInfo(packageName, 0);
-            versionName = info.versionName;
-        } catch (PackageManager.NameNotFoundException e) {
-            versionName = "?";
+        if (mLibVLC != null) {
+            LibVlcManager.getInstance(mContext).release(mLibVLC);
+            mLibVLC = null;
         }
+    }
 
-        return "android-tvheadend/" + versionName + " (Linux;Android " + Build.VERSION.RELEASE
-                + ") VLC/" + mLibVLC.version();
+    @Override
+    protected String getPlayerName() {
+        return super.getPlayerName() + " (" + mSettings.toString() + ")";
     }
 
     @Override
@@ -147,25 +132,17 @@ public class VlcSession extends BaseSession {
         // Gather Details on the Channel
         String channelUuid = channel.getInternalProviderData().getUuid();
 
-        // Gather Details on the TVHeadend Instance
-        AccountManager accountManager = AccountManager.get(mContext);;
-        Account account = AccountUtils.getActiveAccount(mContext);
+        // Gather Details on the TVHeadend Instance, without waiting on AccountManager
+        TuneCache.Endpoint endpoint = TuneCache.getInstance(mContext).getEndpoint();
 
-        String username = account.name;
-        String password = accountManager.getPassword(account);
-        String hostname = accountManager.getUserData(account, Constants.KEY_HOSTNAME);
-        String httpPort = accountManager.getUserData(account, Constants.KEY_HTTP_PORT);
-        String httpPath = accountManager.getUserData(account, Constants.KEY_HTTP_PATH);
+        if (endpoint == null) {
+            Log.w(TAG, "No account to play channel from: " + channel.toString());
+            return false;
+        }
 
         // Create authentication headers and streamUri
-        Map<String, String> headers = ClientUtils.createBasicAuthHeader(username, password);
-        Uri videoUri;
-
-        if (httpPath == null) {
-            videoUri = Uri.parse("http://" + username + ":" + password + "@" + hostname + ":" + httpPort + "/stream/channel/" + channelUuid + "?profile=tif");
-        } else {
-            videoUri = Uri.parse("http://" + username + ":" + password + "@" + hostname + ":" + httpPort + "/" + httpPath + "/stream/channel/" + channelUuid + "?profile=tif");
-        }
+        Map<String, String> headers = endpoint.getHeaders();
+        Uri videoUri = endpoint.getStreamUri(channelUuid, true);
 
         // Prepare the media player
         mMediaPlayer = prepareMediaPlayer(videoUri, headers);
@@ -213,7 +190,8 @@ public class VlcSession extends BaseSession {
             return null;
         }
 
-        mediaPlayer.getMedia().setHWDecoderEnabled(true, false);
+        mediaPlayer.getMedia().setHWDecoderEnabled(
+                mSettings.isHwDecoderEnabled(), mSettings.isHwDecoderForced());
         if (mSurface != null) {
             mediaPlayer.getVLCVout().setVideoSurface(mSurface, null);
             mediaPlayer.getVLCVout().attachViews();
@@ -295,9 +273,20 @@ public class VlcSession extends BaseSession {
         @Override
         public void onEvent(MediaPlayer.Event event) {
             switch(event.type) {
+                case MediaPlayer.Event.Opening:
+                    Log.d(TAG, "Received VLC MediaPlayer.Event: Opening");
+                    markTuneStage(TuneTimeline.STAGE_STREAM_CONNECT);
+                    break;
+                case MediaPlayer.Event.Buffering:
+                    // Don't log these events, VLC fires them all the time while buffering...
+                    markTuneStage(TuneTimeline.STAGE_FIRST_BYTE);
+                    break;
+                case MediaPlayer.Event.Vout:
+                    // The video output is created once the first frame is decoded
+                    markTuneStage(TuneTimeline.STAGE_FIRST_FRAME);
+                    // Fall through
                 case MediaPlayer.Event.ESAdded:
                 case MediaPlayer.Event.ESDeleted:
-                case MediaPlayer.Event.Vout:
                     Log.d(TAG, "Received VLC MediaPlayer.Event: ESAdded/ESDeleted/Vout");
                     notifyTracksChanged(getAllTracks());
                     notifyTrackSelected(TvTrackInfo.TYPE_AUDIO,
@@ -318,7 +307,6 @@ public class VlcSession extends BaseSession {
                 case MediaPlayer.Event.EndReached:
                 case MediaPlayer.Event.Paused:
                 case MediaPlayer.Event.Stopped:
-                case MediaPlayer.Event.Opening:
                 case MediaPlayer.Event.MediaChanged:
                 default:
                     Log.d(TAG, "Received VLC MediaPlayer.Event: " + event.type);
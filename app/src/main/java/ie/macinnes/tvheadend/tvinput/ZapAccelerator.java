@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2016 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package ie.macinnes.tvheadend.tvinput;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import ie.macinnes.tvheadend.Constants;
+import ie.macinnes.tvheadend.model.Channel;
+import ie.macinnes.tvheadend.model.ChannelList;
+
+/**
+ * Keeps the channels a user is likely to zap to next streaming in the background, so switching to
+ * one hands the player a buffered keyframe rather than starting from a cold connection.
+ *
+ * The channels kept are, in order of preference, the previously watched channel and the channels
+ * either side of the current one. Each is a subscription on the server, possibly holding a tuner,
+ * so they're only opened while the app's subscriptions, including those playing live, are within
+ * the configured limit.
+ */
+public class ZapAccelerator {
+    private static final String TAG = ZapAccelerator.class.getName();
+
+    public static final int DEFAULT_MAX_SUBSCRIPTIONS = 2;
+
+    // Subscriptions held across every session in the process, live and prebuffering
+    private static int sSubscriptionCount = 0;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final int mMaxSubscriptions;
+
+    private final Map<Long, PrebufferedStream> mStreams = new HashMap<>();
+
+    private Channel mCurrentChannel;
+    private Channel mPreviousChannel;
+    private boolean mHoldsLiveSubscription = false;
+    private boolean mReleased = false;
+
+    public static boolean isEnabled(Context context) {
+        SharedPreferences sharedPreferences = context.getSharedPreferences(
+                Constants.PREFERENCE_TVHEADEND, Context.MODE_PRIVATE);
+
+        return sharedPreferences.getBoolean(Constants.KEY_ZAP_ACCELERATION_ENABLED, false);
+    }
+
+    /**
+     * @param handler Handler for a background thread, channel lookups and connections are made
+     *                from it
+     */
+    public ZapAccelerator(Context context, Handler handler) {
+        mContext = context;
+        mHandler = handler;
+
+        SharedPreferences sharedPreferences = context.getSharedPreferences(
+                Constants.PREFERENCE_TVHEADEND, Context.MODE_PRIVATE);
+
+        mMaxSubscriptions = sharedPreferences.getInt(
+                Constants.KEY_ZAP_MAX_SUBSCRIPTIONS, DEFAULT_MAX_SUBSCRIPTIONS);
+    }
+
+    /**
+     * Takes over the prebuffered stream for channel, should there be one with a keyframe ready.
+     *
+     * @return the stream, starting at a keyframe, or null to play the channel from scratch
+     */
+    public synchronized InputStream takeStream(Channel channel) {
+        PrebufferedStream stream = mStreams.remove(channel.getId());
+
+        if (stream == null) {
+            return null;
+        }
+
+        // The channel's subscription carries on as the live one
+        releaseSubscription();
+
+        InputStream inputStream = stream.takeInputStream();
+
+        if (inputStream == null) {
+            Log.d(TAG, "Prebuffered stream for " + channel.getDisplayNumber() + " not ready");
+            stream.close();
+        } else {
+            Log.d(TAG, "Using prebuffered stream for " + channel.getDisplayNumber());
+        }
+
+        return inputStream;
+    }
+
+    /**
+     * Updates the channels being prebuffered, once channel has been tuned to.
+     */
+    public void onTuned(final Channel channel) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                updateStreams(channel);
+            }
+        });
+    }
+
+    public synchronized void release() {
+        mReleased = true;
+
+        for (PrebufferedStream stream : mStreams.values()) {
+            stream.close();
+            releaseSubscription();
+        }
+
+        mStreams.clear();
+
+        if (mHoldsLiveSubscription) {
+            releaseSubscription();
+            mHoldsLiveSubscription = false;
+        }
+    }
+
+    private void updateStreams(Channel channel) {
+        synchronized (this) {
+            if (mReleased) {
+                return;
+            }
+
+            if (mCurrentChannel != null && mCurrentChannel.getId() != channel.getId()) {
+                mPreviousChannel = mCurrentChannel;
+            }
+
+            mCurrentChannel = channel;
+
+            if (!mHoldsLiveSubscription) {
+                acquireSubscription();
+                mHoldsLiveSubscription = true;
+            }
+        }
+
+        List<Channel> wantedChannels = getWantedChannels(channel);
+
+        synchronized (this) {
+            if (mReleased || mCurrentChannel != channel) {
+                // Released, or tuned elsewhere, while looking up the channels
+                return;
+            }
+
+            // Free up the subscriptions we no longer need first
+            Iterator<Map.Entry<Long, PrebufferedStream>> it = mStreams.entrySet().iterator();
+
+            while (it.hasNext()) {
+                Map.Entry<Long, PrebufferedStream> entry = it.next();
+
+                if (entry.getValue().isEnded() || !containsChannel(wantedChannels, entry.getKey())) {
+                    entry.getValue().close();
+                    releaseSubscription();
+                    it.remove();
+                }
+            }
+
+            for (Channel wantedChannel : wantedChannels) {
+                if (mStreams.containsKey(wantedChannel.getId())) {
+                    continue;
+                }
+
+                if (!tryAcquireSubscription(mMaxSubscriptions)) {
+                    Log.d(TAG, "Subscription limit of " + mMaxSubscriptions + " reached");
+                    break;
+                }
+
+                PrebufferedStream stream = openStream(wantedChannel);
+
+                if (stream == null) {
+                    releaseSubscription();
+                    continue;
+                }
+
+                Log.d(TAG, "Prebuffering channel " + wantedChannel.getDisplayNumber());
+                mStreams.put(wantedChannel.getId(), stream);
+            }
+        }
+    }
+
+    /**
+     * @return the channels to prebuffer, most likely to be zapped to first
+     */
+    private List<Channel> getWantedChannels(Channel channel) {
+        List<Channel> wantedChannels = new ArrayList<>();
+
+        Channel previousChannel;
+
+        synchronized (this) {
+            previousChannel = mPreviousChannel;
+        }
+
+        if (previousChannel != null) {
+            wantedChannels.add(previousChannel);
+        }
+
+        ChannelList channels = TuneCache.getInstance(mContext).getSortedChannels();
+
+        int index = -1;
+
+        for (int i = 0; i < channels.size(); i++) {
+            if (channels.get(i).getId() == channel.getId()) {
+                index = i;
+                break;
+            }
+        }
+
+        if (index != -1 && channels.size() > 1) {
+            Channel nextChannel = channels.get((index + 1) % channels.size());
+            Channel prevChannel = channels.get((index - 1 + channels.size()) % channels.size());
+
+            if (!containsChannel(wantedChannels, nextChannel.getId())) {
+                wantedChannels.add(nextChannel);
+            }
+
+            if (!containsChannel(wantedChannels, prevChannel.getId())) {
+                wantedChannels.add(prevChannel);
+            }
+        }
+
+        return wantedChannels;
+    }
+
+    private PrebufferedStream openStream(Channel channel) {
+        TuneCache.Endpoint endpoint = TuneCache.getInstance(mContext).getEndpoint();
+
+        if (endpoint == null || channel.getInternalProviderData() == null) {
+            return null;
+        }
+
+        String channelUuid = channel.getInternalProviderData().getUuid();
+
+        Map<String, String> headers = endpoint.getHeaders();
+        String url = endpoint.getStreamUri(channelUuid, false).toString();
+
+        PrebufferedStream stream = new PrebufferedStream(url, headers);
+        stream.start();
+
+        return stream;
+    }
+
+    private static boolean containsChannel(List<Channel> channels, long channelId) {
+        for (Channel channel : channels) {
+            if (channel.getId() == channelId) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static synchronized void acquireSubscription() {
+        sSubscriptionCount++;
+    }
+
+    private static synchronized boolean tryAcquireSubscription(int maxSubscriptions) {
+        if (sSubscriptionCount >= maxSubscriptions) {
+            return false;
+        }
+
+        sSubscriptionCount++;
+        return true;
+    }
+
+    private static synchronized void releaseSubscription() {
+        sSubscriptionCount--;
+    }
+}
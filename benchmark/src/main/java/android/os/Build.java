@@ -0,0 +1,44 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package android.os;
+
+/**
+ * JVM shim for android.os.Build, the framework's version reads system properties and the
+ * runtime's ABI through native code.
+ *
+ * Code paths guarded by Build.VERSION.SDK_INT run as they would on a device running the app's
+ * target SDK.
+ */
+public class Build {
+    public static final String UNKNOWN = "unknown";
+
+    public static final String MANUFACTURER = UNKNOWN;
+    public static final String MODEL = UNKNOWN;
+    public static final String DEVICE = UNKNOWN;
+    public static final String PRODUCT = UNKNOWN;
+
+    public static class VERSION {
+        public static final String RELEASE = "7.0";
+        public static final String CODENAME = "REL";
+        public static final int SDK_INT = VERSION_CODES.N;
+    }
+
+    public static class VERSION_CODES {
+        public static final int LOLLIPOP = 21;
+        public static final int LOLLIPOP_MR1 = 22;
+        public static final int M = 23;
+        public static final int N = 24;
+    }
+}
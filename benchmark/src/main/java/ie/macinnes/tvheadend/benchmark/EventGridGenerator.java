@@ -0,0 +1,103 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.benchmark;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * Generates synthetic /api/epg/events/grid responses, shaped like tvheadend's own. The same
+ * seed always generates the same response.
+ */
+public class EventGridGenerator {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final long START_TIME = 1470000000L;
+    private static final String[] WORDS = {
+            "news", "weather", "live", "final", "episode", "special", "the", "of", "and",
+            "documentary", "drama", "comedy", "match", "highlights", "tonight", "world"
+    };
+
+    private final Random mRandom;
+    private final int mChannelCount;
+
+    public EventGridGenerator(int channelCount, long seed) {
+        mChannelCount = channelCount;
+        mRandom = new Random(seed);
+    }
+
+    public static String channelUuid(int channel) {
+        return String.format("%032x", channel);
+    }
+
+    /**
+     * @return A grid of eventCount events, spread evenly over the channels. Each channel's events
+     *         are back to back, starting at the same time.
+     */
+    public String generate(int eventCount) {
+        StringBuilder builder = new StringBuilder(eventCount * 600);
+        long[] nextStart = new long[mChannelCount];
+
+        builder.append("{\"entries\":[");
+
+        for (int i = 0; i < eventCount; i++) {
+            int channel = i % mChannelCount;
+            long start = nextStart[channel] == 0 ? START_TIME : nextStart[channel];
+            long stop = start + 60 * (15 + mRandom.nextInt(8) * 15);
+            nextStart[channel] = stop;
+
+            if (i > 0) {
+                builder.append(',');
+            }
+
+            builder.append("{\"eventId\":").append(i + 1)
+                    .append(",\"channelName\":\"Channel ").append(channel + 1).append('"')
+                    .append(",\"channelUuid\":\"").append(channelUuid(channel)).append('"')
+                    .append(",\"channelNumber\":\"").append(channel + 1).append('"')
+                    .append(",\"start\":").append(start)
+                    .append(",\"stop\":").append(stop)
+                    .append(",\"title\":\"").append(words(3)).append('"')
+                    .append(",\"subtitle\":\"").append(words(5)).append('"')
+                    .append(",\"summary\":\"").append(words(15)).append('"')
+                    .append(",\"description\":\"").append(words(60)).append('"')
+                    .append(",\"seasonNumber\":").append(mRandom.nextInt(10))
+                    .append(",\"episodeNumber\":").append(mRandom.nextInt(25))
+                    .append(",\"genre\":[").append(mRandom.nextInt(200)).append(']')
+                    .append(",\"nextEventId\":").append(i + 1 + mChannelCount)
+                    .append('}');
+        }
+
+        builder.append("],\"totalCount\":").append(eventCount).append('}');
+
+        return builder.toString();
+    }
+
+    public byte[] generateBytes(int eventCount) {
+        return generate(eventCount).getBytes(UTF_8);
+    }
+
+    private String words(int count) {
+        StringBuilder builder = new StringBuilder();
+
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                builder.append(' ');
+            }
+            builder.append(WORDS[mRandom.nextInt(WORDS.length)]);
+        }
+
+        return builder.toString();
+    }
+}
@@ -0,0 +1,97 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.benchmark;
+
+import android.accounts.Account;
+import android.content.ContentValues;
+
+import com.google.gson.Gson;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import ie.macinnes.tvheadend.client.TVHClient;
+import ie.macinnes.tvheadend.model.Program;
+import ie.macinnes.tvheadend.model.ProgramList;
+
+/**
+ * Converting events to Programs, and Programs to ContentValues, as done for every event synced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProgramBenchmark {
+    @Param({"100", "1000", "100000"})
+    public int eventCount;
+
+    private Account mAccount;
+    private TVHClient.EventList mEventList;
+    private ProgramList mProgramList;
+    private ProgramList mOtherProgramList;
+
+    @Setup
+    public void setUp() {
+        String json = new EventGridGenerator(100, 1).generate(eventCount);
+
+        mAccount = new Account("benchmark", "ie.macinnes.tvheadend");
+        mEventList = new Gson().fromJson(json, TVHClient.EventList.class);
+        mProgramList = ProgramList.fromClientEventList(mEventList, 1, mAccount);
+        mOtherProgramList = ProgramList.fromClientEventList(mEventList, 1, mAccount);
+    }
+
+    @Benchmark
+    public ProgramList fromClientEventList() {
+        return ProgramList.fromClientEventList(mEventList, 1, mAccount);
+    }
+
+    @Benchmark
+    public void toContentValues(Blackhole blackhole) {
+        for (Program program : mProgramList) {
+            ContentValues values = program.toContentValues();
+            blackhole.consume(values);
+        }
+    }
+
+    /**
+     * Equal programs, so every field is compared.
+     */
+    @Benchmark
+    public int equals() {
+        int equal = 0;
+
+        for (int i = 0; i < mProgramList.size(); i++) {
+            if (mProgramList.get(i).equals(mOtherProgramList.get(i))) {
+                equal++;
+            }
+        }
+
+        return equal;
+    }
+}
@@ -0,0 +1,105 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.benchmark;
+
+import android.accounts.Account;
+import android.content.ContentProviderOperation;
+
+import com.google.gson.Gson;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import ie.macinnes.tvheadend.client.TVHClient;
+import ie.macinnes.tvheadend.model.Program;
+import ie.macinnes.tvheadend.model.ProgramList;
+import ie.macinnes.tvheadend.sync.ProgramsDiffer;
+
+/**
+ * The merge loop run for each channel, comparing the programs stored in TvProvider with those
+ * just fetched from the server.
+ *
+ * All events are on a single channel. Compared with the stored programs, every 20th fetched
+ * program has a new title, and every 50th stored program is gone from the server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProgramsDifferBenchmark {
+    @Param({"100", "1000", "100000"})
+    public int eventCount;
+
+    private ProgramList mOldProgramList;
+    private ProgramList mNewProgramList;
+
+    @Setup
+    public void setUp() {
+        String json = new EventGridGenerator(1, 1).generate(eventCount);
+
+        Account account = new Account("benchmark", "ie.macinnes.tvheadend");
+        TVHClient.EventList eventList = new Gson().fromJson(json, TVHClient.EventList.class);
+
+        // As read back from TvProvider
+        mOldProgramList = ProgramList.fromClientEventList(eventList, 1, account);
+        for (int i = 0; i < mOldProgramList.size(); i++) {
+            mOldProgramList.get(i).setProgramId(i + 1);
+        }
+
+        mNewProgramList = new ProgramList();
+        for (int i = 0; i < eventList.entries.size(); i++) {
+            TVHClient.Event event = eventList.entries.get(i);
+
+            if (i % 50 == 49) {
+                continue;
+            }
+
+            if (i % 20 == 19) {
+                event.title = event.title + " (Updated)";
+            }
+
+            mNewProgramList.add(Program.fromClientEvent(event, 1, account));
+        }
+    }
+
+    @Benchmark
+    public ProgramsDiffer diff(final Blackhole blackhole) throws InterruptedException {
+        ProgramsDiffer differ = new ProgramsDiffer();
+
+        differ.diff(mOldProgramList, mNewProgramList, new ProgramsDiffer.BatchListener() {
+            @Override
+            public void onBatch(ArrayList<ContentProviderOperation> ops) {
+                blackhole.consume(ops);
+            }
+        });
+
+        return differ;
+    }
+}
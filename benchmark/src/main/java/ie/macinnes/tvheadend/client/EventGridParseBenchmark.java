@@ -0,0 +1,91 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.client;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import ie.macinnes.tvheadend.benchmark.EventGridGenerator;
+
+/**
+ * Parsing an event grid response, as loaded by TVHClient.getEventGrid and streamEventGrid.
+ *
+ * This lives in the client package, as parseNetworkResponse is protected.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EventGridParseBenchmark {
+    private static final String URL = "http://localhost:9981/api/epg/events/grid";
+
+    @Param({"100", "1000", "100000"})
+    public int eventCount;
+
+    private NetworkResponse mResponse;
+    private GsonRequest<TVHClient.EventList> mGsonRequest;
+
+    @Setup
+    public void setUp() {
+        byte[] data = new EventGridGenerator(100, 1).generateBytes(eventCount);
+
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Type", "application/json; charset=UTF-8");
+
+        mResponse = new NetworkResponse(200, data, headers, false);
+        mGsonRequest = new GsonRequest<>(
+                Request.Method.GET, URL, TVHClient.EventList.class, null, null, null, null);
+    }
+
+    @Benchmark
+    public Response<TVHClient.EventList> gsonRequest() {
+        return mGsonRequest.parseNetworkResponse(mResponse);
+    }
+
+    @Benchmark
+    public Response<GridStreamParser.GridResult> gridStreamRequest(final Blackhole blackhole) {
+        GridStreamParser.EntryListener<TVHClient.Event> entryListener = new GridStreamParser.EntryListener<TVHClient.Event>() {
+            @Override
+            public void onEntry(TVHClient.Event event) {
+                blackhole.consume(event);
+            }
+        };
+
+        GridStreamRequest<TVHClient.Event> request = new GridStreamRequest<>(
+                Request.Method.GET, URL, TVHClient.Event.class, entryListener, null, null, null, null);
+
+        return request.parseNetworkResponse(mResponse);
+    }
+}